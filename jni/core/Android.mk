@@ -25,17 +25,30 @@ LOCAL_CFLAGS := $(foreach D, $(CG_SUBDIRS), -I$(CG_SRCDIR)/$(D)) \
 
 #  -DUSE_CYCLONE_CORE -DUSE_CYCLONE_MEMHANDLERS 
 
+# Experimental: run big blits on a worker thread (-DDEBUG_BLITTER_THREAD logs stalls)
+#  -DUSE_BLITTER_THREAD
+# Log the floppy MFM track cache hit rate and encode time
+#  -DDEBUG_MFMCACHE
+
 LOCAL_CFLAGS     += -Wno-psabi
 LOCAL_CFLAGS	 += -DSDL_JAVA_PACKAGE_PATH=$(SDL_JAVA_PACKAGE_PATH) -DUSE_SDL -DOS_WITHOUT_MEMORY_MANAGEMENT -DANDROID -DOS_ANDROID -DFAME_INTERRUPTS_PATCH 
+# gzipped (.adz/.adf.gz) disk images, decoded on a loader thread
+LOCAL_CFLAGS	 += -DUSE_ZFILE
 #LOCAL_CFLAGS     += -DUSE_FAME_CORE -DUSE_CYCLONE_CORE -DUSE_CYCLONE_MEMHANDLERS   -DSAFE_MEMORY_ACCESS
 
 # m68k/m68k_cmn_intrf.cpp  m68k/cyclone/cyclone.S m68k/cyclone/m68k_intrf.cpp m68k/cyclone/memhandlers.S
 # m68k/fame/famec.cpp m68k/fame/m68k_intrf.cpp
 
-LOCAL_SRC_FILES  := audio.cpp autoconf.cpp blitfunc.cpp savestate.cpp blittable.cpp blitter.cpp cia.cpp custom.cpp disk.cpp drawing.cpp ersatz.cpp gfxutil.cpp keybuf.cpp main.cpp md-support.cpp memory.cpp missing.cpp od-joy.cpp savedisk.cpp sdlgfx.cpp sound_android.cpp writelog.cpp zfile.cpp gui.cpp vkbd/vkbd.cpp memcpy.S memset.S
+LOCAL_SRC_FILES  := audio.cpp autoconf.cpp blitfunc.cpp savestate.cpp blittable.cpp blitter.cpp blitrow.cpp bootcache.cpp cia.cpp custom.cpp disk.cpp drawing.cpp ersatz.cpp gfxutil.cpp keybuf.cpp main.cpp md-support.cpp memory.cpp missing.cpp od-joy.cpp rewind.cpp runahead.cpp savedisk.cpp savestore.cpp sdlgfx.cpp sound_android.cpp writelog.cpp zfile.cpp gui.cpp vkbd/vkbd.cpp memcpy.S memset.S
 #LOCAL_SRC_FILES  += m68k/m68k_cmn_intrf.cpp  m68k/cyclone/cyclone.S m68k/cyclone/m68k_intrf.cpp m68k/cyclone/memhandlers.S
 LOCAL_SRC_FILES  += m68k/uae/newcpu.cpp m68k/uae/readcpu.cpp m68k/uae/cpudefs.cpp m68k/uae/fpp.cpp m68k/uae/cpustbl.cpp m68k/uae/cpuemu.cpp
 
+# NEON blitter row kernel, picked at runtime through cpufeatures
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+LOCAL_CFLAGS     += -DUSE_BLITROW_NEON
+LOCAL_SRC_FILES  += blitrow_neon.cpp.neon
+endif
+
 LOCAL_ARM_MODE := arm
 
 #LOCAL_LDFLAGS := -Wl,-Map=moblox.map,--cref,--gc-section 
@@ -43,8 +56,10 @@ LOCAL_CFLAGS +=  -O3
 #-ffunction-sections -fdata-sections
 
 # sdl_mixer tremor
-LOCAL_STATIC_LIBRARIES :=  sdl  
+LOCAL_STATIC_LIBRARIES :=  sdl  cpufeatures
 
 LOCAL_LDLIBS	+= -llog -lz
 
 include $(BUILD_SHARED_LIBRARY)
+
+$(call import-module,android/cpufeatures)
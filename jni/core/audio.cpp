@@ -621,11 +621,6 @@ void audio_reset (void)
     else
 	    for (i = 0; i < 4; i++)
 		    audio_channel[i].dmaen = (dmacon & 0x200) && (dmacon & (1 << i));
-    memset (audio_channel, 0, 4 * sizeof *audio_channel);
-    audio_channel[0].per = PERIOD_MAX;
-    audio_channel[1].per = PERIOD_MAX;
-    audio_channel[2].per = PERIOD_MAX;
-    audio_channel[3].per = PERIOD_MAX;
 
     memset (audio_channel + 4, 0, 2 * sizeof *audio_channel);
     audio_channel[4].per = PERIOD_MAX;
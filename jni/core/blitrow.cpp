@@ -0,0 +1,365 @@
+ /*
+  * UAE - The Un*x Amiga Emulator
+  *
+  * Row based blitter kernels for the common minterms
+  *
+  * blitter_dofast and blitter_dofast_desc normally go through the per word
+  * blitfunc tables, paying for a chipmem_wget/wput call on every word.  For
+  * clear (0x00), copy (0xF0, 0xCC) and cookie cut (0xCA), with or without
+  * area fill, whole rows are instead gathered from chip memory into host
+  * order buffers, run through a vector kernel (NEON when the CPU has it) and
+  * scattered back.  Anything the kernels can't reproduce bit for bit (chip
+  * memory wrap around, destination overlapping a source row at a different
+  * offset) is left to the tables.
+  */
+
+#include "sysconfig.h"
+#include "sysdeps.h"
+
+#include "config.h"
+#include "uae.h"
+#include "options.h"
+#include "debug_uae4all.h"
+#include "memorya.h"
+#include "custom.h"
+#include "blitter.h"
+#include "blitrow.h"
+
+#ifdef USE_BLITROW_NEON
+#include <cpu-features.h>
+#endif
+
+#if defined(__ARM_NEON__) || defined(__SSE2__)
+#define BRVEC_BYTES 16
+#else
+#define BRVEC_BYTES 4
+#endif
+#define BRNAME blitrow_compute_generic
+#include "blitrow_kernel.h"
+#undef BRNAME
+#undef BRVEC_BYTES
+
+/* Room for the carried word in front and a full vector of slack behind.  */
+#define BLITROW_BUFSIZE (BLITTER_MAX_WORDS + 16)
+
+static uae_u16 blitrow_abuf[BLITROW_BUFSIZE], blitrow_bbuf[BLITROW_BUFSIZE];
+static uae_u16 blitrow_cbuf[BLITROW_BUFSIZE], blitrow_dbuf[BLITROW_BUFSIZE];
+
+static blitrow_func *blitrow_compute = blitrow_compute_generic;
+
+#ifndef NO_BLITROW
+static int blitrow_enabled = 1;
+#else
+static int blitrow_enabled = 0;
+#endif
+
+void blitrow_init (void)
+{
+    blitrow_compute = blitrow_compute_generic;
+#ifdef USE_BLITROW_NEON
+    if (android_getCpuFamily () == ANDROID_CPU_FAMILY_ARM
+	&& (android_getCpuFeatures () & ANDROID_CPU_ARM_FEATURE_NEON)) {
+	blitrow_compute = blitrow_compute_neon;
+    }
+#endif
+    __android_log_print (ANDROID_LOG_INFO, "UAE", "blitter: %s row kernels",
+			 blitrow_compute == blitrow_compute_generic ? "generic" : "NEON");
+}
+
+/* Host address of the first word of a channel, or NULL if any of its rows
+   would wrap around the end of chip memory.  lo/hi get the chip offsets of
+   the lowest and highest byte touched.  */
+static uae_u8 *blitrow_chipptr (uaecptr pt, int n, int v, int mod, int desc, uae_u32 *lo, uae_u32 *hi)
+{
+    int step = 2 * n + mod;
+    int first = (int)pt, last = desc ? first - (v - 1) * step : first + (v - 1) * step;
+    int l = first < last ? first : last, h = first < last ? last : first;
+
+    if (desc) {
+	l -= 2 * n - 2;
+	h += 1;
+    } else
+	h += 2 * n - 1;
+    if (l < 0 || (l & ~chipmem_mask) != (h & ~chipmem_mask))
+	return NULL;
+    *lo = l & chipmem_mask;
+    *hi = h & chipmem_mask;
+    return chipmemory + (pt & chipmem_mask);
+}
+
+/* The table and generic paths read a source word right before the
+   destination word at the same position is written, and the generic path
+   even writes one word late.  Buffering a whole row only gives the same
+   result if no row of the destination covers a source word that is still
+   to be read, at a different offset.  */
+static int blitrow_overlaps (uaecptr s, int smod, uaecptr d, int dmod, int n, int v, int desc)
+{
+    int sstep = 2 * n + smod, dstep = 2 * n + dmod;
+    int so = (int)(s & chipmem_mask), doffs = (int)(d & chipmem_mask);
+    int r;
+
+    if (desc) {
+	sstep = -sstep;
+	dstep = -dstep;
+    }
+    for (r = 0; r < v; r++) {
+	int diff = doffs - so;
+	if (diff != 0 && diff > -2 * n && diff < 2 * n)
+	    return 1;
+	diff -= sstep;
+	if (r + 1 < v && diff > -2 * n && diff < 2 * n)
+	    return 1;
+	so += sstep;
+	doffs += dstep;
+    }
+    return 0;
+}
+
+static __inline__ void blitrow_gather (uae_u16 *buf, uae_u8 *p, int n, int desc)
+{
+    int k;
+
+    if (desc)
+	for (k = 0; k < n; k++, p -= 2)
+	    buf[k] = (p[0] << 8) | p[1];
+    else
+	for (k = 0; k < n; k++, p += 2)
+	    buf[k] = (p[0] << 8) | p[1];
+}
+
+static __inline__ uae_u32 blitrow_scatter (uae_u8 *p, uae_u16 *buf, int n, int desc)
+{
+    uae_u32 total = 0;
+    int k;
+
+    if (desc)
+	for (k = 0; k < n; k++, p -= 2) {
+	    uae_u16 w = buf[k];
+	    p[0] = w >> 8;
+	    p[1] = w;
+	    total |= w;
+	}
+    else
+	for (k = 0; k < n; k++, p += 2) {
+	    uae_u16 w = buf[k];
+	    p[0] = w >> 8;
+	    p[1] = w;
+	    total |= w;
+	}
+    return total;
+}
+
+/* Area fill, one word at a time in processing order.  The fill carry
+   before each bit is the parity of the bits below it, which the prefix xor
+   gives us for all 16 bits at once.  Same results as blit_filltable.  */
+static __inline__ int blitrow_fill (uae_u16 *buf, int n, int ife, int fc)
+{
+    int k;
+
+    for (k = 0; k < n; k++) {
+	uae_u32 d = buf[k], x = d, m;
+	x ^= x << 1;
+	x ^= x << 2;
+	x ^= x << 4;
+	x ^= x << 8;
+	m = (x ^ d) & 0xFFFF;
+	if (fc)
+	    m ^= 0xFFFF;
+	buf[k] = ife ? (d | m) : (d ^ m);
+	fc ^= (x >> 15) & 1;
+    }
+    return fc;
+}
+
+static __inline__ uae_u16 blitrow_shift (uae_u16 cur, uae_u16 prev, int s, int desc)
+{
+    if (!s)
+	return cur;
+    if (desc)
+	return (uae_u16)((cur << s) | (prev >> (16 - s)));
+    return (uae_u16)((cur >> s) | (prev << (16 - s)));
+}
+
+/* Checks whether the kernels can do the blit described by the first half of
+   j and, if so, fills in the channel pointers and the chip ranges it will
+   touch.  Nothing is read or written yet.  */
+int blitrow_prepare (struct blitrow_job *j)
+{
+    struct bltinfo *b = &j->info;
+    uae_u32 lo, hi;
+    int n = b->hblitsize, v = b->vblitsize, desc = j->desc, fill = j->con1 & 0x18;
+
+    if (!blitrow_enabled || !n || !v || n > BLITTER_MAX_WORDS)
+	return 0;
+    j->mt = j->con0 & 0xFF;
+    switch (j->mt) {
+    case 0x00: j->usea = j->useb = j->usec = 0; break;
+    case 0xF0: j->usea = 1; j->useb = j->usec = 0; break;
+    case 0xCC: j->useb = 1; j->usea = j->usec = 0; break;
+    case 0xCA: j->usea = j->useb = j->usec = 1; break;
+    default: return 0;
+    }
+    /* The table functions only look at the channels their minterm needs,
+       the generic fill loop reads (and keeps the state of) all of them.  */
+    if (fill) {
+	j->useb |= j->ptb != 0;
+	j->usec |= j->ptc != 0;
+    }
+
+    j->ap = j->bp = j->cp = j->dp = NULL;
+    j->lo = j->dlo = ~0u;
+    j->end = j->dend = 0;
+#define BLITROW_CHANNEL(use, pt, p, mod) \
+    if (use && pt) { \
+	if (!(p = blitrow_chipptr (pt, n, v, mod, desc, &lo, &hi))) \
+	    return 0; \
+	if (lo < j->lo) j->lo = lo; \
+	if (hi + 1 > j->end) j->end = hi + 1; \
+    }
+    BLITROW_CHANNEL (j->usea, j->pta, j->ap, b->bltamod);
+    BLITROW_CHANNEL (j->useb, j->ptb, j->bp, b->bltbmod);
+    BLITROW_CHANNEL (j->usec, j->ptc, j->cp, b->bltcmod);
+    BLITROW_CHANNEL (1, j->ptd, j->dp, b->bltdmod);
+#undef BLITROW_CHANNEL
+    if (j->dp) {
+	if ((j->ap && blitrow_overlaps (j->pta, b->bltamod, j->ptd, b->bltdmod, n, v, desc))
+	    || (j->bp && blitrow_overlaps (j->ptb, b->bltbmod, j->ptd, b->bltdmod, n, v, desc))
+	    || (j->cp && blitrow_overlaps (j->ptc, b->bltcmod, j->ptd, b->bltdmod, n, v, desc)))
+	    return 0;
+	j->dlo = lo;
+	j->dend = hi + 1;
+    }
+    if (!j->end)
+	j->lo = j->dlo = 0;
+    return 1;
+}
+
+/* Does a blit accepted by blitrow_prepare.  Only touches chip memory inside
+   the prepared ranges and the blitter state in j, so it may run on another
+   thread.  */
+void blitrow_run (struct blitrow_job *j)
+{
+    struct bltinfo *b = &j->info;
+    struct blitrow_row row;
+    uae_u8 *ap = j->ap, *bp = j->bp, *cp = j->cp, *dp = j->dp;
+    uae_u32 totald = 0;
+    uae_u16 preva = 0, prevb = 0, lastb = b->bltbhold, lastc = b->bltcdat, lastd = 0;
+    int mt = j->mt, fill = j->con1 & 0x18, ife = j->con1 & 0x8, fc = j->fc;
+    int n = b->hblitsize, v = b->vblitsize, desc = j->desc;
+    int dir, k;
+
+    if (mt == 0x00 && !fill && !dp)
+	return;
+
+    row.mt = mt;
+    row.n = n;
+    row.desc = desc;
+    row.ashift = b->blitashift;
+    row.bshift = bp ? b->blitbshift : 0;
+    row.abuf = blitrow_abuf;
+    row.bbuf = blitrow_bbuf;
+    row.cbuf = blitrow_cbuf;
+    row.dbuf = blitrow_dbuf;
+    dir = desc ? -1 : 1;
+
+    if (!bp)
+	for (k = 1; k <= n; k++)
+	    blitrow_bbuf[k] = b->bltbhold;
+    if (!cp)
+	for (k = 0; k < n; k++)
+	    blitrow_cbuf[k] = b->bltcdat;
+
+    for (; v > 0; v--) {
+	if (j->usea) {
+	    blitrow_abuf[0] = preva;
+	    if (ap) {
+		blitrow_gather (blitrow_abuf + 1, ap, n, desc);
+		ap += dir * (2 * n + b->bltamod);
+	    } else {
+		for (k = 1; k <= n; k++)
+		    blitrow_abuf[k] = b->bltadat;
+	    }
+	    blitrow_abuf[1] &= b->bltafwm;
+	    blitrow_abuf[n] &= b->bltalwm;
+	    preva = blitrow_abuf[n];
+	}
+	if (bp) {
+	    blitrow_bbuf[0] = prevb;
+	    blitrow_gather (blitrow_bbuf + 1, bp, n, desc);
+	    bp += dir * (2 * n + b->bltbmod);
+	    prevb = blitrow_bbuf[n];
+	    lastb = blitrow_shift (blitrow_bbuf[n], blitrow_bbuf[n - 1], b->blitbshift, desc);
+	}
+	if (cp) {
+	    blitrow_gather (blitrow_cbuf, cp, n, desc);
+	    cp += dir * (2 * n + b->bltcmod);
+	    lastc = blitrow_cbuf[n - 1];
+	}
+
+	if (mt == 0x00 && !fill) {
+	    /* Plain clear, nothing to compute.  */
+	    uae_u8 *p = desc ? dp - 2 * n + 2 : dp;
+	    memset (p, 0, 2 * n);
+	    dp += dir * (2 * n + b->bltdmod);
+	    continue;
+	}
+
+	(*blitrow_compute) (&row);
+	if (fill)
+	    fc = blitrow_fill (blitrow_dbuf, n, ife, !!(j->con1 & 0x4));
+	lastd = blitrow_dbuf[n - 1];
+	if (dp) {
+	    totald |= blitrow_scatter (dp, blitrow_dbuf, n, desc);
+	    dp += dir * (2 * n + b->bltdmod);
+	} else {
+	    for (k = 0; k < n; k++)
+		totald |= blitrow_dbuf[k];
+	}
+    }
+
+    if (mt == 0x00 && !fill)
+	return;
+    if (totald)
+	b->blitzero = 0;
+    if (j->useb)
+	b->bltbhold = lastb;
+    if (j->usec)
+	b->bltcdat = lastc;
+    if (fill) {
+	b->bltddat = lastd;
+	j->fc = fc;
+    }
+}
+
+/* Hands the blitter state left by blitrow_run back to the caller.  */
+void blitrow_finish (struct blitrow_job *j, struct bltinfo *b, int *fcp)
+{
+    b->blitzero = j->info.blitzero;
+    b->bltbhold = j->info.bltbhold;
+    b->bltcdat = j->info.bltcdat;
+    b->bltddat = j->info.bltddat;
+    *fcp = j->fc;
+}
+
+int blitrow_dofast (uaecptr pta, uaecptr ptb, uaecptr ptc, uaecptr ptd,
+		    struct bltinfo *b, uae_u16 con0, uae_u16 con1, int desc, int *fcp)
+{
+    struct blitrow_job j;
+
+    j.pta = pta;
+    j.ptb = ptb;
+    j.ptc = ptc;
+    j.ptd = ptd;
+    j.info = *b;
+    j.con0 = con0;
+    j.con1 = con1;
+    j.desc = desc;
+    j.fc = *fcp;
+    if (!blitrow_prepare (&j))
+	return 0;
+    blitrow_run (&j);
+    if (j.dend)
+	chipmem_wgen_range (j.dlo, j.dend - 1);
+    blitrow_finish (&j, b, fcp);
+    return 1;
+}
@@ -0,0 +1,75 @@
+/*
+ * Row kernel for blitrow.cpp, included once per instruction set with
+ * BRNAME set to the function name and BRVEC_BYTES to the vector width.
+ *
+ * All buffers hold host order words in processing order (descending blits
+ * run backwards through memory, but forwards through the buffers).  Index 0
+ * of the A and B buffers is the word carried over from the previous row, so
+ * the shifter can always look one word back.
+ */
+
+typedef uae_u16 blitrow_vec __attribute__ ((vector_size (BRVEC_BYTES)));
+#define BRVEC_LANES (BRVEC_BYTES / 2)
+
+static __inline__ blitrow_vec blitrow_splat (unsigned int v)
+{
+    uae_u16 t[BRVEC_LANES];
+    blitrow_vec r;
+    int i;
+
+    for (i = 0; i < BRVEC_LANES; i++)
+	t[i] = v;
+    memcpy (&r, t, sizeof r);
+    return r;
+}
+
+static __inline__ blitrow_vec blitrow_load (const uae_u16 *p)
+{
+    blitrow_vec r;
+    memcpy (&r, p, sizeof r);
+    return r;
+}
+
+void BRNAME (struct blitrow_row *r)
+{
+    int k, n = r->n;
+    blitrow_vec as = blitrow_splat (r->ashift), ar = blitrow_splat (16 - r->ashift);
+    blitrow_vec bs = blitrow_splat (r->bshift), br = blitrow_splat (16 - r->bshift);
+
+    /* Shift counts of 16 are undefined for 16 bit lanes, so unshifted
+       channels simply take the current word.  */
+#define BR_SHIFTED(buf, s, rs, sh) \
+    (!(sh) ? blitrow_load (buf + 1 + k) \
+     : r->desc ? (blitrow_load (buf + 1 + k) << s) | (blitrow_load (buf + k) >> rs) \
+     : (blitrow_load (buf + 1 + k) >> s) | (blitrow_load (buf + k) << rs))
+
+    switch (r->mt) {
+    case 0xF0:
+	for (k = 0; k < n; k += BRVEC_LANES) {
+	    blitrow_vec d = BR_SHIFTED (r->abuf, as, ar, r->ashift);
+	    memcpy (r->dbuf + k, &d, sizeof d);
+	}
+	break;
+    case 0xCC:
+	for (k = 0; k < n; k += BRVEC_LANES) {
+	    blitrow_vec d = BR_SHIFTED (r->bbuf, bs, br, r->bshift);
+	    memcpy (r->dbuf + k, &d, sizeof d);
+	}
+	break;
+    case 0xCA:
+	for (k = 0; k < n; k += BRVEC_LANES) {
+	    blitrow_vec a = BR_SHIFTED (r->abuf, as, ar, r->ashift);
+	    blitrow_vec b = BR_SHIFTED (r->bbuf, bs, br, r->bshift);
+	    blitrow_vec c = blitrow_load (r->cbuf + k);
+	    blitrow_vec d = c ^ (a & (b ^ c));
+	    memcpy (r->dbuf + k, &d, sizeof d);
+	}
+	break;
+    default:
+	memset (r->dbuf, 0, n * sizeof (uae_u16));
+	break;
+    }
+#undef BR_SHIFTED
+}
+
+#undef BRVEC_LANES
@@ -0,0 +1,20 @@
+ /*
+  * UAE - The Un*x Amiga Emulator
+  *
+  * NEON build of the blitter row kernel, only compiled for armeabi-v7a
+  * and only used when the CPU reports NEON (see blitrow_init).
+  */
+
+#include "sysconfig.h"
+#include "sysdeps.h"
+
+#include "config.h"
+#include "uae.h"
+#include "memorya.h"
+#include "custom.h"
+#include "blitter.h"
+#include "blitrow.h"
+
+#define BRVEC_BYTES 16
+#define BRNAME blitrow_compute_neon
+#include "blitrow_kernel.h"
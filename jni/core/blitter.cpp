@@ -22,8 +22,14 @@
 #include "custom.h"
 #include "m68k/m68k_intrf.h"
 #include "blitter.h"
+#include "blitrow.h"
 #include "blit.h"
 
+#ifdef USE_BLITTER_THREAD
+#include <pthread.h>
+#include <sys/time.h>
+#endif
+
 #ifdef USE_BLITTER_EXTRA_INLINE
 #define _INLINE_ __inline__
 #else
@@ -122,39 +128,11 @@ static _INLINE_ void print_bltinfo(struct bltinfo *_GCCRES_ b)
 }
 #endif
 
-static _INLINE_ void blitter_dofast(void)
+static _INLINE_ void blitter_dofast_words(uaecptr bltadatptr, uaecptr bltbdatptr, uaecptr bltcdatptr, uaecptr bltddatptr)
 {
     int i,j;
-    uaecptr bltadatptr = 0, bltbdatptr = 0, bltcdatptr = 0, bltddatptr = 0;
     uae_u8 mt = bltcon0 & 0xFF;
 
-    blit_masktable[BLITTER_MAX_WORDS - 1] = blt_info.bltafwm;
-    blit_masktable[BLITTER_MAX_WORDS - blt_info.hblitsize] &= blt_info.bltalwm;
-
-#ifdef DEBUG_BLITTER
-    dbgf("blitter_dofast bltafwm=0x%X, bltcon0=0x%X\n",blt_info.bltafwm,bltcon0);
-#endif
-    if (bltcon0 & 0x800) {
-	bltadatptr = bltapt;
-	bltapt += ((blt_info.hblitsize*2) + blt_info.bltamod)*blt_info.vblitsize;
-    }
-    if (bltcon0 & 0x400) {
-	bltbdatptr = bltbpt;
-	bltbpt += ((blt_info.hblitsize*2) + blt_info.bltbmod)*blt_info.vblitsize;
-    }
-    if (bltcon0 & 0x200) {
-	bltcdatptr = bltcpt;
-	bltcpt += ((blt_info.hblitsize*2) + blt_info.bltcmod)*blt_info.vblitsize;
-    }
-    if (bltcon0 & 0x100) {
-	bltddatptr = bltdpt;
-	bltdpt += ((blt_info.hblitsize*2) + blt_info.bltdmod)*blt_info.vblitsize;
-    }
-
-#ifdef DEBUG_BLITTER
-    print_bltinfo(&blt_info);
-#endif
-
     if (blitfunc_dofast[mt] && !blitfill)
     {
 #ifdef DEBUG_BLITTER
@@ -220,45 +198,13 @@ static _INLINE_ void blitter_dofast(void)
 	if (dstp) CHIPMEM_WPUT (dstp, blt_info.bltddat);
 	blt_info.bltbhold = blitbhold;
     }
-    blit_masktable[BLITTER_MAX_WORDS - 1] = 0xFFFF;
-    blit_masktable[BLITTER_MAX_WORDS - blt_info.hblitsize] = 0xFFFF;
-
-    bltstate = BLT_done;
 }
 
-static _INLINE_ void blitter_dofast_desc(void)
+static _INLINE_ void blitter_dofast_desc_words(uaecptr bltadatptr, uaecptr bltbdatptr, uaecptr bltcdatptr, uaecptr bltddatptr)
 {
     int i,j;
-    uaecptr bltadatptr = 0, bltbdatptr = 0, bltcdatptr = 0, bltddatptr = 0;
     uae_u8 mt = bltcon0 & 0xFF;
 
-    blit_masktable[BLITTER_MAX_WORDS - 1] = blt_info.bltafwm;
-    blit_masktable[BLITTER_MAX_WORDS - blt_info.hblitsize] &= blt_info.bltalwm;
-
-#ifdef DEBUG_BLITTER
-    dbgf("blitter_dofast_desc bltafwm=0x%X, bltcon0=0x%X\n",blt_info.bltafwm,bltcon0);
-#endif
-    if (bltcon0 & 0x800) {
-	bltadatptr = bltapt;
-	bltapt -= ((blt_info.hblitsize*2) + blt_info.bltamod)*blt_info.vblitsize;
-    }
-    if (bltcon0 & 0x400) {
-	bltbdatptr = bltbpt;
-	bltbpt -= ((blt_info.hblitsize*2) + blt_info.bltbmod)*blt_info.vblitsize;
-    }
-    if (bltcon0 & 0x200) {
-	bltcdatptr = bltcpt;
-	bltcpt -= ((blt_info.hblitsize*2) + blt_info.bltcmod)*blt_info.vblitsize;
-    }
-    if (bltcon0 & 0x100) {
-	bltddatptr = bltdpt;
-	bltdpt -= ((blt_info.hblitsize*2) + blt_info.bltdmod)*blt_info.vblitsize;
-    }
-
-#ifdef DEBUG_BLITTER
-    print_bltinfo(&blt_info);
-#endif
-
     if (blitfunc_dofast_desc[mt] && !blitfill)
     {
 #ifdef DEBUG_BLITTER
@@ -323,6 +269,276 @@ static _INLINE_ void blitter_dofast_desc(void)
 	if (dstp) CHIPMEM_WPUT (dstp, blt_info.bltddat);
 	blt_info.bltbhold = blitbhold;
     }
+}
+
+#ifdef DEBUG_BLITTER_VERIFY
+/* Runs a blit through the row kernels and again through the word tables on
+   the same chip memory, and complains about any difference.  */
+static void blitter_verify(uaecptr bltadatptr, uaecptr bltbdatptr, uaecptr bltcdatptr, uaecptr bltddatptr, int desc)
+{
+    static uae_u8 *before, *after;
+    struct bltinfo info_before = blt_info, info_after;
+    int fc_before = blitfc, fc_after;
+
+    if (!before) {
+	before = (uae_u8 *)malloc (0x200000);
+	after = (uae_u8 *)malloc (0x200000);
+    }
+    memcpy (before, chipmemory, allocated_chipmem);
+    if (!blitrow_dofast (bltadatptr, bltbdatptr, bltcdatptr, bltddatptr, &blt_info, bltcon0, bltcon1, desc, &blitfc)) {
+	if (desc)
+	    blitter_dofast_desc_words (bltadatptr, bltbdatptr, bltcdatptr, bltddatptr);
+	else
+	    blitter_dofast_words (bltadatptr, bltbdatptr, bltcdatptr, bltddatptr);
+	return;
+    }
+    memcpy (after, chipmemory, allocated_chipmem);
+    info_after = blt_info;
+    fc_after = blitfc;
+
+    memcpy (chipmemory, before, allocated_chipmem);
+    blt_info = info_before;
+    blitfc = fc_before;
+    if (desc)
+	blitter_dofast_desc_words (bltadatptr, bltbdatptr, bltcdatptr, bltddatptr);
+    else
+	blitter_dofast_words (bltadatptr, bltbdatptr, bltcdatptr, bltddatptr);
+
+    if (memcmp (after, chipmemory, allocated_chipmem) || memcmp (&info_after, &blt_info, sizeof blt_info)
+	|| (bltcon1 & 0x18 && fc_after != blitfc))
+	__android_log_print (ANDROID_LOG_ERROR, "UAE", "blitter: row kernel mismatch, bltcon0=%04x bltcon1=%04x size=%dx%d a=%x b=%x c=%x d=%x",
+			     bltcon0, bltcon1, blt_info.hblitsize, blt_info.vblitsize,
+			     bltadatptr, bltbdatptr, bltcdatptr, bltddatptr);
+}
+#endif
+
+#ifdef USE_BLITTER_THREAD
+/*
+ * Experimental: with blitter nasty off, blits the row kernels can do are
+ * run on a worker thread.  The emulation still retires the blit at the
+ * usual time (BBUSY drops, the interrupt comes); only the host side work
+ * is still in flight.  Chip memory accesses inside the blit's ranges,
+ * bitplane fetches from them, writes to the blitter registers, DMACONR
+ * reads and the next blit wait for it, so the results are the same as
+ * doing it right away.  Clear blitter_thread_enabled to get exactly the
+ * old single threaded behaviour.
+ */
+
+/* Anything smaller is done faster than the thread can be woken.  */
+#define BLITTER_THREAD_MIN_WORDS 512
+
+int blitter_thread_enabled = 1, blitter_thread_busy = 0;
+uae_u32 blitter_thread_lo, blitter_thread_end, blitter_thread_dlo, blitter_thread_dend;
+
+static struct blitrow_job blitter_job;
+static int blitter_thread_running = 0, blitter_thread_queued = 0, blitter_thread_done = 0;
+static pthread_mutex_t blitter_thread_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t blitter_thread_cond = PTHREAD_COND_INITIALIZER;
+
+static unsigned blitter_thread_jobs, blitter_thread_ready;
+static unsigned blitter_thread_stalls[BLTSYNC_MAX], blitter_thread_stall_us;
+
+static void *blitter_thread_main (void *arg)
+{
+    pthread_mutex_lock (&blitter_thread_lock);
+    for (;;) {
+	while (!blitter_thread_queued)
+	    pthread_cond_wait (&blitter_thread_cond, &blitter_thread_lock);
+	blitter_thread_queued = 0;
+	pthread_mutex_unlock (&blitter_thread_lock);
+
+	blitrow_run (&blitter_job);
+
+	pthread_mutex_lock (&blitter_thread_lock);
+	blitter_thread_done = 1;
+	pthread_cond_broadcast (&blitter_thread_cond);
+    }
+    return NULL;
+}
+
+static int blitter_thread_start (uaecptr bltadatptr, uaecptr bltbdatptr, uaecptr bltcdatptr, uaecptr bltddatptr, int desc)
+{
+    struct blitrow_job *j = &blitter_job;
+
+    if (!blitter_thread_enabled || dmaen (DMA_BLITPRI)
+	|| blt_info.hblitsize * blt_info.vblitsize < BLITTER_THREAD_MIN_WORDS)
+	return 0;
+    j->pta = bltadatptr;
+    j->ptb = bltbdatptr;
+    j->ptc = bltcdatptr;
+    j->ptd = bltddatptr;
+    j->info = blt_info;
+    j->con0 = bltcon0;
+    j->con1 = bltcon1;
+    j->desc = desc;
+    j->fc = blitfc;
+    if (!blitrow_prepare (j))
+	return 0;
+
+    if (!blitter_thread_running) {
+	pthread_t thr;
+	if (pthread_create (&thr, NULL, blitter_thread_main, NULL) != 0) {
+	    write_log ("Blitter: can't start worker thread, staying synchronous\n");
+	    blitter_thread_enabled = 0;
+	    return 0;
+	}
+	pthread_detach (thr);
+	blitter_thread_running = 1;
+    }
+
+    /* Whoever caches chip memory contents has to look again now, and will
+       then find the range busy.  */
+    if (j->dend)
+	chipmem_wgen_range (j->dlo, j->dend - 1);
+    blitter_thread_lo = j->lo;
+    blitter_thread_end = j->end;
+    blitter_thread_dlo = j->dlo;
+    blitter_thread_dend = j->dend;
+    chipmem_blit_guard (j->lo, j->end, j->dlo, j->dend);
+    blitter_thread_busy = 1;
+    blitter_thread_jobs++;
+
+    pthread_mutex_lock (&blitter_thread_lock);
+    blitter_thread_done = 0;
+    blitter_thread_queued = 1;
+    pthread_cond_broadcast (&blitter_thread_cond);
+    pthread_mutex_unlock (&blitter_thread_lock);
+    return 1;
+}
+
+void blitter_thread_finish (int cause)
+{
+    if (!blitter_thread_busy)
+	return;
+
+    pthread_mutex_lock (&blitter_thread_lock);
+    if (blitter_thread_done)
+	blitter_thread_ready++;
+    else {
+	struct timeval t0, t1;
+	gettimeofday (&t0, NULL);
+	while (!blitter_thread_done)
+	    pthread_cond_wait (&blitter_thread_cond, &blitter_thread_lock);
+	gettimeofday (&t1, NULL);
+	blitter_thread_stalls[cause]++;
+	blitter_thread_stall_us += (t1.tv_sec - t0.tv_sec) * 1000000 + (t1.tv_usec - t0.tv_usec);
+    }
+    pthread_mutex_unlock (&blitter_thread_lock);
+
+    blitrow_finish (&blitter_job, &blt_info, &blitfc);
+    blitter_thread_busy = 0;
+    blitter_thread_lo = blitter_thread_end = 0;
+    blitter_thread_dlo = blitter_thread_dend = 0;
+    chipmem_blit_guard (0, 0, 0, 0);
+}
+
+/* Called once a frame, logs every 50 frames.  */
+void blitter_thread_stats (void)
+{
+    static unsigned frames = 0;
+    unsigned stalls = 0;
+    int i;
+
+    if (++frames < 50)
+	return;
+    for (i = 0; i < BLTSYNC_MAX; i++)
+	stalls += blitter_thread_stalls[i];
+    __android_log_print (ANDROID_LOG_INFO, "UAE",
+	       "blitter thread: %u blits, %u done in time, %u stalls (%u us): chip %u display %u regs %u dmaconr %u blit %u other %u",
+	       blitter_thread_jobs, blitter_thread_ready, stalls, blitter_thread_stall_us,
+	       blitter_thread_stalls[BLTSYNC_CHIP], blitter_thread_stalls[BLTSYNC_DISPLAY],
+	       blitter_thread_stalls[BLTSYNC_REGS], blitter_thread_stalls[BLTSYNC_DMACONR],
+	       blitter_thread_stalls[BLTSYNC_BLIT], blitter_thread_stalls[BLTSYNC_OTHER]);
+    frames = 0;
+    blitter_thread_jobs = blitter_thread_ready = blitter_thread_stall_us = 0;
+    memset (blitter_thread_stalls, 0, sizeof blitter_thread_stalls);
+}
+#else
+#define blitter_thread_start(a, b, c, d, desc) 0
+#endif
+
+static _INLINE_ void blitter_dofast(void)
+{
+    uaecptr bltadatptr = 0, bltbdatptr = 0, bltcdatptr = 0, bltddatptr = 0;
+
+    blit_masktable[BLITTER_MAX_WORDS - 1] = blt_info.bltafwm;
+    blit_masktable[BLITTER_MAX_WORDS - blt_info.hblitsize] &= blt_info.bltalwm;
+
+#ifdef DEBUG_BLITTER
+    dbgf("blitter_dofast bltafwm=0x%X, bltcon0=0x%X\n",blt_info.bltafwm,bltcon0);
+#endif
+    if (bltcon0 & 0x800) {
+	bltadatptr = bltapt;
+	bltapt += ((blt_info.hblitsize*2) + blt_info.bltamod)*blt_info.vblitsize;
+    }
+    if (bltcon0 & 0x400) {
+	bltbdatptr = bltbpt;
+	bltbpt += ((blt_info.hblitsize*2) + blt_info.bltbmod)*blt_info.vblitsize;
+    }
+    if (bltcon0 & 0x200) {
+	bltcdatptr = bltcpt;
+	bltcpt += ((blt_info.hblitsize*2) + blt_info.bltcmod)*blt_info.vblitsize;
+    }
+    if (bltcon0 & 0x100) {
+	bltddatptr = bltdpt;
+	bltdpt += ((blt_info.hblitsize*2) + blt_info.bltdmod)*blt_info.vblitsize;
+    }
+
+#ifdef DEBUG_BLITTER
+    print_bltinfo(&blt_info);
+#endif
+
+#ifdef DEBUG_BLITTER_VERIFY
+    blitter_verify (bltadatptr, bltbdatptr, bltcdatptr, bltddatptr, 0);
+#else
+    if (!blitter_thread_start (bltadatptr, bltbdatptr, bltcdatptr, bltddatptr, 0)
+	&& !blitrow_dofast (bltadatptr, bltbdatptr, bltcdatptr, bltddatptr, &blt_info, bltcon0, bltcon1, 0, &blitfc))
+	blitter_dofast_words (bltadatptr, bltbdatptr, bltcdatptr, bltddatptr);
+#endif
+    blit_masktable[BLITTER_MAX_WORDS - 1] = 0xFFFF;
+    blit_masktable[BLITTER_MAX_WORDS - blt_info.hblitsize] = 0xFFFF;
+
+    bltstate = BLT_done;
+}
+
+static _INLINE_ void blitter_dofast_desc(void)
+{
+    uaecptr bltadatptr = 0, bltbdatptr = 0, bltcdatptr = 0, bltddatptr = 0;
+
+    blit_masktable[BLITTER_MAX_WORDS - 1] = blt_info.bltafwm;
+    blit_masktable[BLITTER_MAX_WORDS - blt_info.hblitsize] &= blt_info.bltalwm;
+
+#ifdef DEBUG_BLITTER
+    dbgf("blitter_dofast_desc bltafwm=0x%X, bltcon0=0x%X\n",blt_info.bltafwm,bltcon0);
+#endif
+    if (bltcon0 & 0x800) {
+	bltadatptr = bltapt;
+	bltapt -= ((blt_info.hblitsize*2) + blt_info.bltamod)*blt_info.vblitsize;
+    }
+    if (bltcon0 & 0x400) {
+	bltbdatptr = bltbpt;
+	bltbpt -= ((blt_info.hblitsize*2) + blt_info.bltbmod)*blt_info.vblitsize;
+    }
+    if (bltcon0 & 0x200) {
+	bltcdatptr = bltcpt;
+	bltcpt -= ((blt_info.hblitsize*2) + blt_info.bltcmod)*blt_info.vblitsize;
+    }
+    if (bltcon0 & 0x100) {
+	bltddatptr = bltdpt;
+	bltdpt -= ((blt_info.hblitsize*2) + blt_info.bltdmod)*blt_info.vblitsize;
+    }
+
+#ifdef DEBUG_BLITTER
+    print_bltinfo(&blt_info);
+#endif
+
+#ifdef DEBUG_BLITTER_VERIFY
+    blitter_verify (bltadatptr, bltbdatptr, bltcdatptr, bltddatptr, 1);
+#else
+    if (!blitter_thread_start (bltadatptr, bltbdatptr, bltcdatptr, bltddatptr, 1)
+	&& !blitrow_dofast (bltadatptr, bltbdatptr, bltcdatptr, bltddatptr, &blt_info, bltcon0, bltcon1, 1, &blitfc))
+	blitter_dofast_desc_words (bltadatptr, bltbdatptr, bltcdatptr, bltddatptr);
+#endif
     blit_masktable[BLITTER_MAX_WORDS - 1] = 0xFFFF;
     blit_masktable[BLITTER_MAX_WORDS - blt_info.hblitsize] = 0xFFFF;
 
@@ -527,6 +743,7 @@ static _INLINE_ void actually_do_blit(void)
 #ifdef DEBUG_BLITTER
     dbgf("actually_do_blit -> blitline=0x%X\n",blitline);
 #endif
+    blitter_thread_sync (BLTSYNC_BLIT);
     if (blitline) {
 	do {
 	    blitter_read();
@@ -640,6 +857,7 @@ void maybe_blit (int modulo)
 #ifdef DEBUG_BLITTER
     dbgf("maybe_blit (%i) -> bltstate=0x%X\n",modulo,bltstate);
 #endif
+    blitter_thread_sync (BLTSYNC_REGS);
     if (bltstate == BLT_done)
 	return;
 
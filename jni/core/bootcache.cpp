@@ -0,0 +1,239 @@
+ /*
+  * UAE - The Un*x Amiga Emulator
+  *
+  * Post-boot snapshot cache
+  *
+  * A cold start goes through the Kickstart reset, the memory checks and
+  * the insert-disk screen before the disk in df0: is even read.  All of
+  * that comes out the same for a given ROM and memory, chipset and CPU
+  * setup, so it is done once: the emulation starts with empty drives, and
+  * when the CPU has sat in STOP for BOOTCACHE_IDLE_FRAMES frames the
+  * Kickstart is waiting for a disk.  That state is saved, then the disks
+  * go in.  On later starts the state is restored at the first vsync and
+  * the disks go in right away.
+  *
+  * The file name holds the ROM CRC and the settings it depends on, so a
+  * different ROM (or the same file with other contents) or a change of
+  * memory, video standard or CPU setup simply misses.  Capturing a new one
+  * deletes the others, on a thread of its own.
+  *
+  * Without a Kickstart ROM the replacement in ersatz.cpp boots straight
+  * from df0: and never stops, so then the disks go in as usual.
+  */
+
+#include "sysconfig.h"
+#include "sysdeps.h"
+
+#include "config.h"
+#include "uae.h"
+#include "options.h"
+#include "memorya.h"
+#include "custom.h"
+#include "m68k/m68k_intrf.h"
+#include "disk.h"
+#include "savestate.h"
+#include "bootcache.h"
+
+#include <sys/time.h>
+#include <dirent.h>
+#include <pthread.h>
+#include <zlib.h>
+
+#ifdef USE_FAME_CORE
+#define BOOTCACHE_CORE "fame"
+#else
+#define BOOTCACHE_CORE "uae"
+#endif
+
+extern uae_u8 *kickmemory;
+extern int mainMenu_ntsc;
+
+enum { BOOTCACHE_OFF, BOOTCACHE_START, BOOTCACHE_RESTORE, BOOTCACHE_WAIT };
+
+static int bootcache_state = BOOTCACHE_OFF;
+static char bootcache_dir[256];
+static char bootcache_file[320];
+/* the disks to insert once booted */
+static char bootcache_df[NUM_DRIVES][128];
+static uae_u8 *bootcache_data = 0;
+static int bootcache_frames = 0, bootcache_idle = 0;
+static struct timeval bootcache_launch;
+
+static long bootcache_ms (void)
+{
+    struct timeval now;
+
+    gettimeofday (&now, NULL);
+    return (now.tv_sec - bootcache_launch.tv_sec) * 1000 + (now.tv_usec - bootcache_launch.tv_usec) / 1000;
+}
+
+/* Called before the emulation starts, after the preferences are set.
+   An empty dir boots as usual.  */
+void bootcache_init (char *dir)
+{
+    int i;
+
+    bootcache_state = BOOTCACHE_OFF;
+    if (!dir[0])
+	return;
+    strncpy (bootcache_dir, dir, sizeof (bootcache_dir) - 1);
+    for (i = 0; i < NUM_DRIVES; i++) {
+	strcpy (bootcache_df[i], prefs_df[i]);
+	prefs_df[i][0] = 0;
+    }
+    gettimeofday (&bootcache_launch, NULL);
+    bootcache_state = BOOTCACHE_START;
+}
+
+/* Called once the ROM is loaded, before the drives are set up */
+void bootcache_kickstart_loaded (void)
+{
+    int i;
+
+    if (bootcache_state != BOOTCACHE_START || !ersatzkickfile)
+	return;
+    for (i = 0; i < NUM_DRIVES; i++)
+	strcpy (prefs_df[i], bootcache_df[i]);
+    bootcache_state = BOOTCACHE_OFF;
+    __android_log_print (ANDROID_LOG_INFO, "UAE", "boot cache: no Kickstart ROM, not used");
+}
+
+static void bootcache_name (void)
+{
+    uae_u32 crc = crc32 (0, kickmemory, kickmem_size);
+
+    sprintf (bootcache_file, "%s/boot-%d-%08x-%dk-%dk-%s-%s%d.asf", bootcache_dir, BOOTCACHE_VERSION,
+	     crc, allocated_chipmem >> 10, allocated_bogomem >> 10,
+	     mainMenu_ntsc ? "ntsc" : "pal", BOOTCACHE_CORE, m68k_speed);
+}
+
+static long bootcache_read (void)
+{
+    FILE *f = fopen (bootcache_file, "rb");
+    long size;
+
+    if (!f)
+	return 0;
+    fseek (f, 0, SEEK_END);
+    size = ftell (f);
+    fseek (f, 0, SEEK_SET);
+    bootcache_data = (uae_u8 *)malloc (size > 0 ? size : 1);
+    if (bootcache_data && fread (bootcache_data, 1, size, f) == (size_t)size) {
+	fclose (f);
+	return size;
+    }
+    fclose (f);
+    free (bootcache_data);
+    bootcache_data = 0;
+    return 0;
+}
+
+/* Drops the snapshots taken for another ROM or setup, keep being the one
+   just taken */
+static void *bootcache_prune (void *keep)
+{
+    DIR *d = opendir (bootcache_dir);
+    struct dirent *e;
+    char name[320];
+
+    if (!d) {
+	free (keep);
+	return NULL;
+    }
+    while ((e = readdir (d)) != NULL) {
+	size_t n = strlen (e->d_name);
+
+	/* not the .tmp one still being written */
+	if (strncmp (e->d_name, "boot-", 5) || n < 4 || strcmp (e->d_name + n - 4, ".asf"))
+	    continue;
+	sprintf (name, "%s/%s", bootcache_dir, e->d_name);
+	if (strcmp (name, (char *)keep))
+	    unlink (name);
+    }
+    closedir (d);
+    free (keep);
+    return NULL;
+}
+
+static void bootcache_prune_start (void)
+{
+    char *keep = strdup (bootcache_file);
+    pthread_attr_t attr;
+    pthread_t thread;
+
+    if (!keep)
+	return;
+    pthread_attr_init (&attr);
+    pthread_attr_setdetachstate (&attr, PTHREAD_CREATE_DETACHED);
+    if (pthread_create (&thread, &attr, bootcache_prune, keep))
+	free (keep);
+    pthread_attr_destroy (&attr);
+}
+
+static void bootcache_insert_disks (void)
+{
+    int i;
+
+    /* the drives are empty, so they go in without the disk change delay */
+    for (i = 0; i < NUM_DRIVES; i++) {
+	if (!bootcache_df[i][0])
+	    continue;
+	strcpy (prefs_df[i], bootcache_df[i]);
+	strcpy (changed_df[i], bootcache_df[i]);
+	disk_insert (i, prefs_df[i]);
+    }
+    bootcache_state = BOOTCACHE_OFF;
+}
+
+/* Called at vsync, after any pending state save or load */
+void bootcache_vsync (void)
+{
+    long len;
+
+    switch (bootcache_state) {
+    case BOOTCACHE_START:
+	bootcache_name ();
+	len = bootcache_read ();
+	if (len && restore_from_buffer (bootcache_data, len)) {
+	    bootcache_state = BOOTCACHE_RESTORE;
+	    return;
+	}
+	if (len) {
+	    /* unusable, replaced by the next capture */
+	    free (bootcache_data);
+	    bootcache_data = 0;
+	    unlink (bootcache_file);
+	}
+	__android_log_print (ANDROID_LOG_INFO, "UAE", "boot cache: no %s, booting", bootcache_file);
+	bootcache_frames = bootcache_idle = 0;
+	bootcache_state = BOOTCACHE_WAIT;
+	break;
+
+    case BOOTCACHE_RESTORE:
+	if (savestate_state)
+	    return;
+	free (bootcache_data);
+	bootcache_data = 0;
+	bootcache_insert_disks ();
+	__android_log_print (ANDROID_LOG_INFO, "UAE", "boot cache: restored, disks in after %ld ms", bootcache_ms ());
+	break;
+
+    case BOOTCACHE_WAIT:
+	/* a pause has to autosave the disks as well */
+	if (pause_program < 0 || ++bootcache_frames >= BOOTCACHE_MAX_FRAMES) {
+	    bootcache_insert_disks ();
+	    __android_log_print (ANDROID_LOG_INFO, "UAE", "boot cache: no idle Kickstart after %d frames", bootcache_frames);
+	    return;
+	}
+	bootcache_idle = (_68k_spcflags & SPCFLAG_STOP) ? bootcache_idle + 1 : 0;
+	if (bootcache_idle < BOOTCACHE_IDLE_FRAMES)
+	    return;
+	custom_prepare_savestate ();
+	save_state (bootcache_file, "Boot");
+	bootcache_prune_start ();
+	bootcache_insert_disks ();
+	__android_log_print (ANDROID_LOG_INFO, "UAE", "boot cache: Kickstart idle after %d frames, %ld ms, saved",
+			     bootcache_frames, bootcache_ms ());
+	break;
+    }
+}
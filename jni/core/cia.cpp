@@ -27,6 +27,7 @@
 #include "keybuf.h"
 #include "gui.h"
 #include "savestate.h"
+#include "joystick.h"
 
 
 #define DIV10 (5*CYCLE_UNIT) /* Yes, a bad identifier. */
@@ -71,6 +72,7 @@ static unsigned int ciaapra, ciaaprb, ciaadra, ciaadrb, ciaasdr;
 static unsigned int ciabprb, ciabdra, ciabdrb, ciabsdr;
 static int div10;
 static int kbstate, kback, ciaasdr_unread = 0;
+static unsigned int keytime = 0, sleepyhead = 0;
 
 
 static __inline__ void setclr (unsigned int *_GCCRES_ p, unsigned int val)
@@ -261,10 +263,37 @@ void cia_diskindex (void)
     RethinkICRB();
 }
 
+/* Frames emulated ahead (see runahead.cpp) feed keys to the Amiga as
+   well.  The handshake and the keyboard buffer are not in the snapshot,
+   so the real frame takes them back from here.  */
+static struct {
+    int kbstate, kback, ciaasdr_unread, keybuf;
+    unsigned int keytime, sleepyhead;
+} cia_ahead;
+
+void CIA_ahead_begin (void)
+{
+    cia_ahead.kbstate = kbstate;
+    cia_ahead.kback = kback;
+    cia_ahead.ciaasdr_unread = ciaasdr_unread;
+    cia_ahead.keybuf = keybuf_mark ();
+    cia_ahead.keytime = keytime;
+    cia_ahead.sleepyhead = sleepyhead;
+}
+
+void CIA_ahead_end (void)
+{
+    kbstate = cia_ahead.kbstate;
+    kback = cia_ahead.kback;
+    ciaasdr_unread = cia_ahead.ciaasdr_unread;
+    keybuf_rewind (cia_ahead.keybuf);
+    keytime = cia_ahead.keytime;
+    sleepyhead = cia_ahead.sleepyhead;
+}
+
 void CIA_hsync_handler (void)
 {
     uae4all_prof_start(5);
-    static unsigned int keytime = 0, sleepyhead = 0;
 
     if (ciabtodon)
 	ciabtod++;
@@ -334,6 +363,7 @@ static uae_u8 ReadCIAA (unsigned int addr)
 
     switch (addr & 0xf) {
     case 0:
+	joystick_read (3);
 	tmp = (DISK_status() & 0x3C);
 	if (!buttonstate[0])
 	    tmp |= 0x40;
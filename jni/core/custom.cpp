@@ -47,6 +47,7 @@ extern signed int IO_CYCLE;
 #include "cia.h"
 #include "disk.h"
 #include "blitter.h"
+#include "blitrow.h"
 #include "xwin.h"
 #include "joystick.h"
 #include "audio.h"
@@ -57,6 +58,7 @@ extern signed int IO_CYCLE;
 #include "gui.h"
 #include "drawing.h"
 #include "savestate.h"
+#include "runahead.h"
 
 
 #ifdef STOP_WHEN_COPPER
@@ -298,6 +300,195 @@ static struct cop_record cop_record[2][NR_COPPER_RECORDS];
 static int nr_cop_records[2];
 static int curr_cop_set;
 
+/*
+ * Copper list cache
+ *
+ * Nearly every program runs the very same copper list each frame, so the
+ * instruction words are kept around in decoded form, keyed by the chip
+ * offset the list starts at.  An entry stays valid for as long as the 4KB
+ * chip blocks it covers keep the write generation they had when it was
+ * built; the 64KB chip pages it lives in are write guarded, so CPU and
+ * disk DMA writes go through the counting chipmem handlers like the
+ * blitter's do.  Lists that keep getting rewritten are handed back to the
+ * plain interpreter for a while.
+ */
+
+#define COPPER_CACHE_ENTRIES 4
+#define COPPER_CACHE_INSNS 1024
+#define COPPER_CACHE_MAX_REBUILDS 3
+#define COPPER_CACHE_RETRY_FRAMES 250
+
+struct copper_insn {
+    uae_u16 i1, i2;
+    /* Number of harmless MOVEs starting with this one, and the register
+       types they touch, so that predict_copper can step over them.  */
+    uae_u16 run;
+    uae_u16 run_regtypes;
+};
+
+struct copper_cache_entry {
+    uae_u32 start;
+    int ninsns;
+    uae_u32 gen[2];
+    int used;
+    int rebuilds;
+    int retry_frame;
+    uae_u32 lastuse;
+    struct copper_insn insn[COPPER_CACHE_INSNS];
+};
+
+static struct copper_cache_entry copper_cache[COPPER_CACHE_ENTRIES];
+static struct copper_cache_entry *copper_cache_cur;
+static int copper_cache_nguards;
+static uae_u32 copper_cache_guards[COPPER_CACHE_ENTRIES * 2];
+
+static __inline__ int dangerous_reg (int reg);
+
+static __inline__ int copper_cache_valid (struct copper_cache_entry *e)
+{
+    uae_u32 blk = e->start >> CHIPMEM_WGEN_SHIFT;
+    return e->gen[0] == chipmem_wgen[blk] && e->gen[1] == chipmem_wgen[blk + 1];
+}
+
+/* Returns the cached instruction starting at ip, or NULL if the current
+   list isn't cached or has been written to since.  */
+static __inline__ struct copper_insn *copper_cache_lookup (uaecptr ip)
+{
+    struct copper_cache_entry *e = copper_cache_cur;
+    uae_u32 offs;
+
+    if (!e)
+	return NULL;
+    offs = (ip & 0x000FFFFF & chipmem_mask) - e->start;
+    if ((offs & 3) || offs >= (uae_u32)(e->ninsns << 2))
+	return NULL;
+    if (!copper_cache_valid (e)) {
+	copper_cache_cur = NULL;
+	return NULL;
+    }
+    return &e->insn[offs >> 2];
+}
+
+static void copper_cache_update_guards (void)
+{
+    uae_u32 pages[COPPER_CACHE_ENTRIES * 2];
+    int i, j, n = 0;
+
+    for (i = 0; i < COPPER_CACHE_ENTRIES; i++) {
+	struct copper_cache_entry *e = &copper_cache[i];
+	if (!e->ninsns)
+	    continue;
+	pages[n++] = e->start >> 16;
+	pages[n++] = (e->start + (e->ninsns << 2) - 1) >> 16;
+    }
+    for (i = 0; i < copper_cache_nguards; i++) {
+	for (j = 0; j < n; j++)
+	    if (pages[j] == copper_cache_guards[i])
+		break;
+	if (j == n)
+	    chipmem_write_guard (copper_cache_guards[i], 0);
+    }
+    for (j = 0; j < n; j++) {
+	chipmem_write_guard (pages[j], 1);
+	copper_cache_guards[j] = pages[j];
+    }
+    copper_cache_nguards = n;
+}
+
+static void copper_cache_build (struct copper_cache_entry *e, uae_u32 offs)
+{
+    uae_u32 blk = offs >> CHIPMEM_WGEN_SHIFT;
+    int i, n = 0;
+
+    e->start = offs;
+    e->gen[0] = chipmem_wgen[blk];
+    e->gen[1] = chipmem_wgen[blk + 1];
+    while (n < COPPER_CACHE_INSNS && offs + 4 <= allocated_chipmem) {
+	struct copper_insn *c = &e->insn[n++];
+	c->i1 = CHIPMEM_WGET (offs);
+	c->i2 = CHIPMEM_WGET (offs + 2);
+	offs += 4;
+	/* End of list, or a jump somewhere else.  */
+	if (c->i1 == 0xFFFF && c->i2 == 0xFFFE)
+	    break;
+	if (!(c->i1 & 1) && ((c->i1 & 0x1FE) == 0x88 || (c->i1 & 0x1FE) == 0x8A))
+	    break;
+    }
+    for (i = n - 1; i >= 0; i--) {
+	struct copper_insn *c = &e->insn[i];
+	if ((c->i1 & 1) || dangerous_reg (c->i1)) {
+	    c->run = 0;
+	    c->run_regtypes = 0;
+	    continue;
+	}
+	c->run = 1;
+	c->run_regtypes = regtypes[c->i1 & 0x1FE];
+	if (i + 1 < n && e->insn[i + 1].run) {
+	    c->run += e->insn[i + 1].run;
+	    c->run_regtypes |= e->insn[i + 1].run_regtypes;
+	}
+    }
+    e->ninsns = n;
+}
+
+/* Called whenever the copper (re)starts at the top of a list.  */
+static void copper_cache_start (uaecptr ip)
+{
+    static uae_u32 usecount;
+    uae_u32 offs = ip & 0x000FFFFF & chipmem_mask;
+    struct copper_cache_entry *e = NULL;
+    int i;
+
+    copper_cache_cur = NULL;
+    for (i = 0; i < COPPER_CACHE_ENTRIES; i++) {
+	if (copper_cache[i].used && copper_cache[i].start == offs) {
+	    e = &copper_cache[i];
+	    break;
+	}
+    }
+    if (e) {
+	if (e->ninsns && copper_cache_valid (e)) {
+	    e->rebuilds = 0;
+	    e->lastuse = ++usecount;
+	    copper_cache_cur = e;
+	    return;
+	}
+	if (!e->ninsns && n_frames - e->retry_frame < 0)
+	    return;
+	if (e->ninsns && ++e->rebuilds > COPPER_CACHE_MAX_REBUILDS) {
+	    /* Self-modifying list, not worth caching for now.  */
+	    e->ninsns = 0;
+	    e->retry_frame = n_frames + COPPER_CACHE_RETRY_FRAMES;
+	    copper_cache_update_guards ();
+	    return;
+	}
+    } else {
+	e = &copper_cache[0];
+	for (i = 1; i < COPPER_CACHE_ENTRIES; i++)
+	    if (copper_cache[i].lastuse < e->lastuse)
+		e = &copper_cache[i];
+	e->used = 1;
+	e->rebuilds = 0;
+    }
+    e->lastuse = ++usecount;
+    copper_cache_build (e, offs);
+    copper_cache_update_guards ();
+    copper_cache_cur = e;
+}
+
+static void copper_cache_flush (void)
+{
+    int i;
+
+    for (i = 0; i < COPPER_CACHE_ENTRIES; i++) {
+	copper_cache[i].used = 0;
+	copper_cache[i].ninsns = 0;
+	copper_cache[i].lastuse = 0;
+    }
+    copper_cache_cur = NULL;
+    copper_cache_update_guards ();
+}
+
 /* Recording of custom chip register changes.  */
 static int current_change_set;
 
@@ -392,6 +583,13 @@ static __inline__ uae_u8 *_GCCRES_ pfield_xlateptr (uaecptr plpt, int bytecount)
 	}
 	return NULL;
     }
+#ifdef USE_BLITTER_THREAD
+    {
+	uae_u32 offs = plpt & chipmem_mask;
+	if (offs < blitter_thread_dend && offs + bytecount > blitter_thread_dlo)
+	    blitter_thread_finish (BLTSYNC_DISPLAY);
+    }
+#endif
     return chipmem_bank.xlateaddr (plpt);
 }
 
@@ -1747,6 +1945,113 @@ static _INLINE_ void do_mouse_hack (void)
     }
 }
 
+#ifdef ANDROID
+/* Late latching.  The joysticks and the mouse are normally sampled at
+   vsync, from the events queued up to then.  With joystick_latch_line at
+   0 they are taken from what the UI thread published last whenever the
+   Amiga reads JOYxDAT, POTGOR or CIA-A PRA, and above 0 at that line of
+   each frame as well as at vsync.
+
+   Whatever the setting, the time from the UI thread publishing a
+   joystick change to the first read of the port is logged every
+   JOYSTICK_REPORT changes.  */
+#define JOYSTICK_REPORT 50
+/* older changes did not come from a published touch */
+#define JOYSTICK_MAX_AGE 1000000
+
+int joystick_latch_line = -1;
+static int joystick_back0button = 0;
+static int joystick_mouse_x, joystick_mouse_y, joystick_mouse_valid = 0;
+static unsigned int joystick_seen_dir[2];
+static int joystick_seen_button[2];
+/* bit n: port n changed and the Amiga has not read it yet */
+static int joystick_unread = 0;
+static int joystick_changes = 0, joystick_max = 0;
+static long long joystick_sum = 0;
+
+static void joystick_changed (void)
+{
+    if (joy0dir != joystick_seen_dir[0] || joy0button != joystick_seen_button[0])
+	joystick_unread |= 1;
+    if (joy1dir != joystick_seen_dir[1] || joy1button != joystick_seen_button[1])
+	joystick_unread |= 2;
+    joystick_seen_dir[0] = joy0dir;
+    joystick_seen_button[0] = joy0button;
+    joystick_seen_dir[1] = joy1dir;
+    joystick_seen_button[1] = joy1button;
+}
+
+static void joystick_latch (int vsync)
+{
+    int x, y;
+
+    latch_joystick (0, vsync, &joy1dir, &joy1button);
+    latch_joystick (1, vsync, &joy0dir, &joy0button);
+    if (joy0button != joystick_back0button)
+	joystick_back0button = buttonstate[0] = joy0button;
+    latch_mouse (&x, &y);
+    if (joystick_mouse_valid && (x != joystick_mouse_x || y != joystick_mouse_y)) {
+	lastmx += (uae_s16)(x - joystick_mouse_x) << 1;
+	lastmy += (uae_s16)(y - joystick_mouse_y) << 1;
+	newmousecounters = 1;
+    }
+    joystick_mouse_x = x;
+    joystick_mouse_y = y;
+    joystick_mouse_valid = 1;
+    joystick_changed ();
+}
+
+/* Called at vsync, after handle_events */
+static void joystick_vsync (void)
+{
+    unsigned int dir;
+    int button;
+
+    if (joystick_latch_line < 0) {
+	getjoystate (0, &joy1dir, &joy1button);
+	getjoystate (1, &joy0dir, &joy0button);
+	if (joy0button != joystick_back0button)
+	    joystick_back0button = buttonstate[0] = joy0button;
+	joystick_mouse_valid = 0;
+	joystick_changed ();
+	return;
+    }
+    /* the SDL joysticks still take their events */
+    getjoystate (0, &dir, &button);
+    getjoystate (1, &dir, &button);
+    joystick_latch (1);
+}
+
+/* The Amiga reads the ports in mask ports */
+void joystick_read (int ports)
+{
+    int age;
+
+    if (runahead_ahead)
+	return;
+    if (!joystick_latch_line)
+	joystick_latch (0);
+    ports &= joystick_unread;
+    if (!ports)
+	return;
+    joystick_unread &= ~ports;
+    /* port 1 is SDL joystick 0 */
+    age = joystick_age (ports & 2 ? 0 : 1);
+    if (age < 0 || age > JOYSTICK_MAX_AGE)
+	return;
+    joystick_sum += age;
+    if (age > joystick_max)
+	joystick_max = age;
+    if (++joystick_changes < JOYSTICK_REPORT)
+	return;
+    __android_log_print (ANDROID_LOG_INFO, "UAE", "joystick: %d changes read %d us after the touch (max %d us), sampled %s",
+			 joystick_changes, (int)(joystick_sum / joystick_changes), joystick_max,
+			 joystick_latch_line < 0 ? "at vsync" : joystick_latch_line ? "at a line" : "when read");
+    joystick_changes = joystick_max = 0;
+    joystick_sum = 0;
+}
+#endif
+
 static _INLINE_ void mousehack_handle (unsigned int ctl, unsigned int pos)
 {
     if (!sprvbfl && ((pos & 0xff) << 2) > 2 * DISPLAY_LEFT_SHIFT) {
@@ -1830,12 +2135,14 @@ static _INLINE_ void start_copper (void)
 static _INLINE_ void COPJMP1 (uae_u16 a)
 {
     cop_state.ip = cop1lc;
+    copper_cache_start (cop_state.ip);
     start_copper ();
 }
 
 static _INLINE_ void COPJMP2 (uae_u16 a)
 {
     cop_state.ip = cop2lc;
+    copper_cache_start (cop_state.ip);
     start_copper ();
 }
 
@@ -1863,6 +2170,7 @@ static _INLINE_ void DMACON (uae_u16 v, int hpos)
     }
     if ((dmacon & DMA_COPPER) > (oldcon & DMA_COPPER)) {
 	cop_state.ip = cop1lc;
+	copper_cache_start (cop_state.ip);
 	cop_state.ignore_next = 0;
 	cop_state.state = COP_read1;
 	cop_state.vpos = vpos;
@@ -2465,6 +2773,7 @@ static _INLINE_ uae_u16 POTGOR (void)
 {
     uae_u16 v = (potgo_value | (potgo_value >> 1)) & 0x5500;
 
+    joystick_read (3);
     v |= (~potgo_value & 0xAA00) >> 1;
 
     if (buttonstate[2]
@@ -2505,12 +2814,14 @@ static _INLINE_ uae_u16 POT0DAT (void)
 
 static _INLINE_ uae_u16 JOY0DAT (void)
 {
+    joystick_read (1);
     do_mouse_hack ();
     return ((uae_u8)mouse_x) + ((uae_u16)mouse_y << 8) + joy0dir;
 }
 
 static _INLINE_ uae_u16 JOY1DAT (void)
 {
+    joystick_read (2);
     return joy1dir;
 }
 
@@ -2671,9 +2982,21 @@ static _INLINE_ void predict_copper (void)
 
     while (c_hpos + 1 < maxhpos) {
 	if (state == COP_read1) {
-	    w1 = CHIPMEM_WGET (ip&0x000FFFFF);
+	    struct copper_insn *c = copper_cache_lookup (ip);
+	    if (c && c->run) {
+		/* A run of harmless MOVEs: step over as much of it as fits
+		   into this line in one go.  */
+		unsigned int n = (maxhpos + 2 - c_hpos) / 4;
+		if (n > c->run)
+		    n = c->run;
+		cop_state.regtypes_modified |= c->run_regtypes;
+		c_hpos += n * 4;
+		ip += n * 4;
+		continue;
+	    }
+	    w1 = c ? c->i1 : CHIPMEM_WGET (ip&0x000FFFFF);
 	    if (w1 & 1) {
-		w2 = CHIPMEM_WGET ((ip + 2)&0x000FFFFF);
+		w2 = c ? c->i2 : CHIPMEM_WGET ((ip + 2)&0x000FFFFF);
 		if (w2 & 1)
 		    break;
 		state = COP_wait;
@@ -2740,9 +3063,11 @@ static _INLINE_ void perform_copper_write (int old_hpos)
 
     if (address == 0x88) {
 	cop_state.ip = cop1lc;
+	copper_cache_start (cop_state.ip);
 	cop_state.state = COP_read1_in2;
     } else if (address == 0x8A) {
 	cop_state.ip = cop2lc;
+	copper_cache_start (cop_state.ip);
 	cop_state.state = COP_read1_in2;
     } else
     {
@@ -2872,17 +3197,22 @@ static _INLINE_ void update_copper (int until_hpos)
 
 	case COP_read1_wr_in2:
 	case COP_read1:
-	    cop_state.i1 = CHIPMEM_WGET (cop_state.ip&0x000FFFFF);
+	{
+	    struct copper_insn *c = copper_cache_lookup (cop_state.ip);
+	    cop_state.i1 = c ? c->i1 : CHIPMEM_WGET (cop_state.ip&0x000FFFFF);
 	    cop_state.ip += 2;
 	    cop_state.state = cop_state.state == COP_read1 ? COP_read2 : COP_read2_wr_in2;
 	    break;
+	}
 
 	case COP_read2_wr_in2:
 	    uae4all_prof_end(3);
 	    return;
 
 	case COP_read2:
-	    cop_state.i2 = CHIPMEM_WGET (cop_state.ip&0x000FFFFF);
+	{
+	    struct copper_insn *c = copper_cache_lookup (cop_state.ip - 2);
+	    cop_state.i2 = c ? c->i2 : CHIPMEM_WGET (cop_state.ip&0x000FFFFF);
 	    cop_state.ip += 2;
 	    if (cop_state.ignore_next) {
 		cop_state.ignore_next = 0;
@@ -2904,6 +3234,7 @@ static _INLINE_ void update_copper (int until_hpos)
 		cop_state.state = isagnus[reg >> 1] ? COP_read1_wr_in2 : COP_read1_wr_in4;
 	    }
 	    break;
+	}
 
 	case COP_wait1:
 	    /* There's a nasty case here.  As stated in the "Theory" comment above, we
@@ -3248,13 +3579,19 @@ static void vsync_handler (void)
 
     n_frames++;
 
+    /* frames ahead go on with the input of the real one, see runahead.cpp */
+    if (!runahead_ahead)
     {
-	static int back_joy0button=0;
     	handle_events ();
+#ifdef ANDROID
+	joystick_vsync ();
+#else
+	static int back_joy0button=0;
     	getjoystate (0, &joy1dir, &joy1button);
     	getjoystate (1, &joy0dir, &joy0button);
 	if (joy0button!=back_joy0button)
 		back_joy0button= buttonstate[0]= joy0button;
+#endif
     }
 
     INTREQ (0x8020);
@@ -3270,6 +3607,8 @@ static void vsync_handler (void)
 	return;
     }
 
+    /* disk changes and flushes wait for the real frames */
+    if (!runahead_ahead) {
     if (vsync_handler_cnt_disk_change == 0) {
 	    /* resolution_check_change (); */
          DISK_check_change ();
@@ -3277,6 +3616,7 @@ static void vsync_handler (void)
     }
 //    else
 	 vsync_handler_cnt_disk_change--;
+    }
 
     /* Start a new set of copper records.  */
     curr_cop_set ^= 1;
@@ -3290,6 +3630,7 @@ static void vsync_handler (void)
     lof_changed = 0;
 
     cop_state.ip = cop1lc;
+    copper_cache_start (cop_state.ip);
     cop_state.state = COP_read1;
     cop_state.vpos = 0;
     cop_state.hpos = 0;
@@ -3345,6 +3686,10 @@ static void hsync_handler (void)
 	vpos=0;
 	vsync_handler ();
     }
+#ifdef ANDROID
+    else if (vpos == joystick_latch_line && !runahead_ahead)
+	joystick_latch (0);
+#endif
 
     DISK_update ();
 
@@ -3450,6 +3795,9 @@ void customreset (void)
     int i;
     int zero = 0;
 
+    blitter_thread_sync (BLTSYNC_OTHER);
+    copper_cache_flush ();
+
     if (! savestate_state)
     {
 	for (i = 0; i < 32; i++)
@@ -3654,6 +4002,7 @@ void custom_init (void)
 
     gen_custom_tables ();
     build_blitfilltable ();
+    blitrow_init ();
 
     drawing_init ();
 
@@ -3690,7 +4039,7 @@ static __inline__ uae_u32 REGPARAM2 custom_wget_1 (uaecptr addr)
     special_mem |= S_READ;
 #endif
     switch (addr & 0x1FE) {
-     case 0x002: v = DMACONR (); break;
+     case 0x002: blitter_thread_sync (BLTSYNC_DMACONR); v = DMACONR (); break;
      case 0x004: v = VPOSR (); break;
      case 0x006: v = VHPOSR (); break;
 
@@ -3988,6 +4337,7 @@ void REGPARAM2 custom_lput(uaecptr addr, uae_u32 value)
 
 void custom_prepare_savestate (void)
 {
+    blitter_thread_sync (BLTSYNC_OTHER);
     /* force blitter to finish, no support for saving full blitter state yet */
     if (eventtab[ev_blitter].active) {
 	unsigned int olddmacon = dmacon;
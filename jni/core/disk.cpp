@@ -34,6 +34,7 @@
 #include "osemu.h"
 #include "execlib.h"
 #include "savestate.h"
+#include "runahead.h"
 
 #define maxhpos MAXHPOS
 
@@ -94,10 +95,25 @@ typedef struct {
 #define DRIVE_ID_525DD 0x55555555 /* 40 track 5.25 drive , kickstart does not recognize this */
 
 typedef enum { ADF_NORMAL, ADF_EXT1, ADF_EXT2 } drive_filetype;
+
+#define MFM_CACHE_TRACKS 16
+typedef struct {
+    int track;
+    uae_u32 gen;
+    int tracklen;
+    int words; /* 0 when unused */
+    int size;
+    unsigned lastuse;
+    uae_u16 *mfm;
+} mfmcache_entry;
+
 typedef struct {
     FILE *diskfile;
     drive_filetype filetype;
     trackid trackdata[MAX_TRACKS];
+    uae_u32 trackgen[MAX_TRACKS]; /* bumped on every write to the track */
+    mfmcache_entry mfmcache[MFM_CACHE_TRACKS];
+    unsigned mfmcache_clock;
     int buffered_cyl, buffered_side;
     int cyl;
     int motoroff;
@@ -195,6 +211,7 @@ static void update_drive_gui (int num)
 }
 
 static void drive_fill_bigbuf (drive * drv);
+static void mfmcache_flush (drive * drv);
 
 FILE *DISK_validate_filename (const char *fname, int leave_open, int *wrprot)
 {
@@ -225,6 +242,7 @@ static int drive_insert (drive * drv, int dnum, const char *fname)
 #ifdef DEBUG_DISK
     dbgf("disc.c : DRIVE_INSERT %i - %s\n",dnum,fname);
 #endif
+    mfmcache_flush (drv);
     drv->diskfile = DISK_validate_filename (fname, 1, &drv->wrprot);
     if (drv->diskfile == 0) {
 	drv->tracklen = FLOPPY_WRITE_LEN * 2 * 8;
@@ -312,6 +330,9 @@ static int drive_insert (drive * drv, int dnum, const char *fname)
     drive_settype_id(drv);	/* Set DD or HD drive */
     drv->buffered_side = 2;	/* will force read */
     drive_fill_bigbuf (drv);
+    /* Get the rest of a multi-disk set ready for swapping */
+    if (dnum == 0)
+	zfile_prefetch_set (fname);
     return 1;
 }
 
@@ -416,7 +437,10 @@ static void read_floppy_data (drive * drv, int track, int offset, unsigned char
     uae4all_fread (dst, 1, len, drv->diskfile);
 }
 
-/* Megalomania does not like zero MFM words... */
+/* Megalomania does not like zero MFM words...
+   Adds the clock bits two words at a time: a clock bit is set when the data
+   bits on both sides of it are clear, the leftmost one looking at the last
+   data bit of the previous word.  */
 static void mfmcode (uae_u16 * mfm, int words)
 {
     uae_u32 lastword = 0;
@@ -424,17 +448,105 @@ static void mfmcode (uae_u16 * mfm, int words)
     dbg("disc.c : mfmcode");
 #endif
 
-    while (words--) {
+    while (words >= 2) {
+	uae_u32 v = (mfm[0] << 16) | mfm[1];
+	uae_u32 nv = 0x55555555 & ~v;
+	uae_u32 mfmbits = (nv << 1) & ((nv >> 1) | (~lastword << 31));
+
+	v |= mfmbits;
+	mfm[0] = v >> 16;
+	mfm[1] = v;
+	mfm += 2;
+	words -= 2;
+	lastword = v;
+    }
+    if (words) {
 	uae_u32 v = *mfm;
 	uae_u32 lv = (lastword << 16) | v;
 	uae_u32 nlv = 0x55555555 & ~lv;
 	uae_u32 mfmbits = (nlv << 1) & (nlv >> 1);
 
-	*mfm++ = v | mfmbits;
-	lastword = v;
+	*mfm = v | mfmbits;
+    }
+}
+
+/* Encoded tracks, so that loaders seeking back and forth do not pay for the
+   encoding every time the head comes back.  An entry is only good while the
+   write generation of its track is unchanged.  */
+static void mfmcache_flush (drive * drv)
+{
+    int i;
+
+    for (i = 0; i < MFM_CACHE_TRACKS; i++)
+	drv->mfmcache[i].words = 0;
+}
+
+static int mfmcache_get (drive * drv, int tr)
+{
+    int i;
+
+    for (i = 0; i < MFM_CACHE_TRACKS; i++) {
+	mfmcache_entry *e = &drv->mfmcache[i];
+	if (e->words && e->track == tr && e->gen == drv->trackgen[tr]) {
+	    memcpy (drv->bigmfmbuf, e->mfm, e->words * 2);
+	    drv->tracklen = e->tracklen;
+	    e->lastuse = ++drv->mfmcache_clock;
+	    return 1;
+	}
+    }
+    return 0;
+}
+
+static void mfmcache_put (drive * drv, int tr)
+{
+    mfmcache_entry *e = &drv->mfmcache[0];
+    int i, words = (drv->tracklen + 15) / 16;
+
+    for (i = 1; i < MFM_CACHE_TRACKS && e->words; i++) {
+	if (!drv->mfmcache[i].words || drv->mfmcache[i].lastuse < e->lastuse)
+	    e = &drv->mfmcache[i];
+    }
+    if (words > e->size) {
+	uae_u16 *p = (uae_u16 *) realloc (e->mfm, words * 2);
+	if (!p) {
+	    e->words = 0;
+	    return;
+	}
+	e->mfm = p;
+	e->size = words;
     }
+    memcpy (e->mfm, drv->bigmfmbuf, words * 2);
+    e->words = words;
+    e->track = tr;
+    e->gen = drv->trackgen[tr];
+    e->tracklen = drv->tracklen;
+    e->lastuse = ++drv->mfmcache_clock;
 }
 
+#ifdef DEBUG_MFMCACHE
+static unsigned mfmcache_hits, mfmcache_misses, mfmcache_encode_us;
+
+static void mfmcache_stats (int hit, struct timeval *t0)
+{
+    struct timeval t1;
+
+    if (hit) {
+	mfmcache_hits++;
+    } else {
+	gettimeofday (&t1, NULL);
+	mfmcache_misses++;
+	mfmcache_encode_us += (t1.tv_sec - t0->tv_sec) * 1000000 + (t1.tv_usec - t0->tv_usec);
+    }
+    if (mfmcache_hits + mfmcache_misses < 64)
+	return;
+    __android_log_print (ANDROID_LOG_INFO, "UAE",
+	       "mfm cache: %u hits, %u misses, %u us encoding (%u us per track)",
+	       mfmcache_hits, mfmcache_misses, mfmcache_encode_us,
+	       mfmcache_misses ? mfmcache_encode_us / mfmcache_misses : 0);
+    mfmcache_hits = mfmcache_misses = mfmcache_encode_us = 0;
+}
+#endif
+
 static void drive_fill_bigbuf (drive * drv)
 {
 #ifdef DEBUG_DISK
@@ -452,14 +564,23 @@ static void drive_fill_bigbuf (drive * drv)
     if (drv->buffered_cyl == drv->cyl && drv->buffered_side == side)
 	return;
 
-    if (ti->type == TRACK_AMIGADOS) {
+#ifdef DEBUG_MFMCACHE
+    struct timeval t0;
+    gettimeofday (&t0, NULL);
+#endif
+    int hit = mfmcache_get (drv, tr);
+    if (hit) {
+	/* bigmfmbuf and tracklen restored from the cache */
+    } else if (ti->type == TRACK_AMIGADOS) {
 #ifdef DEBUG_DISK
 	dbg("disc.c : drive_fill_bigbuf --- DISCO AMIGADOS ---");
 #endif
 	/* Normal AmigaDOS format track */
 	int sec;
+	uae_u8 trackbuf[22 * 512];
 	drv->tracklen = (drv->num_secs * 544 + FLOPPY_GAP_LEN) * 2 * 8;
 	memset (drv->bigmfmbuf, 0xaa, FLOPPY_GAP_LEN * 2);
+	read_floppy_data (drv, tr, 0, trackbuf, drv->num_secs * 512);
 
 	for (sec = 0; sec < drv->num_secs; sec++) {
 	    uae_u8 secbuf[544];
@@ -478,7 +599,7 @@ static void drive_fill_bigbuf (drive * drv)
 	    for (i = 8; i < 24; i++)
 		secbuf[i] = 0;
 
-	    read_floppy_data (drv, tr, sec * 512, &secbuf[32], 512);
+	    memcpy (&secbuf[32], trackbuf + sec * 512, 512);
 
 	    mfmbuf[0] = mfmbuf[1] = 0xaaaa;
 	    mfmbuf[2] = mfmbuf[3] = 0x4489;
@@ -550,6 +671,11 @@ static void drive_fill_bigbuf (drive * drv)
 	write_log ("rawtrack %d\n", tr);
 #endif
     }
+    if (!hit)
+	mfmcache_put (drv, tr);
+#ifdef DEBUG_MFMCACHE
+    mfmcache_stats (hit, &t0);
+#endif
     drv->buffered_side = side;
     drv->buffered_cyl = drv->cyl;
     drv->trackspeed = floppy_speed * drv->tracklen / (2 * 8 * FLOPPY_WRITE_LEN);
@@ -565,10 +691,12 @@ static void diskfile_update (drive * drv, int len, uae_u8 type)
 #ifdef DEBUG_DISK
     dbg("disc.c : diskfile_update");
 #endif
+    /* Every track write comes through here, so drop the encoded copy */
+    track = drv->cyl * 2 + side;
+    drv->trackgen[track]++;
     if (drv->filetype != ADF_EXT2)
 	return;
 
-    track = drv->cyl * 2 + side;
     ti = &drv->trackdata[track];
     ti->bitlen = len;
     uae4all_fseek (drv->diskfile, 8 + 4 + (2 + 2 + 4 + 4) * track, SEEK_SET);
@@ -741,6 +869,11 @@ static void drive_write_data (drive * drv)
 #endif
     if (drive_writeprotected (drv))
 	return;
+    /* a frame emulated ahead is run again for real, only that one writes */
+    if (runahead_ahead) {
+	drv->buffered_side = 2;
+	return;
+    }
     switch (drv->filetype) {
     case ADF_NORMAL:
 	drive_write_adf_amigados (drv);
@@ -767,6 +900,7 @@ static void drive_eject (drive * drv)
     if (!drive_empty (drv))
 	zfile_close (drv->diskfile);
     drv->diskfile = 0;
+    mfmcache_flush (drv);
     drv->dskchange = 1;
     drive_settype_id(drv); /* Back to 35 DD */
 #ifdef DEBUG_DISK
@@ -1269,6 +1403,108 @@ void DISK_update (void)
     }
 }
 
+/* Turbo floppy: with mainMenu_floppyTurbo set, read DMA started by any
+   program, not only by Kickstart, is done at once with DSKBLK following
+   two lines later.  Loaders that time the drive fail with that and keep
+   rereading the same track, which turns turbo off for the title (the
+   name of the DF0: image) until the emulator is restarted.  That is not
+   remembered, as "insert disk" prompts can look the same.  Titles that
+   never get turbo go in a list, one per line, edited by hand.  */
+#define TURBO_TITLES "/sdcard/.uae/noturbo.txt"
+#define TURBO_MAX_REREADS 32
+#define TURBO_SESSION_TITLES 8
+
+extern int mainMenu_floppyTurbo;
+
+static char turbo_title[128];
+static int turbo_off;
+/* titles turned off this session, the oldest goes first */
+static char turbo_session_off[TURBO_SESSION_TITLES][128];
+static int turbo_session_next;
+static int turbo_track = -1, turbo_rereads;
+static unsigned int turbo_saved_us, turbo_reported_s;
+
+static const char *turbo_basename (const char *name)
+{
+    const char *p = strrchr (name, '/');
+    return p ? p + 1 : name;
+}
+
+static void turbo_check_title (void)
+{
+    const char *title = turbo_basename (prefs_df[0]);
+    char line[128];
+    FILE *f;
+    int i;
+
+    if (!strcmp (title, turbo_title))
+	return;
+    strncpy (turbo_title, title, sizeof turbo_title - 1);
+    turbo_title[sizeof turbo_title - 1] = 0;
+    turbo_off = 0;
+    turbo_track = -1;
+    for (i = 0; i < TURBO_SESSION_TITLES; i++)
+	if (turbo_session_off[i][0] && !strcmp (turbo_session_off[i], turbo_title))
+	    turbo_off = 1;
+    if (turbo_off)
+	return;
+    f = fopen (TURBO_TITLES, "r");
+    if (!f)
+	return;
+    while (fgets (line, sizeof line, f)) {
+	line[strcspn (line, "\r\n")] = 0;
+	if (!strcmp (line, turbo_title)) {
+	    turbo_off = 1;
+	    break;
+	}
+    }
+    fclose (f);
+}
+
+static void turbo_disable_title (void)
+{
+    turbo_off = 1;
+    strcpy (turbo_session_off[turbo_session_next], turbo_title);
+    turbo_session_next = (turbo_session_next + 1) % TURBO_SESSION_TITLES;
+    __android_log_print (ANDROID_LOG_INFO, "UAE", "turbo floppy: %s keeps rereading track %d, turned off for it this session",
+			 turbo_title, turbo_track);
+}
+
+static int turbo_allowed (drive * drv)
+{
+    int tr = drv->cyl * 2 + side;
+
+    if (!mainMenu_floppyTurbo || dsklength < 2)
+	return 0;
+    turbo_check_title ();
+    if (turbo_off)
+	return 0;
+    /* frames emulated ahead read the same tracks again */
+    if (runahead_ahead)
+	return 1;
+    if (tr != turbo_track) {
+	turbo_track = tr;
+	turbo_rereads = 0;
+    } else if (++turbo_rereads > TURBO_MAX_REREADS) {
+	turbo_disable_title ();
+	return 0;
+    }
+    return 1;
+}
+
+/* A word takes 16 bitcells of 2us at normal speed, the turbo transfer ends
+   after two lines of 64us.  */
+static void turbo_account (int words)
+{
+    if (!mainMenu_floppyTurbo || runahead_ahead)
+	return;
+    turbo_saved_us += words * 32 - 2 * 64;
+    if (turbo_saved_us / 1000000 >= turbo_reported_s + 10) {
+	turbo_reported_s = turbo_saved_us / 1000000;
+	__android_log_print (ANDROID_LOG_INFO, "UAE", "turbo floppy: %u seconds saved this session", turbo_reported_s);
+    }
+}
+
 void DSKLEN (uae_u16 v, int hpos)
 {
 #ifdef DEBUG_DISK
@@ -1310,13 +1546,15 @@ void DSKLEN (uae_u16 v, int hpos)
        also it seems some copy protections require this fix */
     DISK_start ();
 
-    /* Try to make floppy access from Kickstart faster.  */
+    /* Try to make floppy access from Kickstart faster, and from
+       everything else in turbo mode.  */
     if (dskdmaen != 2)
 	return;
     {
 	int dr;
 	uaecptr pc = _68k_getpc ();
-	if ((pc & 0xF80000) != 0xF80000)
+	int kick = (pc & 0xF80000) == 0xF80000;
+	if (!kick && !mainMenu_floppyTurbo)
 	    return;
 	for (dr = 0; dr < NUM_DRIVES; dr++) {
 	    drive *drv = &floppy[dr];
@@ -1324,7 +1562,10 @@ void DSKLEN (uae_u16 v, int hpos)
 		continue;
 	    if ((selected & (1 << dr)) == 0) {
 		int pos = drv->mfmpos & ~15;
-		int i;
+		int i, words = dsklength;
+
+		if (!kick && !turbo_allowed (drv))
+		    return;
 
 		drive_fill_bigbuf (drv);
 		if (adkcon & 0x400) {
@@ -1353,6 +1594,11 @@ void DSKLEN (uae_u16 v, int hpos)
 		INTREQ (0x9000);
 		linecounter = 2;
 		dskdmaen = 0;
+		if (!kick) {
+		    /* the next read goes on from where this one stopped */
+		    drv->mfmpos = pos;
+		    turbo_account (words);
+		}
 		return;
 	    }
 	}
@@ -42,12 +42,16 @@
 #include "thread.h"
 #include "memorya.h"
 #include "custom.h"
+#include "blitter.h"
 #include "m68k/m68k_intrf.h"
 #include "xwin.h"
 #include "autoconf.h"
 #include "gui.h"
 #include "drawing.h"
 #include "savestate.h"
+#include "rewind.h"
+#include "runahead.h"
+#include "bootcache.h"
 #include "sound.h"
 #include "debug_uae4all.h"
 
@@ -184,9 +188,17 @@ extern Uint32 uae4all_frameskipped;
 extern double uae4all_framerate;
 #endif
 
+/* Frames per presented frame while gui_autowarp runs */
+#define AUTOWARP_SHOW 50
+
 static Uint32 proximo_frameskip;
 extern int *tabla_ajuste;
 
+/* Emulated speed in percent of real time, measured while fast forwarding */
+int ffwd_speed = 0;
+static Uint32 ffwd_start, ffwd_shown;
+static int ffwd_frames = -1;
+
 void reset_frameskip(void)
 {
 	// will reset ticks automatically
@@ -198,6 +210,13 @@ static __inline__ void count_frame (void)
 {
     uae4all_numframes++;
 
+#ifdef DEBUG_MEMORY_FASTPATH
+    memory_fastpath_stats ();
+#endif
+#if defined(USE_BLITTER_THREAD) && defined(DEBUG_BLITTER_THREAD)
+    blitter_thread_stats ();
+#endif
+
 #ifdef AUTO_PROFILER
     if (uae4all_numframes==AUTO_PROFILER)
     {
@@ -280,6 +299,60 @@ static __inline__ void count_frame (void)
 	    proximo_frameskip = ahora;
     }
 
+    if (gui_ffwd)
+    {
+	Uint32 umbral = (beamcon0 & 0x20) ? UMBRAL_PAL : UMBRAL_NTSC;
+
+	// fast forward: measure the speed over each second
+	if (ffwd_frames < 0)
+	{
+	    ffwd_start = ffwd_shown = ahora;
+	    ffwd_frames = 0;
+	}
+	else if (ahora - ffwd_start >= (1000<<8))
+	{
+	    ffwd_speed = (int)(((uae_u64)ffwd_frames * umbral * 100) / (ahora - ffwd_start));
+	    __android_log_print(ANDROID_LOG_INFO, "UAE", "fast forward: %d.%02dx", ffwd_speed / 100, ffwd_speed % 100);
+	    ffwd_start = ahora;
+	    ffwd_frames = 0;
+	}
+	ffwd_frames++;
+
+	// limiter at mainMenu_ffwdCap times the normal rate, if any
+	if (mainMenu_ffwdCap > 0)
+	{
+	    proximo_frameskip -= umbral - umbral / mainMenu_ffwdCap;
+	    if ((ahora+partida)<proximo_frameskip)
+		SDL_Delay((proximo_frameskip-ahora)>>8);
+	}
+	else
+	    proximo_frameskip = ahora;
+
+	// show only the frames that fall due in real time
+	if (ahora - ffwd_shown >= umbral)
+	{
+	    ffwd_shown = ahora;
+	    fs_framecnt = 0;
+	}
+	else
+	    fs_framecnt = 1;
+	return;
+    }
+    else if (ffwd_frames >= 0)
+    {
+	// back to normal pacing from now on
+	ffwd_frames = -1;
+	proximo_frameskip = ahora;
+    }
+
+    if (gui_autowarp)
+    {
+	// auto warp: no limiter, show one frame in AUTOWARP_SHOW
+	proximo_frameskip = ahora;
+	fs_framecnt = (uae4all_numframes % AUTOWARP_SHOW) != 0;
+	return;
+    }
+
     if (prefs_gfx_framerate>=0)
     {
     	fs_framecnt++;
@@ -2148,8 +2221,17 @@ static _INLINE_ void draw_status_line (int line)
         x+=100 - (TD_WIDTH*(mainMenu_drives-1));
 	if (y >= TD_PADY && y - TD_PADY < TD_NUM_HEIGHT) {
 	    int offs = (TD_WIDTH - 2 * TD_NUM_WIDTH) / 2;
+	    if (gui_ffwd)
+	    {
+		// speed multiple instead of the frame rate
+		write_tdletter (x + offs, y - TD_PADY, 'X');
+		write_tdnumber (x + offs + TD_NUM_WIDTH, y - TD_PADY, ffwd_speed >= 1000 ? 9 : ffwd_speed / 100);
+	    }
+	    else
+	    {
 	    write_tdnumber (x + offs, y - TD_PADY, fps_counter / 10);
 	    write_tdnumber (x + offs + TD_NUM_WIDTH, y - TD_PADY, fps_counter % 10);
+	    }
 	}
 }
 
@@ -2253,7 +2335,8 @@ static _INLINE_ void finish_drawing_frame (void)
 void vsync_handle_redraw (int long_frame, int lof_changed)
 {
     last_redraw_point++;
-    count_frame ();
+    if (!runahead_frame_end ())
+	count_frame ();
     if (lof_changed || ! interlace_seen || last_redraw_point >= 2 || long_frame) {
 	last_redraw_point = 0;
 	interlace_seen = 0;
@@ -2267,7 +2350,9 @@ void vsync_handle_redraw (int long_frame, int lof_changed)
 	 * done at other times.
 	 */
 
-	if (savestate_state == STATE_DOSAVE)
+	if (runahead_ahead)
+		runahead_vsync ();
+	else if (savestate_state == STATE_DOSAVE)
 	{
 		custom_prepare_savestate ();
 		savestate_state = STATE_SAVE;
@@ -2284,6 +2369,15 @@ void vsync_handle_redraw (int long_frame, int lof_changed)
 			savestate_state = STATE_RESTORE;
 		        uae_reset ();
 		}
+		else
+		{
+			bootcache_vsync ();
+			if (pause_program < 0)
+				savestate_autosave ();
+			savestate_vsync ();
+			rewind_vsync ();
+			runahead_vsync ();
+		}
 
 	if (quit_program < 0) {
 	    quit_program = -quit_program;
@@ -2298,7 +2392,7 @@ void vsync_handle_redraw (int long_frame, int lof_changed)
 	//count_frame ();
 	framecnt = fs_framecnt;
 
-	if (inhibit_frame != 0)
+	if (inhibit_frame != 0 || runahead_hide_frame ())
 	    framecnt = 1;
 
 	if (framecnt == 0)
@@ -25,6 +25,7 @@
 #include "audio.h"
 #include "keybuf.h"
 #include "disk.h"
+#include "savestate.h"
 
 #include <SDL.h>
 
@@ -97,6 +98,10 @@ int drawfinished=0;
 extern int mainMenu_throttle, mainMenu_frameskip, mainMenu_sound, mainMenu_case, mainMenu_autosave, saveMenu_n_savestate;
 int mainMenu_throttle, mainMenu_frameskip, mainMenu_sound, mainMenu_case, mainMenu_autosave;
 int mainMenu_drives = 4;
+int mainMenu_diskCompression = 9; /* zlib level for the saved disk patches */
+int mainMenu_floppyTurbo = 0; /* instant disk DMA, see DSKLEN */
+int mainMenu_autoWarp = 0; /* run flat out while a floppy loads */
+int mainMenu_ffwdCap = 4; /* fast forward speed limit, 0 for none */
 int saveMenu_n_savestate = 0;
 
 static void getChanges(void)
@@ -227,18 +232,7 @@ int gui_update (void)
     strcpy(changed_df[1],uae4all_image_file1);
     strcpy(changed_df[2],uae4all_image_file2);
     strcpy(changed_df[3],uae4all_image_file3);
-    strcpy(savestate_filename,uae4all_image_file0);
-	switch(saveMenu_n_savestate)
-    {
-	    case 1:
-    		strcat(savestate_filename,"-1.asf");
-	    case 2:
-    		strcat(savestate_filename,"-2.asf");
-	    case 3:
-    		strcat(savestate_filename,"-3.asf");
-	    default: 
-    	   	strcat(savestate_filename,".asf");
-    }
+    savestate_slot_filename(savestate_filename,uae4all_image_file0,saveMenu_n_savestate);
     real_changed_df[0]=1;
     real_changed_df[1]=1;
 	real_changed_df[2]=1;
@@ -302,18 +296,7 @@ static void goMenu(void)
 		    real_changed_df[3]=1;
 		}
 	    }
-    	    strcpy(savestate_filename,uae4all_image_file0);
-	    switch(saveMenu_n_savestate)
-    	    {
-	    	case 1:
-    			strcat(savestate_filename,"-1.asf");
-	    	case 2:
-    			strcat(savestate_filename,"-2.asf");
-	    	case 3:
-    			strcat(savestate_filename,"-3.asf");
-	    	default: 
-    	   		strcat(savestate_filename,".asf");
-    	    }
+    	    savestate_slot_filename(savestate_filename,uae4all_image_file0,saveMenu_n_savestate);
     }
     if (exitmode==3)
     {
@@ -356,18 +339,7 @@ static void goMenu(void)
 		}
 		disk_eject(i);
 	    }
-    	    strcpy(savestate_filename,uae4all_image_file0);
-    	    switch(saveMenu_n_savestate)
-    	    {
-	   	case 1:
-    			strcat(savestate_filename,"-1.asf");
-	    	case 2:
-    			strcat(savestate_filename,"-2.asf");
-	    	case 3:
-    			strcat(savestate_filename,"-3.asf");
-	    	default: 
-    	  	 	strcat(savestate_filename,".asf");
-    	    }
+    	    savestate_slot_filename(savestate_filename,uae4all_image_file0,saveMenu_n_savestate);
     }
     if (exitmode==2)
     {
@@ -420,8 +392,100 @@ static void leftSuperThrottle(void)
 	}
 }
 
+/* Auto warp: while a drive motor runs and nobody touches the controls the
+   emulation runs unthrottled, silent and shows only the odd frame (see
+   count_frame).  The motor has to run for a while before warp starts and
+   has to stay off for a while before it ends, so the short motor blips of
+   trackloaders don't flicker between the two; input ends it at once. */
+#define AUTOWARP_ON_FRAMES	25	/* motor on before warp starts */
+#define AUTOWARP_OFF_FRAMES	50	/* motor off before warp ends */
+#define AUTOWARP_IDLE_MS	2000	/* no input for this long */
+
+int gui_autowarp=0;
+int gui_ffwd=0; /* fast forward key held, see count_frame */
+int gui_rewind=0; /* rewind key held, see rewind_vsync */
+static int autowarp_motor=0, autowarp_sound=0;
+static Uint32 autowarp_input=0;
+
+void gui_note_input(void)
+{
+	autowarp_input=SDL_GetTicks();
+}
+
+static void goAutoWarp(void)
+{
+	if (!gui_autowarp)
+	{
+		gui_autowarp=1;
+		autowarp_sound=changed_produce_sound;
+		changed_produce_sound=0;
+		check_prefs_changed_audio();
+	}
+}
+
+static void leftAutoWarp(void)
+{
+	if (gui_autowarp)
+	{
+		gui_autowarp=0;
+		/* unless the sound settings were changed meanwhile */
+		if (!changed_produce_sound)
+			changed_produce_sound=autowarp_sound;
+		if (changed_produce_sound)
+			sound_default_evtime();
+		check_prefs_changed_audio();
+		reset_frameskip();
+	}
+}
+
+static void checkAutoWarp(void)
+{
+	int i, motor=0;
+
+	if (!mainMenu_autoWarp)
+	{
+		autowarp_motor=0;
+		leftAutoWarp();
+		return;
+	}
+	for (i=0;i<4;i++)
+		motor|=gui_data.drive_motor[i];
+
+	if (SDL_GetTicks()-autowarp_input<AUTOWARP_IDLE_MS)
+	{
+		autowarp_motor=0;
+		leftAutoWarp();
+	}
+	else if (motor)
+	{
+		if (autowarp_motor<0)
+			autowarp_motor=0;
+		if (autowarp_motor<AUTOWARP_ON_FRAMES)
+			autowarp_motor++;
+		else
+			goAutoWarp();
+	}
+	else
+	{
+		if (autowarp_motor>0)
+			autowarp_motor=0;
+		if (autowarp_motor>-AUTOWARP_OFF_FRAMES)
+			autowarp_motor--;
+		else
+			leftAutoWarp();
+	}
+	if (gui_autowarp && changed_produce_sound)
+	{
+		/* sound switched on from the settings while warping */
+		autowarp_sound=changed_produce_sound;
+		changed_produce_sound=0;
+		check_prefs_changed_audio();
+	}
+}
+
 void gui_handle_events (void)
 {
+	checkAutoWarp();
 #if ! defined (DREAMCAST) && ! defined (GP2X) && ! defined (PSP)  && ! defined (GIZMONDO)
 	Uint8 *keystate = SDL_GetKeyState(NULL);
 	if ( keystate[SDLK_F12] )
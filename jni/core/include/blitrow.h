@@ -0,0 +1,40 @@
+ /*
+  * UAE - The Un*x Amiga Emulator
+  *
+  * Row based blitter kernels for the common minterms
+  */
+
+/* One row worth of work for the per instruction set kernels.  */
+struct blitrow_row {
+    int mt, n, desc;
+    int ashift, bshift;
+    uae_u16 *abuf, *bbuf, *cbuf, *dbuf;
+};
+
+typedef void blitrow_func (struct blitrow_row *);
+
+extern blitrow_func blitrow_compute_generic;
+#ifdef USE_BLITROW_NEON
+extern blitrow_func blitrow_compute_neon;
+#endif
+
+/* A blit handed to the kernels.  The caller fills in everything up to fc,
+   blitrow_prepare the rest.  */
+struct blitrow_job {
+    uaecptr pta, ptb, ptc, ptd;
+    struct bltinfo info;
+    uae_u16 con0, con1;
+    int desc, fc;
+
+    int mt, usea, useb, usec;
+    uae_u8 *ap, *bp, *cp, *dp;
+    /* Chip offsets of everything read or written, and of what is written */
+    uae_u32 lo, end, dlo, dend;
+};
+
+extern void blitrow_init (void);
+extern int blitrow_prepare (struct blitrow_job *j);
+extern void blitrow_run (struct blitrow_job *j);
+extern void blitrow_finish (struct blitrow_job *j, struct bltinfo *b, int *fc);
+extern int blitrow_dofast (uaecptr pta, uaecptr ptb, uaecptr ptc, uaecptr ptd,
+			   struct bltinfo *b, uae_u16 con0, uae_u16 con1, int desc, int *fc);
@@ -40,6 +40,27 @@ extern void blitter_handler (void);
 extern void build_blitfilltable (void);
 extern void do_blitter (void);
 extern void blitter_done_notify (void);
+
+#ifdef USE_BLITTER_THREAD
+/* Why the emulation had to wait for a blit running on the worker thread. */
+enum {
+    BLTSYNC_CHIP,	/* chip memory access inside the blit's ranges */
+    BLTSYNC_DISPLAY,	/* bitplane fetch inside the blit's ranges */
+    BLTSYNC_REGS,	/* write to a blitter register */
+    BLTSYNC_DMACONR,	/* DMACONR read (BZERO) */
+    BLTSYNC_BLIT,	/* next blit started */
+    BLTSYNC_OTHER,	/* reset, savestates */
+    BLTSYNC_MAX
+};
+
+extern int blitter_thread_enabled, blitter_thread_busy;
+extern uae_u32 blitter_thread_lo, blitter_thread_end, blitter_thread_dlo, blitter_thread_dend;
+extern void blitter_thread_finish (int cause);
+extern void blitter_thread_stats (void);
+#define blitter_thread_sync(cause) do { if (blitter_thread_busy) blitter_thread_finish (cause); } while (0)
+#else
+#define blitter_thread_sync(cause) do { } while (0)
+#endif
 typedef void blitter_func(uaecptr, uaecptr, uaecptr, uaecptr, struct bltinfo *_GCCRES_);
 
 #define BLITTER_MAX_WORDS 2048
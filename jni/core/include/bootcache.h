@@ -0,0 +1,16 @@
+ /*
+  * UAE - The Un*x Amiga Emulator
+  *
+  * Post-boot snapshot cache
+  */
+
+/* Bump when the state layout changes, older caches are then ignored */
+#define BOOTCACHE_VERSION 1
+/* Frames the CPU has to sit in STOP before the Kickstart counts as idle,
+   and after how many frames the boot is let go without a snapshot */
+#define BOOTCACHE_IDLE_FRAMES 25
+#define BOOTCACHE_MAX_FRAMES (50 * 30)
+
+extern void bootcache_init (char *dir);
+extern void bootcache_kickstart_loaded (void);
+extern void bootcache_vsync (void);
@@ -10,6 +10,8 @@ extern void CIA_reset (void);
 extern void CIA_vsync_handler (void);
 extern void CIA_hsync_handler (void);
 extern void CIA_handler (void);
+extern void CIA_ahead_begin (void);
+extern void CIA_ahead_end (void);
 
 extern void diskindex_handler (void);
 
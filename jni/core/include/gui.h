@@ -19,6 +19,12 @@ extern void gui_lock (void);
 extern void gui_unlock (void);
 extern void gui_show_window_bar(int per, int max, int case_title);
 extern void gui_set_message(char *msg, int t);
+extern void gui_note_input (void);
+
+extern int gui_autowarp;
+extern int gui_ffwd;
+extern int gui_rewind;
+extern int mainMenu_ffwdCap;
 
 extern unsigned int gui_ledstate;
 
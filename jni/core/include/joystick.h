@@ -10,6 +10,16 @@ extern unsigned int joy0dir, joy1dir;
 extern int joy0button, joy1button;
 
 extern void read_joystick (int nr, unsigned int *dir, int *button);
+#ifdef ANDROID
+extern void latch_joystick (int nr, int vsync, unsigned int *dir, int *button);
+extern int joystick_age (int nr);
+extern void latch_mouse (int *x, int *y);
+
+extern int joystick_latch_line;
+extern void joystick_read (int ports);
+#else
+#define joystick_read(ports)
+#endif
 extern void init_joystick (void);
 extern void close_joystick (void);
 
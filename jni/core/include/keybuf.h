@@ -11,6 +11,8 @@ extern int get_next_key (void);
 extern int keys_available (void);
 extern void record_key (int);
 extern void keybuf_init (void);
+extern int keybuf_mark (void);
+extern void keybuf_rewind (int);
 //extern void getjoystate (int nr, unsigned int *dir, int *button);
 #define getjoystate(NR,DIR,BUT) read_joystick(NR,DIR,BUT)
 extern void joystick_setting_changed (void);
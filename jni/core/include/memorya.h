@@ -34,6 +34,7 @@ extern uae_u8 *chipmemory;
 extern uae_u16 *chipmemory_word;
 
 extern uae_u32 allocated_chipmem;
+extern uae_u32 chipmem_mask;
 extern uae_u32 allocated_fastmem;
 extern uae_u32 allocated_bogomem;
 extern uae_u32 allocated_gfxmem;
@@ -82,8 +83,16 @@ typedef struct {
        ourselves. This holds the memory address where the start of memory is
        for this particular bank. */
     uae_u8 *baseaddr;
+    /* Tells put_mem_bank which accesses may bypass the handlers and go
+       straight to baseaddr (MEMBANK_DIRECT_*). Banks with side effects
+       (custom chips, CIAs, unmapped space) leave this at 0. */
+    int direct;
 } addrbank;
 
+#define MEMBANK_DIRECT_READ 1
+#define MEMBANK_DIRECT_WRITE 2
+#define MEMBANK_DIRECT (MEMBANK_DIRECT_READ | MEMBANK_DIRECT_WRITE)
+
 extern uae_u8 *filesysory;
 extern uae_u8 *rtarea;
 
@@ -116,6 +125,10 @@ extern uae_u8 *default_xlate(uaecptr addr) REGPARAM;
 
 extern addrbank *mem_banks[65536];
 extern uae_u8 *baseaddr[65536];
+/* Host address of the start of each 64KB page for the CPU fast path, or
+   NULL if the access has to go through the bank handlers. */
+extern uae_u8 *mem_direct_read[65536];
+extern uae_u8 *mem_direct_write[65536];
 #define get_mem_bank(addr) (*mem_banks[bankindex(addr)])
 #define put_mem_bank(addr, b, realstart) \
 do { \
@@ -124,6 +137,10 @@ do { \
         baseaddr[bankindex(addr)] = (b)->baseaddr - (realstart); \
     else \
         baseaddr[bankindex(addr)] = (uae_u8*)(((long)b)+1); \
+    mem_direct_read[bankindex(addr)] = ((b)->baseaddr && ((b)->direct & MEMBANK_DIRECT_READ)) ? \
+        (b)->baseaddr + ((addr) - (realstart)) : NULL; \
+    mem_direct_write[bankindex(addr)] = ((b)->baseaddr && ((b)->direct & MEMBANK_DIRECT_WRITE)) ? \
+        (b)->baseaddr + ((addr) - (realstart)) : NULL; \
 } while (0)
 
 extern void memory_init (void);
@@ -163,28 +180,82 @@ extern void byteput(uaecptr addr, uae_u32 b);
 
 #endif
 
+#ifdef DEBUG_MEMORY_FASTPATH
+extern unsigned mem_direct_count, mem_handler_count;
+extern void memory_fastpath_stats (void);
+#define MEM_COUNT_DIRECT() (mem_direct_count++)
+#define MEM_COUNT_HANDLER() (mem_handler_count++)
+#else
+#define MEM_COUNT_DIRECT()
+#define MEM_COUNT_HANDLER()
+#endif
+
+/* The CPU accessors look the 64KB page up in mem_direct_read/write first.
+   Chip, bogo and ROM pages resolve to a host pointer (mirrors included, as
+   map_banks restarts realstart on every mirror), everything else falls back
+   to the bank handlers. Accesses that would straddle a page boundary also
+   take the slow path, since the next page may belong to another bank. */
 static __inline__ uae_u32 get_long(uaecptr addr)
 {
+    uae_u8 *p = mem_direct_read[bankindex(addr)];
+    if (p && (addr & 0xffff) <= 0xfffc) {
+	MEM_COUNT_DIRECT();
+	return swab_l(do_get_mem_long ((uae_u32 *)(p + (addr & 0xffff))));
+    }
+    MEM_COUNT_HANDLER();
     return longget_1(addr);
 }
 static __inline__ uae_u32 get_word(uaecptr addr)
 {
+    uae_u8 *p = mem_direct_read[bankindex(addr)];
+    if (p && (addr & 0xffff) <= 0xfffe) {
+	MEM_COUNT_DIRECT();
+	return swab_w(do_get_mem_word ((uae_u16 *)(p + (addr & 0xffff))));
+    }
+    MEM_COUNT_HANDLER();
     return wordget_1(addr);
 }
 static __inline__ uae_u32 get_byte(uaecptr addr)
 {
+    uae_u8 *p = mem_direct_read[bankindex(addr)];
+    if (p) {
+	MEM_COUNT_DIRECT();
+	return p[addr & 0xffff];
+    }
+    MEM_COUNT_HANDLER();
     return byteget_1(addr);
 }
 static __inline__ void put_long(uaecptr addr, uae_u32 l)
 {
+    uae_u8 *p = mem_direct_write[bankindex(addr)];
+    if (p && (addr & 0xffff) <= 0xfffc) {
+	MEM_COUNT_DIRECT();
+	do_put_mem_long ((uae_u32 *)(p + (addr & 0xffff)), swab_l(l));
+	return;
+    }
+    MEM_COUNT_HANDLER();
     longput_1(addr, l);
 }
 static __inline__ void put_word(uaecptr addr, uae_u32 w)
 {
+    uae_u8 *p = mem_direct_write[bankindex(addr)];
+    if (p && (addr & 0xffff) <= 0xfffe) {
+	MEM_COUNT_DIRECT();
+	do_put_mem_word ((uae_u16 *)(p + (addr & 0xffff)), swab_w(w));
+	return;
+    }
+    MEM_COUNT_HANDLER();
     wordput_1(addr, w);
 }
 static __inline__ void put_byte(uaecptr addr, uae_u32 b)
 {
+    uae_u8 *p = mem_direct_write[bankindex(addr)];
+    if (p) {
+	MEM_COUNT_DIRECT();
+	p[addr & 0xffff] = b;
+	return;
+    }
+    MEM_COUNT_HANDLER();
     byteput_1(addr, b);
 }
 
@@ -198,6 +269,15 @@ static __inline__ int valid_address(uaecptr addr, uae_u32 size)
     return get_mem_bank(addr).check(addr, size);
 }
 
+/* Write generation of each 4KB block of chip memory, bumped by the
+   chipmem_*put handlers. Pages flagged with chipmem_write_guard lose their
+   direct CPU write pointer so that every write to them is counted. */
+#define CHIPMEM_WGEN_SHIFT 12
+extern uae_u32 chipmem_wgen[];
+extern void chipmem_write_guard (uae_u32 page, int on);
+extern void chipmem_wgen_range (uae_u32 lo, uae_u32 hi);
+extern void chipmem_blit_guard (uae_u32 lo, uae_u32 end, uae_u32 dlo, uae_u32 dend);
+
 /* For faster access in custom chip emulation.  */
 extern uae_u32 chipmem_lget (uaecptr) REGPARAM;
 extern uae_u32 chipmem_wget (uaecptr) REGPARAM;
@@ -0,0 +1,16 @@
+ /*
+  * UAE - The Un*x Amiga Emulator
+  *
+  * Rewind history of delta compressed snapshots
+  */
+
+/* Frames between two captures, and while rewinding between two steps back */
+#define REWIND_INTERVAL 10
+#define REWIND_STEP 2
+#define REWIND_MAX_ENTRIES 1024
+
+extern int rewind_cost_us;
+
+extern void rewind_set_budget (int megabytes);
+extern void rewind_reset (void);
+extern void rewind_vsync (void);
@@ -0,0 +1,16 @@
+ /*
+  * UAE - The Un*x Amiga Emulator
+  *
+  * Run-ahead: present frames emulated ahead of the real one
+  */
+
+#define RUNAHEAD_MAX 4
+
+extern int runahead_frames;	/* frames to run ahead, 0 for off */
+extern int runahead_ahead;	/* the frame being emulated is one of them */
+extern int runahead_cost;	/* extra emulation time, percent of the real frames */
+extern int runahead_load;	/* all emulation time, percent of the frame period */
+
+extern int runahead_frame_end (void);
+extern int runahead_hide_frame (void);
+extern void runahead_vsync (void);
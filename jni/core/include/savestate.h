@@ -70,10 +70,10 @@ extern uae_u8 *save_cia (int, int *);
 extern uae_u8 *restore_expansion (uae_u8 *);
 extern uae_u8 *save_expansion (int *);
 
-extern void restore_cram (int, long);
-extern void restore_bram (int, long);
-extern void restore_fram (int, long);
-extern void restore_zram (int, long);
+extern void restore_cram (int, uae_u8 *);
+extern void restore_bram (int, uae_u8 *);
+extern void restore_fram (int, uae_u8 *);
+extern void restore_zram (int, uae_u8 *);
 extern uae_u8 *save_cram (int *);
 extern uae_u8 *save_bram (int *);
 extern uae_u8 *save_fram (int *);
@@ -82,8 +82,58 @@ extern uae_u8 *save_zram (int *);
 extern uae_u8 *restore_rom (uae_u8 *);
 extern uae_u8 *save_rom (int, int *);
 
+/* Growable memory buffer; with fixed set data is never reallocated and
+   len may end up larger than size, telling how much was needed.  */
+struct savestate_buffer {
+    uae_u8 *data;
+    long len, size;
+    int fixed;
+};
+
+/* Where save_chunk output goes: a FILE, a savestate_buffer or a zlib
+   stream feeding another writer.  */
+struct savestate_writer {
+    int (*write) (struct savestate_writer *, const void *, long);
+    FILE *f;
+    struct savestate_buffer *buf;
+    struct savestate_writer *next;
+    struct z_stream_s *z;
+    int failed;
+    uae_u32 *crc;	/* gets the CRC of every chunk written when set */
+    int crcs;
+};
+
+extern void savestate_writer_file (struct savestate_writer *w, FILE *f);
+extern void savestate_writer_mem (struct savestate_writer *w, struct savestate_buffer *b);
+extern int savestate_writer_zlib (struct savestate_writer *w, struct savestate_writer *next, int level);
+extern int savestate_writer_close (struct savestate_writer *w);
+
+extern int savestate_save_to (struct savestate_writer *w, char *description);
+extern int snapshot_to_buffer (struct savestate_buffer *b, int level);
+extern int restore_from_buffer (uae_u8 *data, long len);
+extern long savestate_request_snapshot (uae_u8 *dst, long size);
+extern int savestate_request_restore (uae_u8 *src, long len);
+extern void savestate_vsync (void);
+
 extern void save_state (char *filename, char *description);
 extern void restore_state (char *filename);
+extern void savestate_restore_ram (char *name, uae_u8 *dst, long size);
+extern void savestate_load (char *filename);
+extern void savestate_autosave_init (char *filename, int restore);
+extern void savestate_autosave (void);
+extern void savestate_sync (void);
+extern void savestate_store_open (const char *dir);
+
+/* Slots 0 .. SAVESTATE_SLOTS-1 per disk, listed with a thumbnail in the
+   disk's slot index */
+#define SAVESTATE_SLOTS 8
+#define SAVESTATE_THUMB_WIDTH 80
+#define SAVESTATE_THUMB_HEIGHT 60
+
+extern unsigned savestate_frames;
+extern void savestate_slot_filename (char *dst, const char *disk, int slot);
+extern void savestate_index_slot (const char *disk, int slot);
+extern void savestate_index_load (const char *disk, int slot);
 
 extern void custom_save_state (void);
 
@@ -94,4 +144,3 @@ extern void custom_save_state (void);
 
 extern int savestate_state;
 extern char *savestate_filename;
-extern FILE *savestate_file;
@@ -0,0 +1,23 @@
+ /*
+  * UAE - The Un*x Amiga Emulator
+  *
+  * Deduplicated page store for state files
+  */
+
+#define SAVESTORE_PAGE 4096
+#define SAVESTORE_KEY 12
+/* chunk flag: the data is a page list, see savestore_put */
+#define SAVESTORE_CHUNK_PAGED 4
+
+extern void savestore_open (const char *dir);
+extern int savestore_enabled (void);
+extern uae_u8 *savestore_put (uae_u8 *data, long len, long *outlen);
+extern long savestore_length (uae_u8 *list, long len);
+extern int savestore_read (uae_u8 *list, long len, uae_u8 *dst, long size);
+extern uae_u8 *savestore_get (uae_u8 *list, long len, long *outlen);
+extern int savestore_sync (void);
+extern void savestore_release (const char *statefile);
+extern void savestore_retain (const char *statefile);
+extern void savestore_register (const char *statefile);
+extern void savestore_collect (void);
+extern void savestore_report (const char *statefile, long us);
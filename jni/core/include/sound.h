@@ -25,6 +25,8 @@ extern void sound_default_evtime(void);
 extern void uae4all_pause_music(void);
 extern void pause_sound (void);
 extern void resume_sound (void);
+extern void sound_ahead_begin (void);
+extern void sound_ahead_end (void);
 extern void uae4all_init_sound(void);
 extern void uae4all_resume_music(void);
 extern void uae4all_play_click(void);
@@ -9,6 +9,7 @@
 extern FILE *zfile_open (const char *, const char *);
 extern int zfile_close (FILE *);
 extern void zfile_exit (void);
+extern void zfile_prefetch_set (const char *);
 
 extern size_t uae4all_fread( void *ptr, size_t tam, size_t nmiemb, FILE *flujo);
 extern size_t uae4all_fwrite( void *ptr, size_t tam, size_t nmiemb, FILE *flujo);
@@ -22,3 +23,5 @@ extern FILE *uae4all_rom_fopen(const char *name, const char *mode);
 extern int uae4all_rom_fclose(FILE *flujo);
 extern void uae4all_rom_reinit(void);
 extern void uae4all_flush_disk(int n);
+extern int zfile_writes_pending(void);
+extern int zfile_sync_writes(int timeout_ms);
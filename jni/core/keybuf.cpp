@@ -68,3 +68,14 @@ void keybuf_init (void)
 {
     kpb_first = kpb_last = 0;
 }
+
+/* Where get_next_key is, for run-ahead to go back to */
+int keybuf_mark (void)
+{
+    return kpb_last;
+}
+
+void keybuf_rewind (int mark)
+{
+    kpb_last = mark;
+}
@@ -45,6 +45,10 @@ extern "C" int main( int argc, char *argv[] );
 #include "bsdsocket.h"
 #include "drawing.h"
 #include "savestate.h"
+#include "rewind.h"
+#include "runahead.h"
+#include "bootcache.h"
+#include "savestore.h"
 
 #ifdef USE_SDL
 #include "SDL.h"
@@ -128,7 +132,9 @@ int pause_program = 0;
 
 extern "C" void
 JAVA_EXPORT_NAME(DemoRenderer_nativePause) ( JNIEnv*  env, jobject  thiz) {
-	pause_program = 1;
+	/* stops at the next vsync, after taking the autosave */
+	if (!pause_program)
+		pause_program = -1;
 }
 
 extern "C" void
@@ -143,10 +149,137 @@ JAVA_EXPORT_NAME(DemoActivity_nativeReset) ( JNIEnv*  env, jobject  thiz) {
 
 extern "C" void
 JAVA_EXPORT_NAME(DemoActivity_nativeQuit) ( JNIEnv*  env, jobject  thiz) {
+	/* Let a pending autosave be taken, for up to a second */
+	for (int i = 0; i < 100 && pause_program < 0; i++)
+		usleep(10000);
+	/* Let the emulation thread hand over the last disk changes */
+	pause_program = 0;
+	zfile_sync_writes(3000);
+	savestate_sync();
 	uae_quit();
 	exit(0);
 }
 
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setAutoSave) ( JNIEnv*  env, jobject  thiz, jstring filename, jint restore) {
+	const char *sfile = (env)->GetStringUTFChars(filename, 0);
+	savestate_autosave_init((char *) sfile, restore);
+	(env)->ReleaseStringUTFChars(filename, sfile);
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setStateStore) ( JNIEnv*  env, jobject  thiz, jstring dir) {
+	const char *sdir = (env)->GetStringUTFChars(dir, 0);
+	savestate_store_open(sdir);
+	(env)->ReleaseStringUTFChars(dir, sdir);
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setBootCache) ( JNIEnv*  env, jobject  thiz, jstring dir) {
+	const char *sdir = (env)->GetStringUTFChars(dir, 0);
+	bootcache_init((char *) sdir);
+	(env)->ReleaseStringUTFChars(dir, sdir);
+}
+
+extern "C" jint
+JAVA_EXPORT_NAME(DemoActivity_nativeDiskWritesPending) ( JNIEnv*  env, jobject  thiz) {
+	return zfile_writes_pending();
+}
+
+extern int mainMenu_diskCompression;
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setDiskCompression) ( JNIEnv*  env, jobject  thiz, jint level) {
+	mainMenu_diskCompression = level;
+}
+
+extern int mainMenu_floppyTurbo;
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setFloppyTurbo) ( JNIEnv*  env, jobject  thiz, jint turbo) {
+	mainMenu_floppyTurbo = turbo;
+}
+
+extern int mainMenu_autoWarp;
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setAutoWarp) ( JNIEnv*  env, jobject  thiz, jint warp) {
+	mainMenu_autoWarp = warp;
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setFastForward) ( JNIEnv*  env, jobject  thiz, jint on) {
+	gui_ffwd = on;
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setFastForwardCap) ( JNIEnv*  env, jobject  thiz, jint cap) {
+	mainMenu_ffwdCap = cap;
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setJoystickLatch) ( JNIEnv*  env, jobject  thiz, jint line) {
+	joystick_latch_line = line;
+}
+
+extern int ffwd_speed;
+
+extern "C" jint
+JAVA_EXPORT_NAME(DemoActivity_nativeFastForwardSpeed) ( JNIEnv*  env, jobject  thiz) {
+	return ffwd_speed;
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setRewind) ( JNIEnv*  env, jobject  thiz, jint on) {
+	gui_rewind = on;
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setRewindMemory) ( JNIEnv*  env, jobject  thiz, jint megabytes) {
+	rewind_set_budget(megabytes);
+}
+
+extern "C" jint
+JAVA_EXPORT_NAME(DemoActivity_nativeRewindCost) ( JNIEnv*  env, jobject  thiz) {
+	return rewind_cost_us;
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setRunAhead) ( JNIEnv*  env, jobject  thiz, jint frames) {
+	runahead_frames = frames;
+}
+
+extern "C" jint
+JAVA_EXPORT_NAME(DemoActivity_nativeRunAheadCost) ( JNIEnv*  env, jobject  thiz) {
+	return runahead_cost;
+}
+
+extern "C" jint
+JAVA_EXPORT_NAME(DemoActivity_nativeRunAheadLoad) ( JNIEnv*  env, jobject  thiz) {
+	return runahead_frames ? runahead_load : 0;
+}
+
+// Snapshot into a direct ByteBuffer at the next vsync: returns its size,
+// minus the size needed if the buffer is too small, 0 on failure
+extern "C" jint
+JAVA_EXPORT_NAME(DemoActivity_nativeSnapshot) ( JNIEnv*  env, jobject  thiz, jobject buffer) {
+	uae_u8 *dst = (uae_u8 *) (env)->GetDirectBufferAddress(buffer);
+	jlong size = (env)->GetDirectBufferCapacity(buffer);
+
+	if (!dst || size <= 0)
+		return 0;
+	return savestate_request_snapshot(dst, size);
+}
+
+extern "C" jboolean
+JAVA_EXPORT_NAME(DemoActivity_nativeRestoreSnapshot) ( JNIEnv*  env, jobject  thiz, jobject buffer, jint len) {
+	uae_u8 *src = (uae_u8 *) (env)->GetDirectBufferAddress(buffer);
+
+	if (!src || len <= 0 || len > (env)->GetDirectBufferCapacity(buffer))
+		return JNI_FALSE;
+	return savestate_request_restore(src, len) ? JNI_TRUE : JNI_FALSE;
+}
+
 int mainMenu_showStatus;
 int mainMenu_ntsc;
 int right_mouse;
@@ -260,24 +393,13 @@ JAVA_EXPORT_NAME(DemoActivity_setPrefs) ( JNIEnv*  env, jobject  thiz, jstring r
 extern "C" void
 JAVA_EXPORT_NAME(DemoActivity_saveState) ( JNIEnv*  env, jobject  thiz,  jstring filename, jint num) {
 
-	savestate_state = STATE_DOSAVE;
 	const char *srom = (env)->GetStringUTFChars(filename, 0);
-	strcpy(savestate_filename, srom);
-
-	switch(num)
-	{
-		case 1:
-			strcat(savestate_filename,"-1.asf");
-		case 2:
-			strcat(savestate_filename,"-2.asf");
-		case 3:
-			strcat(savestate_filename,"-3.asf");
-		default: 
-			strcat(savestate_filename,".asf");
-	}
-
+	savestate_slot_filename(savestate_filename, srom, num);
+	savestate_index_slot(srom, num);
 	(env)->ReleaseStringUTFChars(filename, srom);
-		
+
+	/* taken at the next vsync, once the name is set */
+	savestate_state = STATE_DOSAVE;
 	__android_log_print(ANDROID_LOG_INFO, "UAE", "Saved %s", savestate_filename);
 
 }
@@ -296,23 +418,13 @@ JAVA_EXPORT_NAME(DemoActivity_loadState) ( JNIEnv*  env, jobject  thiz,  jstring
 
 	//
 
-	savestate_state = STATE_DORESTORE;
 	const char *srom = (env)->GetStringUTFChars(filename, 0);
-	strcpy(savestate_filename, srom);
-
-	switch(num)
-	{
-		case 1:
-			strcat(savestate_filename,"-1.asf");
-		case 2:
-			strcat(savestate_filename,"-2.asf");
-		case 3:
-			strcat(savestate_filename,"-3.asf");
-		default: 
-			strcat(savestate_filename,".asf");
-	}
-
+	savestate_slot_filename(savestate_filename, srom, num);
+	savestate_index_load(srom, num);
 	(env)->ReleaseStringUTFChars(filename, srom);
+
+	/* restored at the next vsync once read */
+	savestate_load(savestate_filename);
 		
 	__android_log_print(ANDROID_LOG_INFO, "UAE", "Loaded %s", savestate_filename);
 
@@ -470,6 +582,9 @@ void real_main (int argc, char **argv)
     keybuf_init (); /* Must come after init_joystick */
 
     memory_init ();
+#ifdef ANDROID
+    bootcache_kickstart_loaded ();
+#endif
 
     custom_init (); /* Must come after memory_init */
     DISK_init ();
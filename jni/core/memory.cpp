@@ -20,6 +20,7 @@
 #include "m68k/m68k_intrf.h"
 #include "autoconf.h"
 #include "savestate.h"
+#include "blitter.h"
 
 int bReloadKickstart = 0;
 
@@ -51,13 +52,11 @@ uae_u32 allocated_gfxmem;
 uae_u32 allocated_z3fastmem;
 uae_u32 allocated_a3000mem;
 
-static long chip_filepos;
-static long bogo_filepos;
+/* Set when the state being restored has RAM contents, see restore_cram */
+static uae_u8 *chip_src;
+static uae_u8 *bogo_src;
 static long rom_filepos;
 
-#include <zlib.h>
-static long compressed_size;
-
 addrbank *mem_banks[65536];
 
 /* This has two functions. It either holds a host address that, when added
@@ -68,6 +67,32 @@ addrbank *mem_banks[65536];
 
 uae_u8 *baseaddr[65536];
 
+/* Per-page host pointers used by get_long() and friends to skip the bank
+   handlers (see put_mem_bank). Kickstart ROM is only direct for reads so
+   that the A1000 write protection keeps going through kickmem_*put. */
+
+uae_u8 *mem_direct_read[65536];
+uae_u8 *mem_direct_write[65536];
+
+#ifdef DEBUG_MEMORY_FASTPATH
+unsigned mem_direct_count = 0, mem_handler_count = 0;
+
+void memory_fastpath_stats (void)
+{
+    static unsigned frames = 0;
+    static unsigned direct = 0, handler = 0;
+
+    direct += mem_direct_count;
+    handler += mem_handler_count;
+    mem_direct_count = mem_handler_count = 0;
+    if (++frames >= 50) {
+	__android_log_print (ANDROID_LOG_INFO, "UAE", "memory: %u direct, %u handler accesses per frame",
+			     direct / frames, handler / frames);
+	frames = direct = handler = 0;
+    }
+}
+#endif
+
 #ifdef NO_INLINE_MEMORY_ACCESS
 static __inline__ uae_u32 longget (uaecptr addr)
 {
@@ -282,12 +307,94 @@ unsigned chipmem_checksum(void)
 static int chipmem_check (uaecptr addr, uae_u32 size) REGPARAM;
 static uae_u8 *chipmem_xlate (uaecptr addr) REGPARAM;
 
+/* Sized for 2MB of chip memory plus one, so that a long write at the very
+   end of chip memory can bump the following block without masking.  */
+uae_u32 chipmem_wgen[(0x200000 >> CHIPMEM_WGEN_SHIFT) + 1];
+static uae_u8 chipmem_guarded[0x200000 >> 16];
+/* Pages a threaded blit reads (1) or writes (2).  */
+static uae_u8 chipmem_blitbusy[0x200000 >> 16];
+
+#ifdef USE_BLITTER_THREAD
+/* Accesses that could see or disturb a blit still running on the worker
+   thread wait for it.  Reads only conflict with what the blit writes.  */
+#define CHIPMEM_BLITWAIT_READ(addr, size) \
+    if ((addr) < blitter_thread_dend && (addr) + (size) > blitter_thread_dlo) \
+	blitter_thread_finish (BLTSYNC_CHIP)
+#define CHIPMEM_BLITWAIT_WRITE(addr, size) \
+    if ((addr) < blitter_thread_end && (addr) + (size) > blitter_thread_lo) \
+	blitter_thread_finish (BLTSYNC_CHIP)
+#else
+#define CHIPMEM_BLITWAIT_READ(addr, size)
+#define CHIPMEM_BLITWAIT_WRITE(addr, size)
+#endif
+
+/* Every 64KB page chip memory is mapped at, mirrors and the aliases in
+   the high address byte included.  Rebuilt after map_banks.  */
+static uae_u16 chipmem_pages[65536];
+static int chipmem_npages = -1;
+
+static void chipmem_update_direct (void)
+{
+    int i, bnr;
+
+    if (chipmem_npages < 0) {
+	chipmem_npages = 0;
+	for (bnr = 0; bnr < 65536; bnr++)
+	    if (mem_banks[bnr] == &chipmem_bank)
+		chipmem_pages[chipmem_npages++] = bnr;
+    }
+    for (i = 0; i < chipmem_npages; i++) {
+	uae_u32 offs;
+	bnr = chipmem_pages[i];
+	offs = (bnr << 16) & chipmem_mask;
+	mem_direct_read[bnr] = chipmem_blitbusy[offs >> 16] & 2 ? NULL : chipmemory + offs;
+	mem_direct_write[bnr] = chipmem_guarded[offs >> 16] || chipmem_blitbusy[offs >> 16] ? NULL : chipmemory + offs;
+    }
+}
+
+/* For code that writes chipmemory directly, lo and hi are the chip offsets
+   of the first and last byte written.  */
+void chipmem_wgen_range (uae_u32 lo, uae_u32 hi)
+{
+    uae_u32 blk;
+
+    for (blk = lo >> CHIPMEM_WGEN_SHIFT; blk <= (hi >> CHIPMEM_WGEN_SHIFT); blk++)
+	chipmem_wgen[blk]++;
+}
+
+/* Sends CPU accesses to the pages of [lo,end) (and reads from the pages of
+   [dlo,dend)) through the handlers while a blit works on them.  All zero
+   lifts it again.  */
+void chipmem_blit_guard (uae_u32 lo, uae_u32 end, uae_u32 dlo, uae_u32 dend)
+{
+    uae_u32 page;
+
+    memset (chipmem_blitbusy, 0, sizeof (chipmem_blitbusy));
+    if (end)
+	for (page = lo >> 16; page <= ((end - 1) >> 16); page++)
+	    chipmem_blitbusy[page] |= 1;
+    if (dend)
+	for (page = dlo >> 16; page <= ((dend - 1) >> 16); page++)
+	    chipmem_blitbusy[page] |= 2;
+    chipmem_update_direct ();
+}
+
+void chipmem_write_guard (uae_u32 page, int on)
+{
+    page &= (sizeof (chipmem_guarded) - 1);
+    if (chipmem_guarded[page] == on)
+	return;
+    chipmem_guarded[page] = on;
+    chipmem_update_direct ();
+}
+
 uae_u32 REGPARAM2 chipmem_lget (uaecptr addr)
 {
     uae_u32 *m;
 
     addr -= chipmem_start & chipmem_mask;
     addr &= chipmem_mask;
+    CHIPMEM_BLITWAIT_READ (addr, 4);
     m = (uae_u32 *)(chipmemory + addr);
     return swab_l(do_get_mem_long (m));
 }
@@ -298,6 +405,7 @@ uae_u32 REGPARAM2 chipmem_wget (uaecptr addr)
 
     addr -= chipmem_start & chipmem_mask;
     addr &= chipmem_mask;
+    CHIPMEM_BLITWAIT_READ (addr, 2);
     m = (uae_u16 *)(chipmemory + addr);
     return swab_w(do_get_mem_word (m));
 }
@@ -306,6 +414,7 @@ uae_u32 REGPARAM2 chipmem_bget (uaecptr addr)
 {
     addr -= chipmem_start & chipmem_mask;
     addr &= chipmem_mask;
+    CHIPMEM_BLITWAIT_READ (addr, 1);
     return chipmemory[addr];
 }
 
@@ -315,6 +424,9 @@ void REGPARAM2 chipmem_lput (uaecptr addr, uae_u32 l)
 
     addr -= chipmem_start & chipmem_mask;
     addr &= chipmem_mask;
+    CHIPMEM_BLITWAIT_WRITE (addr, 4);
+    chipmem_wgen[addr >> CHIPMEM_WGEN_SHIFT]++;
+    chipmem_wgen[(addr + 3) >> CHIPMEM_WGEN_SHIFT]++;
     m = (uae_u32 *)(chipmemory + addr);
     do_put_mem_long (m, swab_l(l));
 }
@@ -325,6 +437,8 @@ void REGPARAM2 chipmem_wput (uaecptr addr, uae_u32 w)
 
     addr -= chipmem_start & chipmem_mask;
     addr &= chipmem_mask;
+    CHIPMEM_BLITWAIT_WRITE (addr, 2);
+    chipmem_wgen[addr >> CHIPMEM_WGEN_SHIFT]++;
     m = (uae_u16 *)(chipmemory + addr);
     do_put_mem_word (m, swab_w(w));
 }
@@ -333,6 +447,8 @@ void REGPARAM2 chipmem_bput (uaecptr addr, uae_u32 b)
 {
     addr -= chipmem_start & chipmem_mask;
     addr &= chipmem_mask;
+    CHIPMEM_BLITWAIT_WRITE (addr, 1);
+    chipmem_wgen[addr >> CHIPMEM_WGEN_SHIFT]++;
     chipmemory[addr] = b;
 }
 
@@ -347,6 +463,9 @@ uae_u8 REGPARAM2 *chipmem_xlate (uaecptr addr)
 {
     addr -= chipmem_start & chipmem_mask;
     addr &= chipmem_mask;
+    /* No telling what will be done through the pointer.  */
+    if (chipmem_blitbusy[addr >> 16])
+	blitter_thread_sync (BLTSYNC_CHIP);
     return chipmemory + addr;
 }
 
@@ -801,13 +920,13 @@ addrbank mbres_bank = {
 addrbank chipmem_bank = {
     chipmem_lget, chipmem_wget, chipmem_bget,
     chipmem_lput, chipmem_wput, chipmem_bput,
-    chipmem_xlate, chipmem_check, NULL
+    chipmem_xlate, chipmem_check, NULL, MEMBANK_DIRECT
 };
 
 addrbank bogomem_bank = {
     bogomem_lget, bogomem_wget, bogomem_bget,
     bogomem_lput, bogomem_wput, bogomem_bput,
-    bogomem_xlate, bogomem_check, NULL
+    bogomem_xlate, bogomem_check, NULL, MEMBANK_DIRECT
 };
 
 addrbank a3000mem_bank = {
@@ -819,7 +938,7 @@ addrbank a3000mem_bank = {
 addrbank kickmem_bank = {
     kickmem_lget, kickmem_wget, kickmem_bget,
     kickmem_lput, kickmem_wput, kickmem_bput,
-    kickmem_xlate, kickmem_check, NULL
+    kickmem_xlate, kickmem_check, NULL, MEMBANK_DIRECT_READ
 };
 
 addrbank extendedkickmem_bank = {
@@ -1139,27 +1258,12 @@ static void allocate_memory (void)
 
     if (savestate_state == STATE_RESTORE)
     {
-	    fseek (savestate_file, chip_filepos, SEEK_SET);
-
-	    void *tmp=malloc(compressed_size);
-	    int outSize=allocated_chipmem;
-	    int inSize=compressed_size;
-	    int res;
-	    fread (tmp, 1, compressed_size, savestate_file);
-	    res=uncompress((Bytef *)chipmemory, (uLongf *)&outSize, (const Bytef *)tmp, (uLong) inSize);
-	    free(tmp);
-	    if(res != Z_OK)
-	    {
-	        // decompression failed - treat data literaly
-		    allocated_chipmem=compressed_size;
-		    fseek (savestate_file, chip_filepos, SEEK_SET);
-		    fread (chipmemory, 1, allocated_chipmem, savestate_file);
-	    }
-	    if (allocated_bogomem > 0)
-	    {
-		    fseek (savestate_file, bogo_filepos, SEEK_SET);
-		    fread (bogomemory, 1, allocated_bogomem, savestate_file);
-	    }
+	    /* unpacked straight from the state into place */
+	    if (chip_src)
+		    savestate_restore_ram ("CRAM", chipmemory, allocated_chipmem);
+	    if (allocated_bogomem > 0 && bogo_src)
+		    savestate_restore_ram ("BRAM", bogomemory, allocated_bogomem);
+	    chip_src = bogo_src = 0;
     }
 
     chipmem_bank.baseaddr = chipmemory;
@@ -1206,6 +1310,13 @@ void memory_reset (void)
 #endif
     map_banks (&chipmem_bank, 0x00, i, allocated_chipmem);
 
+    /* Chip memory contents were just replaced behind the handlers' back,
+       so drop all write guards and invalidate everything cached on it. */
+    memset (chipmem_guarded, 0, sizeof (chipmem_guarded));
+    memset (chipmem_blitbusy, 0, sizeof (chipmem_blitbusy));
+    for (i = 0; i < (int)(sizeof (chipmem_wgen) / sizeof (chipmem_wgen[0])); i++)
+	chipmem_wgen[i]++;
+
     custom_start = 0xC0;
 
 #ifdef DEBUG_MEMORY
@@ -1357,6 +1468,7 @@ void map_banks (addrbank *bank, int start, int size, int realsize)
 #ifdef NATMEM_OFFSET
     delete_shmmaps (start << 16, size << 16);
 #endif
+    chipmem_npages = -1;
 
     if (!realsize)
 	realsize = size << 16;
@@ -1407,6 +1519,9 @@ void map_banks (addrbank *bank, int start, int size, int realsize)
 	    real_left--;
 	}
     }
+    /* the new pages keep the guards of the pages they mirror */
+    if (bank == &chipmem_bank)
+	chipmem_update_direct ();
 #ifdef DEBUG_MEMORY
     dbg("!Map!");
 #endif
@@ -1427,15 +1542,14 @@ uae_u8 *save_bram (int *len)
     return bogomemory;
 }
 
-void restore_cram (int len, long filepos)
+void restore_cram (int len, uae_u8 *src)
 {
-    chip_filepos = filepos;
-    compressed_size=len;
+    chip_src = src;
 }
 
-void restore_bram (int len, long filepos)
+void restore_bram (int len, uae_u8 *src)
 {
-    bogo_filepos = filepos;
+    bogo_src = src;
 }
 
 uae_u8 *restore_rom (uae_u8 *src)
@@ -1512,21 +1626,23 @@ uae_u8 *save_zram (int *len)
     return NULL;
 }
 
-void restore_fram (int len, long filepos)
+void restore_fram (int len, uae_u8 *src)
 {
 }
 
-void restore_zram (int len, long filepos)
+void restore_zram (int len, uae_u8 *src)
 {
 }
 
 uae_u8 *save_expansion (int *len)
 {
-    static uae_u8 t[20], *dst = t;
+    uae_u8 *dstbak, *dst;
+
+    dstbak = dst = (uae_u8 *)malloc (8);
     save_u32 (0);
     save_u32 (0);
     *len = 8;
-    return dst;
+    return dstbak;
 }
 
 uae_u8 *restore_expansion (uae_u8 *src)
@@ -447,6 +447,30 @@ void read_joystick(int nr, unsigned int *dir, int *button)
 #endif
 #endif
 }
+
+#ifdef ANDROID
+extern "C" void SDL_ANDROID_JoystickLatch (int nr, int vsync, unsigned int *dir, int *button);
+extern "C" int SDL_ANDROID_JoystickAge (int nr);
+extern "C" void SDL_ANDROID_MouseLatch (int *x, int *y);
+
+/* The state the UI thread published last, rather than what the event
+   queue held at vsync; nr as for read_joystick */
+void latch_joystick (int nr, int vsync, unsigned int *dir, int *button)
+{
+    SDL_ANDROID_JoystickLatch (nr, vsync, dir, button);
+}
+
+int joystick_age (int nr)
+{
+    return SDL_ANDROID_JoystickAge (nr);
+}
+
+/* The published mouse position, 16 bit counters that wrap */
+void latch_mouse (int *x, int *y)
+{
+    SDL_ANDROID_MouseLatch (x, y);
+}
+#endif
 void init_joystick(void)
 {
     int i;
@@ -0,0 +1,249 @@
+ /*
+  * UAE - The Un*x Amiga Emulator
+  *
+  * Rewind history of delta compressed snapshots
+  *
+  * Every REWIND_INTERVAL frames the whole state is taken with
+  * snapshot_to_buffer, the same chunks (CPU, CIAs, custom chips, chip and
+  * bogo RAM...) a state file holds.  Only the latest one is kept whole.
+  * Each older one is kept as the XOR against its successor, with the runs
+  * of unchanged words left out, so a frame that touched a few kilobytes of
+  * chip RAM costs a few kilobytes.  Going back applies the newest delta to
+  * the whole state in place, which then is the previous snapshot, and
+  * hands it to restore_from_buffer.  When the budget is full the oldest
+  * deltas are dropped.
+  */
+
+#include "sysconfig.h"
+#include "sysdeps.h"
+
+#include "config.h"
+#include "uae.h"
+#include "options.h"
+#include "gui.h"
+#include "savestate.h"
+#include "rewind.h"
+
+#include <sys/time.h>
+
+int rewind_cost_us = 0;	/* average capture time over the last second */
+
+static long rewind_budget = 0;
+/* latest snapshot and the next one being taken */
+static struct savestate_buffer rewind_cur, rewind_new;
+/* restoring: rewind_cur is what the emulation last went back to */
+static int rewind_at_cur = 0;
+static int rewind_frames = 0;
+
+/* Deltas, oldest first, each starting with the length of the state it
+   gives back */
+static uae_u32 *rewind_entry[REWIND_MAX_ENTRIES];
+static long rewind_entry_len[REWIND_MAX_ENTRIES];
+static int rewind_first = 0, rewind_count = 0;
+static long rewind_used = 0;
+
+static uae_u32 *rewind_scratch = 0;
+static long rewind_scratch_size = 0;
+
+static unsigned rewind_captures = 0, rewind_capture_us = 0;
+
+#define ROUND4(n) (((n) + 3) & ~3)
+
+static void rewind_drop_oldest (void)
+{
+    free (rewind_entry[rewind_first]);
+    rewind_used -= rewind_entry_len[rewind_first];
+    rewind_first = (rewind_first + 1) % REWIND_MAX_ENTRIES;
+    rewind_count--;
+}
+
+void rewind_reset (void)
+{
+    while (rewind_count)
+	rewind_drop_oldest ();
+    free (rewind_cur.data);
+    free (rewind_new.data);
+    free (rewind_scratch);
+    memset (&rewind_cur, 0, sizeof rewind_cur);
+    memset (&rewind_new, 0, sizeof rewind_new);
+    rewind_scratch = 0;
+    rewind_scratch_size = 0;
+    rewind_at_cur = 0;
+    rewind_frames = 0;
+}
+
+/* Applied by the emulation thread, at the next capture */
+void rewind_set_budget (int megabytes)
+{
+    rewind_budget = (long)megabytes << 20;
+}
+
+static int rewind_reserve (struct savestate_buffer *b, long len)
+{
+    uae_u8 *p;
+
+    if (len <= b->size)
+	return 1;
+    p = (uae_u8 *)realloc (b->data, len);
+    if (!p)
+	return 0;
+    b->data = p;
+    b->size = len;
+    return 1;
+}
+
+/* Encodes a against b (both word aligned, b read as zero past blen) into
+   out: alen, then runs of { words skipped, words given, a ^ b words }.
+   A literal run ends at two unchanged words in a row.  */
+static long rewind_encode (uae_u32 *out, const uae_u32 *a, long alen, const uae_u32 *b, long blen)
+{
+    long n = ROUND4 (alen) / 4, nb = ROUND4 (blen) / 4, i = 0;
+    uae_u32 *o = out;
+
+    *o++ = alen;
+    while (i < n) {
+	long skip = i, lit;
+	uae_u32 *count;
+
+	while (i < n && i < nb && a[i] == b[i])
+	    i++;
+	if (i == n)
+	    break;
+	*o++ = i - skip;
+	count = o++;
+	lit = i;
+	while (i < n) {
+	    uae_u32 x = a[i] ^ (i < nb ? b[i] : 0);
+	    if (!x && i + 1 < n && i + 1 < nb && a[i + 1] == b[i + 1])
+		break;
+	    *o++ = x;
+	    i++;
+	}
+	*count = i - lit;
+    }
+    return (o - out) * 4;
+}
+
+/* Turns the state in b back into the one delta was taken against, in
+   place, and returns its length */
+static long rewind_decode (struct savestate_buffer *b, const uae_u32 *delta, long len)
+{
+    const uae_u32 *d = delta, *end = delta + len / 4;
+    long alen = *d++, i = 0;
+    uae_u32 *p;
+
+    if (!rewind_reserve (b, ROUND4 (alen)))
+	return 0;
+    if (alen > b->len)
+	memset (b->data + ROUND4 (b->len), 0, ROUND4 (alen) - ROUND4 (b->len));
+    p = (uae_u32 *)b->data;
+    while (d < end) {
+	long n;
+	i += *d++;
+	n = *d++;
+	while (n--)
+	    p[i++] ^= *d++;
+    }
+    b->len = alen;
+    return alen;
+}
+
+static void rewind_capture (void)
+{
+    struct savestate_buffer t;
+    struct timeval t0, t1;
+    long len, need;
+    uae_u32 *e;
+
+    gettimeofday (&t0, NULL);
+    if (!snapshot_to_buffer (&rewind_new, 0))
+	return;
+    /* padding compared as zero on both sides */
+    if (!rewind_reserve (&rewind_new, ROUND4 (rewind_new.len)))
+	return;
+    memset (rewind_new.data + rewind_new.len, 0, ROUND4 (rewind_new.len) - rewind_new.len);
+
+    if (rewind_cur.len) {
+	need = ROUND4 (rewind_cur.len) / 2 * 3 + 16;
+	if (need > rewind_scratch_size) {
+	    free (rewind_scratch);
+	    rewind_scratch = (uae_u32 *)malloc (need);
+	    rewind_scratch_size = rewind_scratch ? need : 0;
+	}
+	if (!rewind_scratch)
+	    return;
+	len = rewind_encode (rewind_scratch, (uae_u32 *)rewind_cur.data, rewind_cur.len,
+			     (uae_u32 *)rewind_new.data, rewind_new.len);
+	/* the two whole states count against the budget as well */
+	while (rewind_count && (rewind_count == REWIND_MAX_ENTRIES
+	       || rewind_used + len + rewind_cur.size + rewind_new.size > rewind_budget))
+	    rewind_drop_oldest ();
+	e = (uae_u32 *)malloc (len);
+	if (e) {
+	    int slot = (rewind_first + rewind_count) % REWIND_MAX_ENTRIES;
+	    memcpy (e, rewind_scratch, len);
+	    rewind_entry[slot] = e;
+	    rewind_entry_len[slot] = len;
+	    rewind_used += len;
+	    rewind_count++;
+	}
+    }
+    t = rewind_cur;
+    rewind_cur = rewind_new;
+    rewind_new = t;
+    rewind_at_cur = 0;
+
+    gettimeofday (&t1, NULL);
+    rewind_capture_us += (t1.tv_sec - t0.tv_sec) * 1000000 + (t1.tv_usec - t0.tv_usec);
+    if (++rewind_captures * REWIND_INTERVAL >= 50) {
+	rewind_cost_us = rewind_capture_us / rewind_captures;
+	__android_log_print (ANDROID_LOG_INFO, "UAE", "rewind: %d us per capture, %d entries, %ld KB",
+			     rewind_cost_us, rewind_count, (rewind_used + rewind_cur.size + rewind_new.size) >> 10);
+	rewind_captures = rewind_capture_us = 0;
+    }
+}
+
+/* One step back: first to the latest snapshot, then through the deltas.
+   Past the oldest one it stays there for as long as the key is held.  */
+static void rewind_step (void)
+{
+    if (!rewind_cur.len)
+	return;
+    if (rewind_at_cur && rewind_count) {
+	int slot = (rewind_first + rewind_count - 1) % REWIND_MAX_ENTRIES;
+
+	if (!rewind_decode (&rewind_cur, rewind_entry[slot], rewind_entry_len[slot])) {
+	    rewind_reset ();
+	    return;
+	}
+	free (rewind_entry[slot]);
+	rewind_used -= rewind_entry_len[slot];
+	rewind_count--;
+    }
+    /* rewind_cur stays untouched until the restore is done */
+    if (restore_from_buffer (rewind_cur.data, rewind_cur.len))
+	rewind_at_cur = 1;
+}
+
+/* Called at vsync, after any pending state save or load */
+void rewind_vsync (void)
+{
+    if (!rewind_budget) {
+	if (rewind_cur.data)
+	    rewind_reset ();
+	return;
+    }
+    if (savestate_state)
+	return;
+    if (gui_rewind) {
+	if (++rewind_frames >= REWIND_STEP) {
+	    rewind_frames = 0;
+	    rewind_step ();
+	}
+	return;
+    }
+    if (++rewind_frames >= REWIND_INTERVAL) {
+	rewind_frames = 0;
+	rewind_capture ();
+    }
+}
@@ -0,0 +1,128 @@
+ /*
+  * UAE - The Un*x Amiga Emulator
+  *
+  * Run-ahead: present frames emulated ahead of the real one
+  *
+  * At the end of every real frame the state is taken with
+  * snapshot_to_buffer and runahead_frames more frames are emulated with the
+  * input as it is now.  None of them is paced or heard, and only the last
+  * one is drawn.  Then the snapshot is handed back to restore_from_buffer
+  * and the next real frame runs, hidden, from where the real one ended.
+  * What is on screen is thus always runahead_frames frames ahead, which
+  * hides that many frames of the game's own input lag.
+  *
+  * Frames ahead must leave nothing behind outside the snapshot: they take
+  * no new input (the ring, the key queue and the joystick presses are
+  * left for the real frame), the keys the CIA pulls from the keyboard
+  * buffer are put back, and nothing is written to disk images.
+  *
+  * The price is emulating 1 + runahead_frames frames per frame, plus a
+  * snapshot and a restore.  Both are measured and logged every second, as
+  * runahead_cost (the extra time in percent of the real frames) and
+  * runahead_load (all of it in percent of the frame period); once the load
+  * goes past 100 the emulation can't keep up any more.
+  */
+
+#include "sysconfig.h"
+#include "sysdeps.h"
+
+#include "config.h"
+#include "uae.h"
+#include "options.h"
+#include "gui.h"
+#include "custom.h"
+#include "sound.h"
+#include "savestate.h"
+#include "cia.h"
+#include "runahead.h"
+
+#include <sys/time.h>
+
+int runahead_frames = 0;
+int runahead_ahead = 0;
+int runahead_cost = 0;
+int runahead_load = 0;
+
+static struct savestate_buffer runahead_state;
+static int runahead_left = 0;
+
+/* t_start: after pacing at the end of the real frame, t_restore: after the
+   last frame ahead */
+static struct timeval runahead_t_start, runahead_t_restore;
+static unsigned runahead_busy_us = 0, runahead_extra_us = 0, runahead_count = 0;
+
+static unsigned runahead_us (struct timeval *t0, struct timeval *t1)
+{
+    return (t1->tv_sec - t0->tv_sec) * 1000000 + (t1->tv_usec - t0->tv_usec);
+}
+
+static int runahead_on (void)
+{
+    return runahead_frames > 0 && !gui_ffwd && !gui_autowarp && !gui_rewind;
+}
+
+/* Called first thing at vsync.  Returns whether the frame that just ended
+   was emulated ahead, which count_frame neither paces nor counts.  */
+int runahead_frame_end (void)
+{
+    struct timeval now;
+
+    if (runahead_ahead)
+	return 1;
+    if (!runahead_t_start.tv_sec)
+	return 0;
+    gettimeofday (&now, NULL);
+    runahead_busy_us += runahead_us (&runahead_t_start, &now);
+    runahead_extra_us += runahead_us (&runahead_t_start, &runahead_t_restore);
+    runahead_t_start.tv_sec = 0;
+    if (++runahead_count == 50) {
+	unsigned period = (beamcon0 & 0x20) ? 20000 : 16667;
+	unsigned real = runahead_busy_us - runahead_extra_us;
+
+	runahead_cost = real ? (int)((uae_u64)runahead_extra_us * 100 / real) : 0;
+	runahead_load = runahead_busy_us / runahead_count * 100 / period;
+	__android_log_print (ANDROID_LOG_INFO, "UAE", "run-ahead %d: +%d%% emulation time, %d%% of the frame period",
+			     runahead_frames, runahead_cost, runahead_load);
+	runahead_busy_us = runahead_extra_us = runahead_count = 0;
+    }
+    return 0;
+}
+
+/* Only the last frame ahead is drawn; the real ones never are */
+int runahead_hide_frame (void)
+{
+    if (runahead_ahead)
+	return runahead_left > 1;
+    return runahead_on ();
+}
+
+/* Called at vsync, after any pending state save or load */
+void runahead_vsync (void)
+{
+    if (runahead_ahead) {
+	if (--runahead_left > 0)
+	    return;
+	/* the last one is on screen, back to the real frame */
+	runahead_ahead = 0;
+	sound_ahead_end ();
+	CIA_ahead_end ();
+	if (!restore_from_buffer (runahead_state.data, runahead_state.len))
+	    __android_log_print (ANDROID_LOG_INFO, "UAE", "run-ahead: restore failed");
+	gettimeofday (&runahead_t_restore, NULL);
+	return;
+    }
+    if (!runahead_on () || savestate_state) {
+	if (runahead_state.data && !runahead_frames) {
+	    free (runahead_state.data);
+	    memset (&runahead_state, 0, sizeof runahead_state);
+	}
+	return;
+    }
+    gettimeofday (&runahead_t_start, NULL);
+    if (!snapshot_to_buffer (&runahead_state, 0))
+	return;
+    runahead_left = runahead_frames > RUNAHEAD_MAX ? RUNAHEAD_MAX : runahead_frames;
+    runahead_ahead = 1;
+    sound_ahead_begin ();
+    CIA_ahead_begin ();
+}
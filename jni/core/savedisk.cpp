@@ -22,18 +22,119 @@ unsigned savedisk_get_checksum(void *mem, unsigned size)
 
 
 
-void savedisk_apply_changes(void *mem, void *patch, unsigned patch_size)
+/* Same as recomputing savedisk_get_checksum after copying data over mem at
+   offset, without going through the whole image.  */
+unsigned savedisk_update_checksum(unsigned crc, void *mem, unsigned offset, void *data, unsigned size)
+{
+	unsigned i;
+	unsigned char *o=((unsigned char *)mem)+offset;
+	unsigned char *n=(unsigned char *)data;
+	for(i=0;i<size;i++)
+		crc+=(offset+i+1)*(((unsigned)n[i])-((unsigned)o[i]));
+	return crc;
+}
+
+
+
+/* Takes both the indexed patches (magic, count, slot numbers, then the
+   slots) and the older ones with each slot number in front of its slot.
+   Slots from slots on are not in mem and are skipped, and an indexed
+   patch with more than slots entries is not taken at all.  Marks the
+   patched slots in map and returns the updated checksum.  */
+unsigned savedisk_apply_changes(void *mem, void *patch, unsigned patch_size, unsigned *map, unsigned slots, unsigned crc)
 {
 	unsigned *src=(unsigned *)patch;
 	unsigned char *dst=(unsigned char *)mem;
 	unsigned pos=0;
 	patch_size/=sizeof(unsigned);
-	while(pos<patch_size)
+	if ((patch_size>=2)&&(src[0]==SAVEDISK_MAGIC))
 	{
-		unsigned n=(src[pos++])*SAVEDISK_SLOT;
+		unsigned i,count=src[1];
+		unsigned char *data;
+		if ((count>slots)||(2+count+count*(SAVEDISK_SLOT/sizeof(unsigned))>patch_size))
+			return crc;
+		data=(unsigned char *)&src[2+count];
+		for(i=0;i<count;i++)
+		{
+			unsigned n=src[2+i];
+			if (n>=slots)
+				continue;
+			crc=savedisk_update_checksum(crc,mem,n*SAVEDISK_SLOT,&data[i*SAVEDISK_SLOT],SAVEDISK_SLOT);
+			memcpy((void *)&dst[n*SAVEDISK_SLOT],(void *)&data[i*SAVEDISK_SLOT],SAVEDISK_SLOT);
+			if (map)
+				SAVEDISK_MAP_SET(map,n);
+		}
+		return crc;
+	}
+	while(pos+1+SAVEDISK_SLOT/sizeof(unsigned)<=patch_size)
+	{
+		unsigned slot=src[pos++];
+		unsigned n=slot*SAVEDISK_SLOT;
+		if (slot>=slots)
+		{
+			pos+=(SAVEDISK_SLOT/sizeof(unsigned));
+			continue;
+		}
+		crc=savedisk_update_checksum(crc,mem,n,&src[pos],SAVEDISK_SLOT);
 		memcpy((void *)&dst[n],(void *)&src[pos],SAVEDISK_SLOT);
+		if (map)
+			SAVEDISK_MAP_SET(map,slot);
 		pos+=(SAVEDISK_SLOT/sizeof(unsigned));
 	}
+	return crc;
+}
+
+
+/* Compares only the slots marked in dirty against the original image,
+   keeping changed up to date, then builds an indexed patch of every slot
+   in changed.  Returns the patch size, which is not written out if it
+   would not fit in max.  */
+unsigned savedisk_get_changes_map(void *mem, void *orig, unsigned *dirty, unsigned *changed, unsigned slots, void *patch, unsigned max)
+{
+	unsigned char *src=(unsigned char *)mem;
+	unsigned char *orig_p=(unsigned char *)orig;
+	unsigned *dest=(unsigned *)patch;
+	unsigned w,pos,count=0,ret;
+	unsigned char *data;
+	for(w=0;w<SAVEDISK_MAP_WORDS(slots);w++)
+	{
+		unsigned bits=dirty[w];
+		dirty[w]=0;
+		while(bits)
+		{
+			pos=w*32+__builtin_ctz(bits);
+			bits&=bits-1;
+			if (pos>=slots)
+				break;
+			if (memcmp((void *)&src[pos*SAVEDISK_SLOT],(void *)&orig_p[pos*SAVEDISK_SLOT],SAVEDISK_SLOT))
+				SAVEDISK_MAP_SET(changed,pos);
+			else
+				changed[w]&=~(1U<<(pos&31));
+		}
+		count+=__builtin_popcount(changed[w]);
+	}
+	if (!count)
+		return 0;
+	ret=(2+count)*sizeof(unsigned)+count*SAVEDISK_SLOT;
+	if (ret>max)
+		return ret;
+	dest[0]=SAVEDISK_MAGIC;
+	dest[1]=count;
+	data=(unsigned char *)&dest[2+count];
+	count=0;
+	for(w=0;w<SAVEDISK_MAP_WORDS(slots);w++)
+	{
+		unsigned bits=changed[w];
+		while(bits)
+		{
+			pos=w*32+__builtin_ctz(bits);
+			bits&=bits-1;
+			dest[2+count]=pos;
+			memcpy((void *)&data[count*SAVEDISK_SLOT],(void *)&src[pos*SAVEDISK_SLOT],SAVEDISK_SLOT);
+			count++;
+		}
+	}
+	return ret;
 }
 
 
@@ -3,7 +3,16 @@
 #define SAVEDISK_SLOT 512
 #endif
 
+/* First word of an indexed patch */
+#define SAVEDISK_MAGIC 0x50444155
+
+/* One bit per slot */
+#define SAVEDISK_MAP_WORDS(slots) (((slots)+31)/32)
+#define SAVEDISK_MAP_SET(map,slot) ((map)[(slot)>>5]|=1U<<((slot)&31))
+
 unsigned savedisk_get_checksum(void *mem, unsigned size);
-void savedisk_apply_changes(void *mem, void *patch, unsigned patch_size);
+unsigned savedisk_update_checksum(unsigned crc, void *mem, unsigned offset, void *data, unsigned size);
+unsigned savedisk_apply_changes(void *mem, void *patch, unsigned patch_size, unsigned *map, unsigned slots, unsigned crc);
 unsigned savedisk_get_changes_file(void *mem, unsigned size, void *patch, char *filename);
 unsigned savedisk_get_changes(void *mem, unsigned size, void *patch, void *orig);
+unsigned savedisk_get_changes_map(void *mem, void *orig, unsigned *dirty, unsigned *changed, unsigned slots, void *patch, unsigned max);
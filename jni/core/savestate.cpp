@@ -39,6 +39,8 @@
   * restore:
   * 
   * set savestate_state = STATE_DORESTORE, savestate_filename = "..."
+  * or, to read the file in the background first, set savestate_filename
+  * and call savestate_load (savestate_filename)
   *
   */
 
@@ -51,15 +53,26 @@
 #include "options.h"
 #include "memorya.h"
 #include "custom.h"
+#include "blitter.h"
 #include "sound.h"
 #include "audio.h"
 #include "m68k/m68k_intrf.h"
 #include "debug_uae4all.h"
+#include "xwin.h"
+#include "drawing.h"
 
 #include <zlib.h>
+#include <sys/time.h>
+#include <time.h>
+#ifndef DREAMCAST
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <fcntl.h>
+#endif
 #define Z_COMPRESSION_LEVEL Z_BEST_COMPRESSION
 
 #include "savestate.h"
+#include "savestore.h"
 
 int savestate_state;
 
@@ -76,7 +89,6 @@ static char savestate_filename_default[]={
 	'\0', '\0', '\0', '\0', '\0', '\0', '\0', '\0', '\0', '\0', 
 };
 char *savestate_filename=(char *)&savestate_filename_default[0];
-FILE *savestate_file=NULL;
 
 /* functions for reading/writing bytes, shorts and longs in big-endian
  * format independent of host machine's endianess */
@@ -152,88 +164,679 @@ char *restore_string_func (uae_u8 **dstp)
     return to; 
 }
 
+/* Saving and loading run in two phases.  At vsync the emulation thread
+ * only gathers all chunks into memory (savestate_snapshot), copying chip
+ * and bogo RAM, which takes a few milliseconds.  Compressing and writing
+ * the file is done by a worker thread.  Loading goes the other way: the
+ * worker maps the file and checks it (savestate_load) and only then asks
+ * for the restore at the next vsync.  The RAM chunks are inflated or
+ * fetched from the page store straight into chip and bogo RAM there
+ * (savestate_restore_ram), without a copy on the heap.  */
+
+#if !defined(DREAMCAST)
+#define SAVESTATE_THREAD
+#include <pthread.h>
+#endif
+
+#define SAVESTATE_MAX_CHUNKS 48
+#define SAVESTATE_REQUEST_TIMEOUT 2	/* seconds */
+
+static void savestate_request_done (long result);
+static void savestate_autosave_done (int ok);
+
+struct savestate_chunk {
+    char name[5];
+    uae_u8 *data;
+    long len;
+    int compress;	/* zlib on write */
+    int owned;		/* data was malloced for this chunk */
+    uae_u32 flags;	/* as read from the file */
+};
+
+struct savestate_image {
+    char filename[256];
+    uae_u8 *file;	/* whole file when loaded */
+    long mapped;	/* file is mmapped, this long */
+    int count;
+    struct savestate_chunk chunk[SAVESTATE_MAX_CHUNKS];
+    /* slot index entry, written once the file is complete */
+    uae_u8 *index;
+    int index_slot;
+    char index_file[256];
+};
+
+/* Loaded by the worker and waiting for the next vsync */
+static struct savestate_image *savestate_loaded = 0;
+#ifdef SAVESTATE_THREAD
+/* Passed from the worker to savestate_vsync, which moves it to
+   savestate_loaded and asks for the restore; everything else only
+   touches savestate_loaded on the emulation thread */
+static pthread_mutex_t savestate_handover_lock = PTHREAD_MUTEX_INITIALIZER;
+static struct savestate_image *volatile savestate_handover = 0;
+#endif
+/* Handed to restore_from_buffer, restored before anything else */
+static struct savestate_image *savestate_pending = 0;
+/* Being restored, freed by savestate_restore_finish */
+static struct savestate_image *savestate_restoring = 0;
+/* snapshots from memory come back without progress bar or message */
+static int savestate_quiet = 0;
+/* a RAM chunk could not be read in, savestate_restore_finish resets */
+static int savestate_ram_failed = 0;
+
+static void savestate_add (struct savestate_image *s, uae_u8 *data, long len, char *name, int copy, int compress)
+{
+    struct savestate_chunk *c;
+
+    if (!data)
+	return;
+    if (s->count >= SAVESTATE_MAX_CHUNKS) {
+	write_log ("too many savestate chunks, '%s' dropped\n", name);
+	if (!copy)
+	    free (data);
+	return;
+    }
+    c = &s->chunk[s->count];
+    strncpy (c->name, name, 4);
+    c->name[4] = 0;
+    c->len = len;
+    c->compress = compress;
+    c->owned = 1;
+    if (copy) {
+	c->data = (uae_u8 *)malloc (len ? len : 1);
+	if (!c->data)
+	    return;
+	memcpy (c->data, data, len);
+    } else
+	c->data = data;
+    s->count++;
+}
+
+static struct savestate_image *savestate_new (char *filename)
+{
+    struct savestate_image *s = (struct savestate_image *)calloc (1, sizeof (struct savestate_image));
+
+    if (s && filename)
+	strncpy (s->filename, filename, sizeof (s->filename) - 1);
+    return s;
+}
+
+static void savestate_free (struct savestate_image *s)
+{
+    int i;
+
+    if (!s)
+	return;
+    for (i = 0; i < s->count; i++)
+	if (s->chunk[i].owned)
+	    free (s->chunk[i].data);
+#ifndef DREAMCAST
+    if (s->mapped)
+	munmap (s->file, s->mapped);
+    else
+#endif
+    free (s->file);
+    free (s->index);
+    free (s);
+}
+
+static struct savestate_chunk *savestate_find (struct savestate_image *s, char *name)
+{
+    int i;
+
+    for (i = 0; i < s->count; i++)
+	if (!strcmp (s->chunk[i].name, name))
+	    return &s->chunk[i];
+    return 0;
+}
+
+/* Chunk writers: everything written goes through w->write, so the same
+   chunk code can fill a file, a growable memory buffer or a zlib stream
+   that feeds another writer.  */
+
+static int savestate_file_write (struct savestate_writer *w, const void *data, long len)
+{
+    return fwrite (data, 1, len, w->f) == (size_t)len;
+}
+
+static int savestate_mem_write (struct savestate_writer *w, const void *data, long len)
+{
+    struct savestate_buffer *b = w->buf;
+
+    if (b->fixed) {
+	/* count what does not fit, so the caller learns the size needed */
+	if (b->len + len <= b->size)
+	    memcpy (b->data + b->len, data, len);
+	b->len += len;
+	return 1;
+    }
+    if (b->len + len > b->size) {
+	long size = b->size ? b->size : 65536;
+	uae_u8 *p;
+
+	while (size < b->len + len)
+	    size *= 2;
+	p = (uae_u8 *)realloc (b->data, size);
+	if (!p)
+	    return 0;
+	b->data = p;
+	b->size = size;
+    }
+    memcpy (b->data + b->len, data, len);
+    b->len += len;
+    return 1;
+}
+
+static int savestate_zlib_pump (struct savestate_writer *w, int flush)
+{
+    uae_u8 out[16384];
+    int ret;
+
+    do {
+	w->z->next_out = out;
+	w->z->avail_out = sizeof out;
+	ret = deflate (w->z, flush);
+	if (ret == Z_STREAM_ERROR)
+	    return 0;
+	if (sizeof out - w->z->avail_out
+	    && !w->next->write (w->next, out, sizeof out - w->z->avail_out))
+	    return 0;
+    } while (w->z->avail_out == 0 || (flush == Z_FINISH && ret != Z_STREAM_END));
+    return 1;
+}
+
+static int savestate_zlib_write (struct savestate_writer *w, const void *data, long len)
+{
+    w->z->next_in = (Bytef *)data;
+    w->z->avail_in = len;
+    return savestate_zlib_pump (w, Z_NO_FLUSH);
+}
+
+void savestate_writer_file (struct savestate_writer *w, FILE *f)
+{
+    memset (w, 0, sizeof *w);
+    w->write = savestate_file_write;
+    w->f = f;
+}
+
+void savestate_writer_mem (struct savestate_writer *w, struct savestate_buffer *b)
+{
+    memset (w, 0, sizeof *w);
+    w->write = savestate_mem_write;
+    w->buf = b;
+}
+
+/* Deflates into next; savestate_writer_close ends the stream */
+int savestate_writer_zlib (struct savestate_writer *w, struct savestate_writer *next, int level)
+{
+    memset (w, 0, sizeof *w);
+    w->write = savestate_zlib_write;
+    w->next = next;
+    w->z = (z_stream *)calloc (1, sizeof (z_stream));
+    if (w->z && deflateInit (w->z, level) == Z_OK)
+	return 1;
+    free (w->z);
+    w->z = 0;
+    return 0;
+}
+
+int savestate_writer_close (struct savestate_writer *w)
+{
+    int ok = 1;
+
+    if (w->write == savestate_zlib_write) {
+	ok = savestate_zlib_pump (w, Z_FINISH);
+	deflateEnd (w->z);
+	free (w->z);
+    }
+    w->write = 0;
+    return ok;
+}
+
 /* read and write IFF-style hunks */
 
-static void save_chunk (FILE *f, uae_u8 *chunk, long len, char *name)
+static int save_chunk_flags (struct savestate_writer *w, uae_u8 *chunk, long len, char *name, uae_u32 flags)
 {
     uae_u8 tmp[4], *dst;
     uae_u8 zero[4]= { 0, 0, 0, 0 };
+    int ok = 1;
 
     if (!chunk)
-	return;
+	return 1;
 
     /* chunk name */
-    fwrite (name, 1, 4, f);
+    ok &= w->write (w, name, 4);
     /* chunk size */
     dst = &tmp[0];
     save_u32 (len + 4 + 4 + 4);
-    fwrite (&tmp[0], 1, 4, f);
+    ok &= w->write (w, &tmp[0], 4);
     /* chunk flags */
     dst = &tmp[0];
-    save_u32 (0);
-    fwrite (&tmp[0], 1, 4, f);
+    save_u32 (flags);
+    ok &= w->write (w, &tmp[0], 4);
     /* chunk data */
-    fwrite (chunk, 1, len, f);
+    ok &= w->write (w, chunk, len);
+    if (w->crc)
+	w->crc[w->crcs++] = crc32 (0, chunk, len);
     /* alignment */
     len = 4 - (len & 3);
     if (len)
-	fwrite (zero, 1, len, f);
+	ok &= w->write (w, zero, len);
+    return ok;
 }
 
-static void save_chunk_compressed (FILE *f, uae_u8 *chunk, long len, char *name)
+static int save_chunk (struct savestate_writer *w, uae_u8 *chunk, long len, char *name)
 {
+    return save_chunk_flags (w, chunk, len, name, 0);
+}
 
-	void *tmp=malloc(len);
-	long outSize=len;
-	compress2((Bytef *)tmp, (uLongf *)&outSize, (const Bytef *)chunk, (uLong)len, Z_COMPRESSION_LEVEL);
-	save_chunk(f,(uae_u8*)tmp,outSize,name);
+static int save_chunk_compressed (struct savestate_writer *w, uae_u8 *chunk, long len, char *name)
+{
+	uLongf outSize=compressBound(len);
+	void *tmp=malloc(outSize);
+	int ok;
+
+	if (!tmp)
+		return save_chunk(w,chunk,len,name);
+	if (compress2((Bytef *)tmp, &outSize, (const Bytef *)chunk, (uLong)len, Z_COMPRESSION_LEVEL) == Z_OK)
+		ok=save_chunk(w,(uae_u8*)tmp,outSize,name);
+	else
+		ok=save_chunk(w,chunk,len,name);
 	free(tmp);
+	return ok;
 }
 
-static uae_u8 *restore_chunk (FILE *f, char *name, long *len, long *filepos)
+/* Puts the pages of a big chunk into the page store and writes their
+   keys instead, uncompressed chunks dedup best */
+static int save_chunk_paged (struct savestate_writer *w, uae_u8 *chunk, long len, char *name)
 {
-    uae_u8 tmp[4], dummy[4], *mem, *src;
-    uae_u32 flags;
-    long len2;
+    long listlen;
+    uae_u8 *list = savestore_put (chunk, len, &listlen);
+    int ok;
+
+    if (!list)
+	return save_chunk_compressed (w, chunk, len, name);
+    ok = save_chunk_flags (w, list, listlen, name, SAVESTORE_CHUNK_PAGED);
+    free (list);
+    return ok;
+}
 
-    /* chunk name */
-    fread (name, 1, 4, f);
-    name[4] = 0;
-    /* chunk size */
-    fread (tmp, 1, 4, f);
-    src = tmp;
-    len2 = restore_u32 () - 4 - 4 - 4;
-    if (len2 < 0)
-	len2 = 0;
-    *len = len2;
-    if (len2 == 0)
+static int save_end (struct savestate_writer *w)
+{
+    return w->write (w, "END ", 4) && w->write (w, "\0\0\0\08", 4);
+}
+
+/* Splits a state file held in memory into its chunks */
+static int savestate_parse (struct savestate_image *s, uae_u8 *file, long size)
+{
+    uae_u8 *src = file, *end = file + size;
+
+    while (end - src >= 8) {
+	struct savestate_chunk *c;
+	long len2;
+
+	if (s->count >= SAVESTATE_MAX_CHUNKS)
+	    return 0;
+	c = &s->chunk[s->count++];
+	memcpy (c->name, src, 4);
+	c->name[4] = 0;
+	src += 4;
+	len2 = restore_u32 () - 4 - 4 - 4;
+	if (!strcmp (c->name, "END "))
+	    return 1;
+	if (len2 < 0)
+	    len2 = 0;
+	/* chunk flags */
+	if (end - src < 4 + len2)
+	    return 0;
+	c->flags = restore_u32 ();
+	c->data = src;
+	c->len = len2;
+	/* alignment */
+	src += len2 + 4 - (len2 & 3);
+    }
+    return 0;
+}
+
+static int savestate_ram_chunk (char *name)
+{
+    return !strcmp (name, "CRAM") || !strcmp (name, "BRAM") || !strcmp (name, "FRAM") || !strcmp (name, "ZRAM");
+}
+
+/* Fetches the chunks kept in the page store.  RAM chunks are only checked,
+   savestate_restore_ram reads them into place; a page that is bad by then
+   would leave the machine half restored.  */
+static int savestate_unpage (struct savestate_image *s)
+{
+    int i;
+
+    for (i = 0; i < s->count; i++) {
+	struct savestate_chunk *c = &s->chunk[i];
+	uae_u8 *data;
+	long len;
+
+	if (!(c->flags & SAVESTORE_CHUNK_PAGED))
+	    continue;
+	if (savestate_ram_chunk (c->name)) {
+	    if (!savestore_read (c->data, c->len, 0, 0))
+		return 0;
+	    continue;
+	}
+	data = savestore_get (c->data, c->len, &len);
+	if (!data)
+	    return 0;
+	if (c->owned)
+	    free (c->data);
+	c->data = data;
+	c->len = len;
+	c->owned = 1;
+	c->flags &= ~SAVESTORE_CHUNK_PAGED;
+    }
+    return 1;
+}
+
+/* Checks the chunks against the "CRC " chunk, files without one pass */
+static int savestate_check_crc (struct savestate_image *s)
+{
+    struct savestate_chunk *c = savestate_find (s, "CRC ");
+    uae_u8 *src;
+    int i;
+
+    if (!c)
+	return 1;
+    src = c->data;
+    if (c->len != (c - s->chunk) * 4)
 	return 0;
+    for (i = 0; &s->chunk[i] < c; i++)
+	if (crc32 (0, s->chunk[i].data, s->chunk[i].len) != restore_u32 ()) {
+	    __android_log_print (ANDROID_LOG_INFO, "UAE", "chunk '%s' damaged", s->chunk[i].name);
+	    return 0;
+	}
+    return 1;
+}
 
-    /* chunk flags */
-    fread (tmp, 1, 4, f);
-    src = tmp;
-    flags = restore_u32 ();
-
-    *filepos = ftell (f);
-    /* chunk data.  RAM contents will be loaded during the reset phase,
-       no need to malloc multiple megabytes here.  */
-    if (strcmp (name, "CRAM") != 0
-	&& strcmp (name, "BRAM") != 0
-	&& strcmp (name, "FRAM") != 0
-	&& strcmp (name, "ZRAM") != 0)
-    {
-	mem = (uae_u8 *)malloc (len2);
-	fread (mem, 1, len2, f);
-    } else {
-	mem = 0;
-	fseek (f, len2, SEEK_CUR);
+/* Fills RAM from its chunk in the state being restored, called by
+   memory_reset.  The chunk is a page list, zlib compressed (state files
+   keep chip RAM that way) or plain (snapshots in memory).  */
+void savestate_restore_ram (char *name, uae_u8 *dst, long size)
+{
+    struct savestate_chunk *c = savestate_restoring ? savestate_find (savestate_restoring, name) : 0;
+    uLongf outSize = size;
+
+    if (!c)
+	return;
+    if (c->flags & SAVESTORE_CHUNK_PAGED) {
+	if (!savestore_read (c->data, c->len, dst, size)) {
+	    __android_log_print (ANDROID_LOG_ERROR, "UAE", "%s: page store read failed", name);
+	    savestate_ram_failed = 1;
+	}
+	return;
+    }
+    if (c->len >= 2 && (c->data[0] & 0x0f) == Z_DEFLATED && !(((c->data[0] << 8) | c->data[1]) % 31)) {
+	if (uncompress ((Bytef *)dst, &outSize, (const Bytef *)c->data, (uLong)c->len) == Z_OK)
+	    return;
+	/* plain RAM that happens to start like zlib is as large as the RAM */
+	if (c->len != size) {
+	    __android_log_print (ANDROID_LOG_ERROR, "UAE", "%s: does not inflate", name);
+	    savestate_ram_failed = 1;
+	    return;
+	}
     }
+    /* not compressed - treat data literaly */
+    memcpy (dst, c->data, c->len < size ? c->len : size);
+}
 
-    /* alignment */
-    len2 = 4 - (len2 & 3);
-    if (len2)
-	fread (dummy, 1, len2, f);
-    return mem;
+/* Maps a whole state file and checks it */
+static struct savestate_image *savestate_read_file (char *filename)
+{
+    struct savestate_image *s;
+    long size;
+#ifndef DREAMCAST
+    struct stat st;
+    int fd;
+#endif
+    FILE *f;
+
+    s = savestate_new (filename);
+    if (!s)
+	return 0;
+#ifndef DREAMCAST
+    fd = open (filename, O_RDONLY);
+    if (fd < 0)
+	goto error;
+    if (!fstat (fd, &st) && st.st_size > 0) {
+	s->file = (uae_u8 *)mmap (0, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+	if (s->file != MAP_FAILED)
+	    s->mapped = st.st_size;
+	else
+	    s->file = 0;
+    }
+    close (fd);
+#endif
+    if (s->mapped)
+	size = s->mapped;
+    else {
+	f = fopen (filename, "rb");
+	if (!f)
+	    goto error;
+	fseek (f, 0, SEEK_END);
+	size = ftell (f);
+	fseek (f, 0, SEEK_SET);
+	s->file = (uae_u8 *)malloc (size > 0 ? size : 1);
+	if (!s->file || fread (s->file, 1, size, f) != (size_t)size) {
+	    fclose (f);
+	    goto error;
+	}
+	fclose (f);
+    }
+    if (!savestate_parse (s, s->file, size) || !s->count || strcmp (s->chunk[0].name, "ASF ")) {
+	write_log ("%s is not an AmigaStateFile\n", filename);
+	goto error;
+    }
+    if (!savestate_check_crc (s)) {
+	__android_log_print (ANDROID_LOG_INFO, "UAE", "%s: CRC mismatch", filename);
+	goto error;
+    }
+    if (!savestate_unpage (s)) {
+	__android_log_print (ANDROID_LOG_INFO, "UAE", "%s: pages missing from the state store", filename);
+	goto error;
+    }
+    return s;
+
+    error:
+    savestate_free (s);
+    return 0;
+}
+
+/* Slot index: <disk>.idx next to the slot files, so that the slot list
+   reads one small file and never the states themselves.  A header of
+   "ASI ", the version, the number of slots and the thumbnail width and
+   height, then for every slot the time it was saved (0 when empty), the
+   frame count and the RGB565 thumbnail in the framebuffer's byte order.
+   Longs are big endian.  */
+#define SAVESTATE_INDEX_VERSION 1
+#define SAVESTATE_INDEX_HEADER 20
+#define SAVESTATE_INDEX_ENTRY (8 + SAVESTATE_THUMB_WIDTH * SAVESTATE_THUMB_HEIGHT * 2)
+
+unsigned savestate_frames = 0;	/* emulated frames, carried by the slots */
+static char savestate_index_name[256];
+static char savestate_index_state[256];	/* the slot file it is for */
+static int savestate_index_next = -1;
+static long savestate_frames_next = -1;
+
+void savestate_slot_filename (char *dst, const char *disk, int slot)
+{
+    if (slot > 0)
+	sprintf (dst, "%s-%d.asf", disk, slot);
+    else
+	sprintf (dst, "%s.asf", disk);
+}
+
+/* The next save_state goes into slot of the disk's index */
+void savestate_index_slot (const char *disk, int slot)
+{
+    savestate_index_next = -1;
+    if (slot < 0 || slot >= SAVESTATE_SLOTS || strlen (disk) > sizeof (savestate_index_state) - 8)
+	return;
+    sprintf (savestate_index_name, "%s.idx", disk);
+    savestate_slot_filename (savestate_index_state, disk, slot);
+    savestate_index_next = slot;
+}
+
+/* The next restore continues with the frame count of the slot */
+void savestate_index_load (const char *disk, int slot)
+{
+    char name[256];
+    uae_u8 b[4], *src = b;
+    FILE *f;
+
+    savestate_frames_next = -1;
+    snprintf (name, sizeof (name), "%s.idx", disk);
+    f = fopen (name, "rb");
+    if (!f)
+	return;
+    if (slot >= 0 && slot < SAVESTATE_SLOTS
+	&& !fseek (f, SAVESTATE_INDEX_HEADER + slot * SAVESTATE_INDEX_ENTRY + 4, SEEK_SET)
+	&& fread (b, 1, 4, f) == 4)
+	savestate_frames_next = restore_u32 ();
+    fclose (f);
+}
+
+/* Box filtered from the framebuffer, so take it before the progress bar
+   is drawn */
+static uae_u8 *savestate_index_entry (void)
+{
+    uae_u8 *e = (uae_u8 *)calloc (1, SAVESTATE_INDEX_ENTRY), *dst = e;
+    uae_u16 *t;
+    int sx = GFXVIDINFO_WIDTH / SAVESTATE_THUMB_WIDTH, sy = GFXVIDINFO_HEIGHT / SAVESTATE_THUMB_HEIGHT;
+    int x, y, i, j;
+
+    if (!e)
+	return 0;
+    save_u32 (time (NULL));
+    save_u32 (savestate_frames);
+    if (!gfx_mem)
+	return e;
+    t = (uae_u16 *)dst;
+    for (y = 0; y < SAVESTATE_THUMB_HEIGHT; y++)
+	for (x = 0; x < SAVESTATE_THUMB_WIDTH; x++) {
+	    unsigned r = 0, g = 0, b = 0;
+
+	    for (j = 0; j < sy; j++) {
+		uae_u16 *p = (uae_u16 *)(gfx_mem + (y * sy + j) * gfx_rowbytes) + x * sx;
+		for (i = 0; i < sx; i++) {
+		    r += p[i] >> 11;
+		    g += (p[i] >> 5) & 0x3f;
+		    b += p[i] & 0x1f;
+		}
+	    }
+	    *t++ = ((r / (sx * sy)) << 11) | ((g / (sx * sy)) << 5) | (b / (sx * sy));
+	}
+    return e;
+}
+
+static void savestate_index_write (struct savestate_image *s)
+{
+    uae_u8 header[SAVESTATE_INDEX_HEADER], old[SAVESTATE_INDEX_HEADER], *dst = header;
+    FILE *f;
+    int i;
+
+    memcpy (dst, "ASI ", 4);
+    dst += 4;
+    save_u32 (SAVESTATE_INDEX_VERSION);
+    save_u32 (SAVESTATE_SLOTS);
+    save_u32 (SAVESTATE_THUMB_WIDTH);
+    save_u32 (SAVESTATE_THUMB_HEIGHT);
+    f = fopen (s->index_file, "r+b");
+    if (f && (fread (old, 1, sizeof (old), f) != sizeof (old) || memcmp (old, header, sizeof (header)))) {
+	fclose (f);
+	f = 0;
+    }
+    if (!f) {
+	/* new, or laid out differently: start over with all slots empty */
+	uae_u8 *empty = (uae_u8 *)calloc (1, SAVESTATE_INDEX_ENTRY);
+
+	f = fopen (s->index_file, "wb");
+	if (f && empty) {
+	    fwrite (header, 1, sizeof (header), f);
+	    for (i = 0; i < SAVESTATE_SLOTS; i++)
+		fwrite (empty, 1, SAVESTATE_INDEX_ENTRY, f);
+	}
+	free (empty);
+	if (!f)
+	    return;
+    }
+    fseek (f, SAVESTATE_INDEX_HEADER + s->index_slot * SAVESTATE_INDEX_ENTRY, SEEK_SET);
+    fwrite (s->index, 1, SAVESTATE_INDEX_ENTRY, f);
+    fclose (f);
+}
+
+/* Writes a snapshot to a temporary file that replaces the old one when
+   complete, so a crash never leaves a broken state file behind */
+static void savestate_write_file (struct savestate_image *s)
+{
+    char tmpname[280];
+    struct savestate_writer w;
+    struct timeval start, end;
+    uae_u32 crc[SAVESTATE_MAX_CHUNKS];
+    uae_u8 crcdata[SAVESTATE_MAX_CHUNKS * 4], *dst = crcdata;
+    FILE *f;
+    int i, ok = 1, paged = savestore_enabled ();
+
+    gettimeofday (&start, NULL);
+    sprintf (tmpname, "%s.tmp", s->filename);
+    f = fopen (tmpname, "wb");
+    if (!f)
+	return;
+    savestate_writer_file (&w, f);
+    w.crc = crc;
+    for (i = 0; i < s->count; i++) {
+	struct savestate_chunk *c = &s->chunk[i];
+	if (paged && c->len >= SAVESTORE_PAGE && strcmp (c->name, "ASF "))
+	    ok &= save_chunk_paged (&w, c->data, c->len, c->name);
+	else if (c->compress)
+	    ok &= save_chunk_compressed (&w, c->data, c->len, c->name);
+	else
+	    ok &= save_chunk (&w, c->data, c->len, c->name);
+    }
+    for (i = 0; i < w.crcs; i++)
+	save_u32 (crc[i]);
+    w.crc = 0;
+    ok &= save_chunk (&w, crcdata, dst - crcdata, "CRC ");
+    ok &= save_end (&w);
+    ok = (fflush (f) == 0) && ok;
+#ifndef DREAMCAST
+    ok = (fsync (fileno (f)) == 0) && ok;
+#endif
+    fclose (f);
+    /* the pages are on storage before the file that lists them, and the
+       file is listed before it is there, so that opening the store after a
+       crash still counts its pages */
+    if (paged)
+	ok = savestore_sync () && ok;
+    if (ok && paged) {
+	savestore_release (s->filename);
+	savestore_register (s->filename);
+    }
+    if (ok && !rename (tmpname, s->filename)) {
+	write_log ("Save of '%s' complete\n", s->filename);
+	if (paged) {
+	    gettimeofday (&end, NULL);
+	    savestore_report (s->filename, (end.tv_sec - start.tv_sec) * 1000000 + (end.tv_usec - start.tv_usec));
+	    savestore_collect ();
+	}
+	if (s->index)
+	    savestate_index_write (s);
+    } else {
+	if (paged) {
+	    savestore_release (tmpname);
+	    if (ok)
+		savestore_retain (s->filename);
+	}
+	unlink (tmpname);
+    }
+#ifdef DINGOO
+    sync();
+#endif
 }
 
 static void restore_header (uae_u8 *src)
@@ -251,60 +854,289 @@ static void restore_header (uae_u8 *src)
     free (emuname);
 }
 
+/* Restore latency, from the request (savestate_load) to the first frame
+   drawn after it, logged at that frame's vsync */
+enum { LATENCY_OFF, LATENCY_LOADING, LATENCY_RESTORED };
+static int savestate_latency = LATENCY_OFF;
+static struct timeval savestate_latency_start;
+static long savestate_latency_read, savestate_latency_restore, savestate_latency_done;
+
+static long savestate_latency_us (void)
+{
+    struct timeval now;
+
+    gettimeofday (&now, NULL);
+    return (now.tv_sec - savestate_latency_start.tv_sec) * 1000000 + (now.tv_usec - savestate_latency_start.tv_usec);
+}
+
+#ifdef SAVESTATE_THREAD
+/* One worker, started with the first job, runs the saves and loads one
+   at a time in the order they were asked for.  Asking only queues the
+   job, so the UI thread never waits for a save still being written.  */
+struct savestate_job {
+    void *(*func)(void *);
+    void *arg;
+    struct savestate_job *next;
+};
+
+static pthread_mutex_t savestate_worker_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t savestate_worker_cond = PTHREAD_COND_INITIALIZER;
+static pthread_t savestate_worker;
+static int savestate_worker_started = 0, savestate_worker_busy = 0;
+static struct savestate_job *savestate_jobs, **savestate_jobs_last = &savestate_jobs;
+
+static void *savestate_worker_main (void *arg)
+{
+    pthread_mutex_lock (&savestate_worker_lock);
+    for (;;) {
+	struct savestate_job *j = savestate_jobs;
+
+	if (!j) {
+	    pthread_cond_wait (&savestate_worker_cond, &savestate_worker_lock);
+	    continue;
+	}
+	savestate_jobs = j->next;
+	if (!savestate_jobs)
+	    savestate_jobs_last = &savestate_jobs;
+	savestate_worker_busy = 1;
+	pthread_mutex_unlock (&savestate_worker_lock);
+	j->func (j->arg);
+	free (j);
+	pthread_mutex_lock (&savestate_worker_lock);
+	savestate_worker_busy = 0;
+	pthread_cond_broadcast (&savestate_worker_cond);
+    }
+    return NULL;
+}
+
+/* Queues func (arg) for the worker, returns 0 if it can't be run there */
+static int savestate_worker_start (void *(*func)(void *), void *arg)
+{
+    struct savestate_job *j = (struct savestate_job *)malloc (sizeof (struct savestate_job));
+    int ok;
+
+    if (!j)
+	return 0;
+    j->func = func;
+    j->arg = arg;
+    j->next = NULL;
+    pthread_mutex_lock (&savestate_worker_lock);
+    if (!savestate_worker_started && !pthread_create (&savestate_worker, NULL, savestate_worker_main, NULL)) {
+	pthread_detach (savestate_worker);
+	savestate_worker_started = 1;
+    }
+    ok = savestate_worker_started;
+    if (ok) {
+	*savestate_jobs_last = j;
+	savestate_jobs_last = &j->next;
+	pthread_cond_broadcast (&savestate_worker_cond);
+    }
+    pthread_mutex_unlock (&savestate_worker_lock);
+    if (!ok)
+	free (j);
+    return ok;
+}
+
+static void *savestate_save_main (void *arg)
+{
+    struct savestate_image *s = (struct savestate_image *)arg;
+
+    savestate_write_file (s);
+    savestate_free (s);
+    return NULL;
+}
+
+static void *savestate_store_main (void *arg)
+{
+    char *dir = (char *)arg;
+
+    savestore_open (dir);
+    free (dir);
+    return NULL;
+}
+
+static void *savestate_load_main (void *arg)
+{
+    char *filename = (char *)arg;
+    struct savestate_image *s = savestate_read_file (filename);
+
+    free (filename);
+    savestate_latency_read = savestate_latency_us ();
+    if (s) {
+	struct savestate_image *old;
+
+	pthread_mutex_lock (&savestate_handover_lock);
+	old = savestate_handover;
+	savestate_handover = s;
+	pthread_mutex_unlock (&savestate_handover_lock);
+	savestate_free (old);
+    } else
+	savestate_autosave_done (0);
+    return NULL;
+}
+#endif
+
+/* Waits for the saves and loads asked for so far */
+void savestate_sync (void)
+{
+#ifdef SAVESTATE_THREAD
+    pthread_mutex_lock (&savestate_worker_lock);
+    while (savestate_jobs || savestate_worker_busy)
+	pthread_cond_wait (&savestate_worker_cond, &savestate_worker_lock);
+    pthread_mutex_unlock (&savestate_worker_lock);
+#endif
+}
+
+/* Opens the page store (savestore_open) on the worker, ahead of the
+   saves and loads that use it */
+void savestate_store_open (const char *dir)
+{
+#ifdef SAVESTATE_THREAD
+    char *name = strdup (dir);
+
+    if (name && savestate_worker_start (savestate_store_main, name))
+	return;
+    free (name);
+#endif
+    savestore_open (dir);
+}
+
+/* Loads filename in the background and restores it at the next vsync once
+   it is in memory.  Without threads the restore reads it directly.  */
+void savestate_load (char *filename)
+{
+#ifdef SAVESTATE_THREAD
+    char *name = strdup (filename);
+#endif
+
+    gettimeofday (&savestate_latency_start, NULL);
+    savestate_latency = LATENCY_LOADING;
+    savestate_latency_read = 0;
+#ifdef SAVESTATE_THREAD
+
+    if (name && savestate_worker_start (savestate_load_main, name))
+	return;
+    free (name);
+#endif
+    savestate_state = STATE_DORESTORE;
+}
+
+/* The autosave is taken when the activity pauses (at the next vsync, see
+   DemoRenderer_nativePause) and restored on the next launch.  None is
+   taken before that restore is done, so a quick pause right after the
+   launch can't overwrite the session with the Kickstart screen.  */
+static char savestate_autosave_file[256];
+static int savestate_autosave_ready = 1;
+static struct timeval savestate_launch;
+
+void savestate_autosave_init (char *filename, int restore)
+{
+    strncpy (savestate_autosave_file, filename, sizeof (savestate_autosave_file) - 1);
+    savestate_autosave_ready = !restore || !filename[0];
+    if (savestate_autosave_ready)
+	return;
+    gettimeofday (&savestate_launch, NULL);
+    /* restore_state goes by savestate_filename */
+    strncpy (savestate_filename, filename, sizeof (savestate_filename_default) - 1);
+    savestate_load (savestate_filename);
+}
+
+static void savestate_autosave_done (int ok)
+{
+    struct timeval now;
+
+    if (savestate_autosave_ready)
+	return;
+    savestate_autosave_ready = 1;
+    gettimeofday (&now, NULL);
+    __android_log_print (ANDROID_LOG_INFO, "UAE", "%s after %ld ms", ok ? "resumed, playable" : "autosave not restored",
+			 (now.tv_sec - savestate_launch.tv_sec) * 1000 + (now.tv_usec - savestate_launch.tv_usec) / 1000);
+}
+
+/* Called at vsync while a pause is pending; the emulation stops after it */
+void savestate_autosave (void)
+{
+    if (savestate_autosave_file[0] && savestate_autosave_ready) {
+	struct timeval t0, t1;
+
+	gettimeofday (&t0, NULL);
+	custom_prepare_savestate ();
+	save_state (savestate_autosave_file, "Autosave");
+	gettimeofday (&t1, NULL);
+	__android_log_print (ANDROID_LOG_INFO, "UAE", "autosave taken in %ld us",
+			     (t1.tv_sec - t0.tv_sec) * 1000000 + (t1.tv_usec - t0.tv_usec));
+    }
+    pause_program = 1;
+}
+
 /* restore all subsystems */
 
 void restore_state (char *filename)
 {
-    FILE *f;
+    struct savestate_image *s;
     uae_u8 *chunk,*end;
-    char name[5];
+    char *name;
     long len;
-    long filepos;
-    int i=0;
+    int i=0, n;
 
 #ifdef DEBUG_SAVESTATE
     puts("-->restore_state");fflush(stdout);
 #endif
-    chunk = 0;
-    f = fopen (filename, "rb");
-    if (!f)
+    /* Chip memory is about to be overwritten.  */
+    blitter_thread_sync (BLTSYNC_OTHER);
+    savestate_quiet = savestate_pending != 0;
+    if (!savestate_quiet && savestate_latency == LATENCY_LOADING)
+	savestate_latency_restore = savestate_latency_us ();
+    else
+	savestate_latency = LATENCY_OFF;
+    s = savestate_pending;
+    savestate_pending = 0;
+    if (!s) {
+	s = savestate_loaded;
+	savestate_loaded = 0;
+	if (!s || strcmp (s->filename, filename)) {
+	    savestate_free (s);
+	    s = savestate_read_file (filename);
+	}
+    }
+    if (!s)
 	goto error;
 
-    chunk = restore_chunk (f, name, &len, &filepos);
-    if (!chunk || memcmp (name, "ASF ", 4)) {
-	write_log ("%s is not an AmigaStateFile\n",filename);
-	goto error;
-    }
-    savestate_file = f;
-    restore_header (chunk);
-    free (chunk);
+    savestate_free (savestate_restoring);
+    savestate_restoring = s;
+    restore_header (s->chunk[0].data);
     savestate_state = STATE_RESTORE;
-    for (;;) {
-	chunk = restore_chunk (f, name, &len, &filepos);
+    for (n = 1; n < s->count; n++) {
+	name = s->chunk[n].name;
+	chunk = s->chunk[n].data;
+	len = s->chunk[n].len;
 	write_log ("Chunk '%s' size %d\n", name, len);
 #ifdef DEBUG_SAVESTATE
 	puts(name);fflush(stdout);
 #endif
 	if (!strcmp (name, "END "))
 	    break;
+	if (!savestate_quiet)
 	{
 		if (i&1)
 			gui_show_window_bar(i/2, 10, 1);
 		if (i<20)
 			i++;
 	}
+	if (!len)
+	    continue;
 	if (!strcmp (name, "CRAM")) {
-	    restore_cram (len, filepos);
+	    restore_cram (len, chunk);
 	    continue;
 	}
 	else if (!strcmp (name, "BRAM")) {
-	    restore_bram (len, filepos);
+	    restore_bram (len, chunk);
 	    continue;
 	} else if (!strcmp (name, "FRAM")) {
-	    restore_fram (len, filepos);
+	    restore_fram (len, chunk);
 	    continue;
 	} else if (!strcmp (name, "ZRAM")) {
-	    restore_zram (len, filepos);
+	    restore_zram (len, chunk);
 	    continue;
 	}
 
@@ -356,14 +1188,16 @@ void restore_state (char *filename)
 	    end = restore_expansion (chunk);
 	else if (!strcmp (name, "ROM "))
 	    end = restore_rom (chunk);
-	else
+	else {
 	    write_log ("unknown chunk '%s' size %d bytes\n", name, len);
+	    continue;
+	}
 	if (len != end - chunk)
 	    write_log ("Chunk '%s' total size %d bytes but read %d bytes!\n",
 		       name, len, end - chunk);
-	free (chunk);
     }
-    gui_show_window_bar(10, 10, 1);
+    if (!savestate_quiet)
+	gui_show_window_bar(10, 10, 1);
 #ifdef DEBUG_SAVESTATE
     puts("-->OK");fflush(stdout);
     printf("RESTORED state=%X, flags=%X, PC=%X\n",savestate_state,_68k_spcflags,_68k_getpc());fflush(stdout);
@@ -378,11 +1212,7 @@ void restore_state (char *filename)
     puts("-->ERROR");fflush(stdout);
 #endif
     savestate_state = 0;
-    savestate_file = 0;
-    if (chunk)
-	free (chunk);
-    if (f)
-	fclose (f);
+    savestate_autosave_done (0);
 }
 
 void savestate_restore_finish (void)
@@ -392,38 +1222,56 @@ void savestate_restore_finish (void)
 #ifdef DEBUG_SAVESTATE
     printf("-->savestate_restore_finish state=%X, flags=%X, PC=%X\n",savestate_state,_68k_spcflags,_68k_getpc());fflush(stdout);
 #endif
-    fclose (savestate_file);
-#ifdef DINGOO
-    sync();
-#endif
+    savestate_free (savestate_restoring);
+    savestate_restoring = 0;
+    if (savestate_ram_failed) {
+	/* RAM and the rest of the machine no longer go together */
+	savestate_ram_failed = 0;
+	savestate_state = 0;
+	savestate_latency = LATENCY_OFF;
+	savestate_frames_next = -1;
+	savestate_request_done (0);
+	savestate_autosave_done (0);
+	resume_sound ();
+	__android_log_print (ANDROID_LOG_ERROR, "UAE", "%s: restore failed halfway, machine reset",
+			     savestate_quiet ? "snapshot" : savestate_filename);
+	if (!savestate_quiet)
+	    gui_set_message ("Restore failed", 50);
+	uae_reset ();
+	return;
+    }
+    savestate_request_done (1);
     resume_sound();
     update_audio();
-    savestate_file = 0;
     savestate_state = 0;
 //    unset_special(SPCFLAG_BRK);
     notice_screen_contents_lost();
-    gui_set_message("Restored", 50);
+    if (!savestate_quiet) {
+	if (savestate_frames_next >= 0)
+	    savestate_frames = savestate_frames_next;
+	savestate_frames_next = -1;
+	gui_set_message("Restored", 50);
+	savestate_autosave_done (1);
+	if (savestate_latency == LATENCY_LOADING) {
+	    savestate_latency_done = savestate_latency_us ();
+	    savestate_latency = LATENCY_RESTORED;
+	}
+    }
 }
 
-/* Save all subsystems  */
+/* Hands every chunk of the current state to out.  ram is set for RAM and
+   other data that is only borrowed; the rest comes from the save_ routines
+   in freshly allocated buffers that out has to free.  */
+typedef void savestate_out_func (void *ctx, uae_u8 *data, long len, char *name, int ram);
 
-void save_state (char *filename, char *description)
+static void savestate_gather (savestate_out_func *out, void *ctx, char *description)
 {
     uae_u8 header[1000];
     char tmp[100];
     uae_u8 *dst;
-    FILE *f;
     int len,i;
     char name[5];
 
-#ifdef DEBUG_SAVESTATE
-    printf("-->save_state('%s','%s'\n",filename,description);fflush(stdout);
-#endif
-    f = fopen (filename, "wb");
-    if (!f)
-	return;
-
-    gui_show_window_bar(0, 10, 0);
 #ifdef DEBUG_SAVESTATE
     puts("--> save CPU");fflush(stdout);
 #endif
@@ -433,46 +1281,35 @@ void save_state (char *filename, char *description)
     sprintf (tmp, "%d.%d.%d", UAEMAJOR, UAEMINOR, UAESUBREV);
     save_string (tmp);
     save_string (description);
-    save_chunk (f, header, dst-header, "ASF ");
+    out (ctx, header, dst-header, "ASF ", 1);
 
     dst = save_cpu (&len);
-    save_chunk (f, dst, len, "CPU ");
-    free (dst);
+    out (ctx, dst, len, "CPU ", 0);
 
-    gui_show_window_bar(1, 10, 0);
 #ifdef DEBUG_SAVESTATE
     puts("--> save DSK");fflush(stdout);
 #endif
     strcpy(name, "DSKx");
     for (i = 0; i < 4; i++) {
 	dst = save_disk (i, &len);
-	if (dst) {
-	    name[3] = i + '0';
-	    save_chunk (f, dst, len, name);
-	    free (dst);
-	}
+	name[3] = i + '0';
+	out (ctx, dst, len, name, 0);
     }
     dst = save_floppy (&len);
-    save_chunk (f, dst, len, "DISK");
-    free (dst);
+    out (ctx, dst, len, "DISK", 0);
 
-    gui_show_window_bar(2, 10, 0);
 #ifdef DEBUG_SAVESTATE
     puts("--> save CHIP");fflush(stdout);
 #endif
     dst = save_custom (&len);
-    save_chunk (f, dst, len, "CHIP");
-    free (dst);
+    out (ctx, dst, len, "CHIP", 0);
 
-    gui_show_window_bar(3, 10, 0);
 #ifdef DEBUG_SAVESTATE
     puts("--> save AGAC");fflush(stdout);
 #endif
     dst = save_custom_agacolors (&len);
-    save_chunk (f, dst, len, "AGAC");
-    free (dst);
+    out (ctx, dst, len, "AGAC", 0);
 
-    gui_show_window_bar(4, 10, 0);
 #ifdef DEBUG_SAVESTATE
     puts("--> save SPR");fflush(stdout);
 #endif
@@ -480,11 +1317,9 @@ void save_state (char *filename, char *description)
     for (i = 0; i < 8; i++) {
 	dst = save_custom_sprite (&len, i);
 	name[3] = i + '0';
-	save_chunk (f, dst, len, name);
-	free (dst);
+	out (ctx, dst, len, name, 0);
     }
 
-    gui_show_window_bar(5, 10, 0);
 #ifdef DEBUG_SAVESTATE
     puts("--> save AUD");fflush(stdout);
 #endif
@@ -492,38 +1327,32 @@ void save_state (char *filename, char *description)
     for (i = 0; i < 4; i++) {
 	dst = save_audio (&len, i);
 	name[3] = i + '0';
-	save_chunk (f, dst, len, name);
-	free (dst);
+	out (ctx, dst, len, name, 0);
     }
 
-    gui_show_window_bar(6, 10, 0);
 #ifdef DEBUG_SAVESTATE
     puts("--> save CIA");fflush(stdout);
 #endif
     dst = save_cia (0, &len);
-    save_chunk (f, dst, len, "CIAA");
-    free (dst);
+    out (ctx, dst, len, "CIAA", 0);
 
     dst = save_cia (1, &len);
-    save_chunk (f, dst, len, "CIAB");
-    free (dst);
+    out (ctx, dst, len, "CIAB", 0);
 
-    gui_show_window_bar(7, 10, 0);
 #ifdef DEBUG_SAVESTATE
     puts("--> save EXPA");fflush(stdout);
 #endif
     dst = save_expansion (&len);
-    save_chunk (f, dst, len, "EXPA");
+    out (ctx, dst, len, "EXPA", 0);
     dst = save_cram (&len);
-    save_chunk_compressed (f, dst, len, "CRAM");
+    out (ctx, dst, len, "CRAM", 1);
     dst = save_bram (&len);
-    save_chunk (f, dst, len, "BRAM");
+    out (ctx, dst, len, "BRAM", 1);
     dst = save_fram (&len);
-    save_chunk (f, dst, len, "FRAM");
+    out (ctx, dst, len, "FRAM", 1);
     dst = save_zram (&len);
-    save_chunk (f, dst, len, "ZRAM");
+    out (ctx, dst, len, "ZRAM", 1);
 
-    gui_show_window_bar(8, 10, 0);
 #ifdef DEBUG_SAVESTATE
     puts("--> save ROM");fflush(stdout);
 #endif
@@ -531,21 +1360,317 @@ void save_state (char *filename, char *description)
     do {
 	if (!dst)
 	    break;
-	save_chunk (f, dst, len, "ROM ");
-	free (dst);
+	out (ctx, dst, len, "ROM ", 0);
     } while ((dst = save_rom (0, &len)));
+}
+
+static void savestate_image_out (void *ctx, uae_u8 *data, long len, char *name, int ram)
+{
+    savestate_add ((struct savestate_image *)ctx, data, len, name, ram, !strcmp (name, "CRAM"));
+}
+
+/* Gathers all subsystems into memory, for the worker to write out */
+static struct savestate_image *savestate_snapshot (char *filename, char *description)
+{
+    struct savestate_image *s = savestate_new (filename);
+
+    if (s)
+	savestate_gather (savestate_image_out, s, description);
+    return s;
+}
+
+static void savestate_writer_out (void *ctx, uae_u8 *data, long len, char *name, int ram)
+{
+    struct savestate_writer *w = (struct savestate_writer *)ctx;
+
+    if (!data)
+	return;
+    if (!save_chunk (w, data, len, name))
+	w->failed = 1;
+    if (!ram)
+	free (data);
+}
+
+/* Writes the current state to w in state file layout.  Only call this at
+   vsync on the emulation thread.  */
+int savestate_save_to (struct savestate_writer *w, char *description)
+{
+    custom_prepare_savestate ();
+    w->failed = 0;
+    savestate_gather (savestate_writer_out, w, description);
+    if (!save_end (w))
+	w->failed = 1;
+    return !w->failed;
+}
+
+/* Snapshot of the current state into b, reusing its memory.  With level 0
+   b holds a state file image with uncompressed RAM, which only costs a
+   copy of chip and bogo RAM; otherwise all of it is deflated.  */
+int snapshot_to_buffer (struct savestate_buffer *b, int level)
+{
+    struct savestate_writer mem, z;
+    int ok;
+
+    b->len = 0;
+    savestate_writer_mem (&mem, b);
+    if (!level)
+	return savestate_save_to (&mem, "snapshot");
+    if (!savestate_writer_zlib (&z, &mem, level))
+	return 0;
+    ok = savestate_save_to (&z, "snapshot");
+    return savestate_writer_close (&z) && ok;
+}
+
+static uae_u8 *savestate_inflate (uae_u8 *data, long len, long *outlen)
+{
+    z_stream z;
+    uae_u8 *out = 0, *p;
+    long size = len * 4;
+    int ret;
+
+    memset (&z, 0, sizeof z);
+    if (inflateInit (&z) != Z_OK)
+	return 0;
+    z.next_in = data;
+    z.avail_in = len;
+    do {
+	p = (uae_u8 *)realloc (out, size);
+	if (!p)
+	    break;
+	out = p;
+	z.next_out = out + z.total_out;
+	z.avail_out = size - z.total_out;
+	ret = inflate (&z, Z_NO_FLUSH);
+	size *= 2;
+    } while (ret == Z_OK);
+    inflateEnd (&z);
+    if (ret != Z_STREAM_END) {
+	free (out);
+	return 0;
+    }
+    *outlen = z.total_out;
+    return out;
+}
+
+/* Restores a snapshot_to_buffer image or a state file held in memory.
+   Call it at vsync on the emulation thread: the state is swapped in before
+   the CPU runs again, and data has to stay untouched until then.  */
+int restore_from_buffer (uae_u8 *data, long len)
+{
+    struct savestate_image *s = savestate_new (0);
+
+    if (!s)
+	return 0;
+    if (len >= 4 && memcmp (data, "ASF ", 4)) {
+	data = s->file = savestate_inflate (data, len, &len);
+	if (!data)
+	    goto error;
+    }
+    if (!savestate_parse (s, data, len) || !s->count || strcmp (s->chunk[0].name, "ASF ")
+	|| !savestate_check_crc (s) || !savestate_unpage (s))
+	goto error;
+
+    savestate_free (savestate_pending);
+    savestate_pending = s;
+    pause_sound ();
+    savestate_state = STATE_RESTORE;
+    quit_program = 2;
+    set_special (SPCFLAG_BRK);
+    return 1;
+
+    error:
+    savestate_free (s);
+    return 0;
+}
+
+#ifdef SAVESTATE_THREAD
+/* Snapshots asked for by other threads (JNI), served by savestate_vsync */
+static pthread_mutex_t savestate_request_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t savestate_request_cond = PTHREAD_COND_INITIALIZER;
+static volatile int savestate_request = 0;	/* STATE_DOSAVE or STATE_DORESTORE */
+static int savestate_request_busy = 0;		/* restore under way */
+static uae_u8 *savestate_request_data;
+static uae_u8 *savestate_request_copy;		/* restored from, freed when done */
+static long savestate_request_len, savestate_request_result;
+
+/* Posts a request and waits for savestate_vsync to serve it, for no longer
+   than SAVESTATE_REQUEST_TIMEOUT in all.  A restore works on a copy of
+   data that belongs to the emulation thread once it has picked it up, so
+   the caller may give up on a restore that is still running.  */
+static long savestate_request_wait (int what, uae_u8 *data, long len)
+{
+    struct timespec ts;
+    long ret = 0;
+
+    if (what == STATE_DORESTORE) {
+	uae_u8 *copy = (uae_u8 *)malloc (len > 0 ? len : 1);
+
+	if (!copy)
+	    return 0;
+	memcpy (copy, data, len);
+	data = copy;
+    }
+    clock_gettime (CLOCK_REALTIME, &ts);
+    ts.tv_sec += SAVESTATE_REQUEST_TIMEOUT;
+    pthread_mutex_lock (&savestate_request_lock);
+    while (savestate_request)
+	if (pthread_cond_timedwait (&savestate_request_cond, &savestate_request_lock, &ts))
+	    goto timeout;
+    savestate_request = what;
+    savestate_request_data = data;
+    savestate_request_len = len;
+    savestate_request_result = 0;
+    while (savestate_request == what && savestate_request_data == data)
+	if (pthread_cond_timedwait (&savestate_request_cond, &savestate_request_lock, &ts)
+	    && savestate_request == what && savestate_request_data == data) {
+	    /* emulation paused or stuck, give up */
+	    if (savestate_request_busy) {
+		/* savestate_request_done finishes it */
+		savestate_request_data = 0;
+		data = 0;
+	    } else
+		savestate_request = 0;
+	    __android_log_print (ANDROID_LOG_INFO, "UAE", "%s request timed out",
+				 what == STATE_DOSAVE ? "snapshot" : "restore");
+	    pthread_cond_broadcast (&savestate_request_cond);
+	    pthread_mutex_unlock (&savestate_request_lock);
+	    if (what == STATE_DORESTORE)
+		free (data);
+	    return 0;
+	}
+    ret = savestate_request_result;
+    pthread_cond_broadcast (&savestate_request_cond);
+    pthread_mutex_unlock (&savestate_request_lock);
+    return ret;
+
+    timeout:
+    pthread_mutex_unlock (&savestate_request_lock);
+    if (what == STATE_DORESTORE)
+	free (data);
+    return 0;
+}
+#endif
+
+static void savestate_request_done (long result)
+{
+#ifdef SAVESTATE_THREAD
+    if (!savestate_request_busy)
+	return;
+    pthread_mutex_lock (&savestate_request_lock);
+    savestate_request_busy = 0;
+    savestate_request_result = result;
+    savestate_request_data = 0;
+    savestate_request = 0;
+    pthread_cond_broadcast (&savestate_request_cond);
+    pthread_mutex_unlock (&savestate_request_lock);
+    free (savestate_request_copy);
+    savestate_request_copy = 0;
+#endif
+}
+
+/* Snapshot into dst from another thread: returns its size, minus the size
+   needed when dst is too small, or 0 when it failed or timed out */
+long savestate_request_snapshot (uae_u8 *dst, long size)
+{
+#ifdef SAVESTATE_THREAD
+    return savestate_request_wait (STATE_DOSAVE, dst, size);
+#else
+    return 0;
+#endif
+}
+
+/* Restore from another thread, returns once the state is in place */
+int savestate_request_restore (uae_u8 *src, long len)
+{
+#ifdef SAVESTATE_THREAD
+    return savestate_request_wait (STATE_DORESTORE, src, len) > 0;
+#else
+    return 0;
+#endif
+}
+
+/* Serves the requests above, called at vsync */
+void savestate_vsync (void)
+{
+    savestate_frames++;
+    if (savestate_latency == LATENCY_RESTORED) {
+	savestate_latency = LATENCY_OFF;
+	__android_log_print (ANDROID_LOG_INFO, "UAE", "%s restored, first frame after %ld ms: read by %ld ms, restore from %ld ms, took %ld ms",
+			     savestate_filename, savestate_latency_us () / 1000, savestate_latency_read / 1000,
+			     savestate_latency_restore / 1000, (savestate_latency_done - savestate_latency_restore) / 1000);
+    }
+#ifdef SAVESTATE_THREAD
+    if (savestate_handover && !savestate_state) {
+	pthread_mutex_lock (&savestate_handover_lock);
+	savestate_free (savestate_loaded);
+	savestate_loaded = savestate_handover;
+	savestate_handover = 0;
+	pthread_mutex_unlock (&savestate_handover_lock);
+	savestate_state = STATE_DORESTORE;
+	return;
+    }
+    if (!savestate_request || savestate_state)
+	return;
+    pthread_mutex_lock (&savestate_request_lock);
+    if (savestate_request == STATE_DOSAVE) {
+	struct savestate_buffer b;
+
+	b.data = savestate_request_data;
+	b.size = savestate_request_len;
+	b.fixed = 1;
+	if (snapshot_to_buffer (&b, 0))
+	    savestate_request_result = b.len <= b.size ? b.len : -b.len;
+	savestate_request_data = 0;
+	savestate_request = 0;
+	pthread_cond_broadcast (&savestate_request_cond);
+    } else if (savestate_request == STATE_DORESTORE && !savestate_request_busy) {
+	savestate_request_copy = savestate_request_data;
+	if (restore_from_buffer (savestate_request_data, savestate_request_len))
+	    savestate_request_busy = 1;
+	else {
+	    free (savestate_request_copy);
+	    savestate_request_copy = 0;
+	    savestate_request_data = 0;
+	    savestate_request = 0;
+	    pthread_cond_broadcast (&savestate_request_cond);
+	}
+    }
+    pthread_mutex_unlock (&savestate_request_lock);
+#endif
+}
+
+/* Save all subsystems  */
+
+void save_state (char *filename, char *description)
+{
+    struct savestate_image *s;
+    uae_u8 *index = 0;
+
+    if (savestate_index_next >= 0 && !strcmp (filename, savestate_index_state))
+	index = savestate_index_entry ();
 
-    gui_show_window_bar(9, 10, 0);
 #ifdef DEBUG_SAVESTATE
-    puts("--> save END");fflush(stdout);
+    printf("-->save_state('%s','%s'\n",filename,description);fflush(stdout);
 #endif
-    fwrite ("END ", 1, 4, f);
-    fwrite ("\0\0\0\08", 1, 4, f);
-    write_log ("Save of '%s' complete\n", filename);
-    fclose (f);
-#ifdef DINGOO
-    sync();
+    gui_show_window_bar(0, 10, 0);
+    s = savestate_snapshot (filename, description);
+    if (!s) {
+	free (index);
+	return;
+    }
+    if (index) {
+	s->index = index;
+	s->index_slot = savestate_index_next;
+	strcpy (s->index_file, savestate_index_name);
+	savestate_index_next = -1;
+    }
+#ifdef SAVESTATE_THREAD
+    if (!savestate_worker_start (savestate_save_main, s))
 #endif
+    {
+	savestate_write_file (s);
+	savestate_free (s);
+    }
     gui_show_window_bar(10, 10, 0);
     notice_screen_contents_lost();
 #ifdef DEBUG_SAVESTATE
@@ -576,6 +1701,7 @@ HUNK HEADER (beginning of every hunk)
         hunk flags             
 
         bit 0 = chunk contents are compressed with zlib (maybe RAM chunks only?)
+        bit 2 = chunk contents are a list of pages in the page store (savestore.cpp)
 
 HEADER
 
@@ -793,6 +1919,14 @@ ROM SPACE
         Usually saving ROM contents is not good idea.
 
 
+CRC
+
+        "CRC "
+
+        CRC32 of the contents of every hunk before it, as stored
+        4 * number of hunks before it
+
+
 END
         hunk "END " ends, remember hunk size 8!
 
@@ -0,0 +1,677 @@
+ /*
+  * UAE - The Un*x Amiga Emulator
+  *
+  * Deduplicated page store for state files
+  *
+  * State files keep their small chunks, but the large ones (chip, bogo
+  * and fast RAM, the ROM) are cut into SAVESTORE_PAGE byte pages that go
+  * into one pack file, <dir>/pages.dat, each under a key made of its
+  * CRC32 and 64 bit FNV-1a hash.  In the state file such a chunk only
+  * lists the keys and has SAVESTORE_CHUNK_PAGED set in its flags, so the
+  * pages the slots and the autosave of a game have in common, unused
+  * memory to begin with, are written and stored once.
+  *
+  * Every page counts the state files that use it.  Those files are listed
+  * in <dir>/states.lst, and opening the store counts again from the ones
+  * that still exist, which is how deleted states give their pages up.
+  * Replacing a state gives up the pages of the old one right away.  Once
+  * unused pages take more than half of the pack it is rewritten without
+  * them.
+  *
+  * pages.dat: "ASP " and the version, then records of the key, the
+  * length, the stored length (the same when it didn't compress) and the
+  * zlib compressed page.  Longs are big endian.
+  */
+
+#include "sysconfig.h"
+#include "sysdeps.h"
+
+#include "config.h"
+#include "uae.h"
+#include "options.h"
+#include "savestate.h"
+#include "savestore.h"
+
+#include <sys/time.h>
+#include <sys/stat.h>
+#include <zlib.h>
+
+#if !defined(DREAMCAST)
+#include <pthread.h>
+static pthread_mutex_t savestore_mutex = PTHREAD_MUTEX_INITIALIZER;
+#define savestore_lock() pthread_mutex_lock (&savestore_mutex)
+#define savestore_unlock() pthread_mutex_unlock (&savestore_mutex)
+#else
+#define savestore_lock()
+#define savestore_unlock()
+#endif
+
+#define SAVESTORE_VERSION 1
+#define SAVESTORE_HEADER 8
+#define SAVESTORE_RECORD (SAVESTORE_KEY + 8)
+
+struct savestore_page {
+    uae_u8 key[SAVESTORE_KEY];
+    uae_u32 offset, len, clen;
+    int refs;
+};
+
+static char savestore_dir[256];
+static FILE *savestore_pack = 0;
+static long savestore_pack_size = 0;
+
+static struct savestore_page *savestore_pages = 0;
+static int savestore_count = 0, savestore_size = 0;
+/* open addressing on the CRC, index into savestore_pages or -1 */
+static int *savestore_hash = 0;
+static int savestore_hash_size = 0;
+
+static char **savestore_states = 0;
+static int savestore_state_count = 0;
+
+static long savestore_dead = 0;		/* pack bytes of unused pages */
+static long savestore_logical = 0;	/* stored bytes of all the pages in use, once per use */
+
+/* the save under way */
+static int savestore_put_pages = 0, savestore_put_new = 0;
+static long savestore_put_bytes = 0;
+
+static void savestore_key (const uae_u8 *p, long len, uae_u8 *dst)
+{
+    uae_u64 h = 0xcbf29ce484222325ULL;
+    uae_u32 crc = crc32 (0, p, len);
+    long i;
+
+    for (i = 0; i < len; i++) {
+	h ^= p[i];
+	h *= 0x100000001b3ULL;
+    }
+    save_u32 (crc);
+    save_u32 ((uae_u32)(h >> 32));
+    save_u32 ((uae_u32)h);
+}
+
+static int savestore_find (const uae_u8 *key)
+{
+    unsigned i;
+
+    if (!savestore_hash_size)
+	return -1;
+    i = ((key[0] << 24) | (key[1] << 16) | (key[2] << 8) | key[3]) & (savestore_hash_size - 1);
+    while (savestore_hash[i] >= 0) {
+	if (!memcmp (savestore_pages[savestore_hash[i]].key, key, SAVESTORE_KEY))
+	    return savestore_hash[i];
+	i = (i + 1) & (savestore_hash_size - 1);
+    }
+    return -1;
+}
+
+static int savestore_rehash (int size)
+{
+    int *h = (int *)malloc (size * sizeof (int));
+    int n;
+
+    if (!h)
+	return 0;
+    free (savestore_hash);
+    savestore_hash = h;
+    savestore_hash_size = size;
+    memset (h, 0xff, size * sizeof (int));
+    for (n = 0; n < savestore_count; n++) {
+	uae_u8 *key = savestore_pages[n].key;
+	unsigned i = ((key[0] << 24) | (key[1] << 16) | (key[2] << 8) | key[3]) & (size - 1);
+
+	while (h[i] >= 0)
+	    i = (i + 1) & (size - 1);
+	h[i] = n;
+    }
+    return 1;
+}
+
+static int savestore_add (const uae_u8 *key, uae_u32 offset, uae_u32 len, uae_u32 clen)
+{
+    struct savestore_page *p;
+
+    if (savestore_count == savestore_size) {
+	int size = savestore_size ? savestore_size * 2 : 1024;
+
+	p = (struct savestore_page *)realloc (savestore_pages, size * sizeof (struct savestore_page));
+	if (!p)
+	    return -1;
+	savestore_pages = p;
+	savestore_size = size;
+    }
+    p = &savestore_pages[savestore_count++];
+    memcpy (p->key, key, SAVESTORE_KEY);
+    p->offset = offset;
+    p->len = len;
+    p->clen = clen;
+    p->refs = 0;
+    savestore_dead += SAVESTORE_RECORD + clen;
+    /* at most half full */
+    if (savestore_count * 2 > savestore_hash_size) {
+	if (!savestore_rehash (savestore_hash_size ? savestore_hash_size * 2 : 4096)) {
+	    savestore_count--;
+	    return -1;
+	}
+    } else {
+	unsigned i = ((key[0] << 24) | (key[1] << 16) | (key[2] << 8) | key[3]) & (savestore_hash_size - 1);
+
+	while (savestore_hash[i] >= 0)
+	    i = (i + 1) & (savestore_hash_size - 1);
+	savestore_hash[i] = savestore_count - 1;
+    }
+    return savestore_count - 1;
+}
+
+static void savestore_ref (const uae_u8 *key)
+{
+    int n = savestore_find (key);
+
+    if (n < 0)
+	return;
+    if (!savestore_pages[n].refs++)
+	savestore_dead -= SAVESTORE_RECORD + savestore_pages[n].clen;
+    savestore_logical += savestore_pages[n].clen;
+}
+
+static void savestore_unref (const uae_u8 *key)
+{
+    int n = savestore_find (key);
+
+    if (n < 0 || !savestore_pages[n].refs)
+	return;
+    if (!--savestore_pages[n].refs)
+	savestore_dead += SAVESTORE_RECORD + savestore_pages[n].clen;
+    savestore_logical -= savestore_pages[n].clen;
+}
+
+static void savestore_record_len (uae_u8 *dst, uae_u32 len, uae_u32 clen)
+{
+    save_u32 (len);
+    save_u32 (clen);
+}
+
+/* Calls func for every page key in the paged chunks of a state file */
+static int savestore_walk (const char *statefile, void (*func) (const uae_u8 *))
+{
+    FILE *f = fopen (statefile, "rb");
+    uae_u8 *file, *src, *end;
+    long size;
+
+    if (!f)
+	return 0;
+    fseek (f, 0, SEEK_END);
+    size = ftell (f);
+    fseek (f, 0, SEEK_SET);
+    file = (uae_u8 *)malloc (size > 0 ? size : 1);
+    if (!file || fread (file, 1, size, f) != (size_t)size) {
+	fclose (f);
+	free (file);
+	return 0;
+    }
+    fclose (f);
+    src = file;
+    end = file + size;
+    while (end - src >= 12 && memcmp (src, "END ", 4)) {
+	long len, n;
+	uae_u32 flags;
+
+	src += 4;
+	len = restore_u32 () - 12;
+	flags = restore_u32 ();
+	if (len < 0 || end - src < len)
+	    break;
+	if ((flags & SAVESTORE_CHUNK_PAGED) && len >= 8) {
+	    uae_u8 *p = src;
+
+	    n = restore_u32 ();
+	    n = (n + SAVESTORE_PAGE - 1) / SAVESTORE_PAGE;
+	    src = p;
+	    if (8 + n * SAVESTORE_KEY <= len)
+		while (n--)
+		    func (p + 8 + n * SAVESTORE_KEY);
+	}
+	src += len + 4 - (len & 3);
+    }
+    free (file);
+    return 1;
+}
+
+/* Rewrites the pack with only the pages in use */
+static void savestore_compact (void)
+{
+    char name[280], newname[280];
+    uae_u8 *buf = (uae_u8 *)malloc (SAVESTORE_RECORD + compressBound (SAVESTORE_PAGE));
+    uae_u32 *offsets = (uae_u32 *)malloc ((savestore_count + 1) * sizeof (uae_u32));
+    long before = savestore_pack_size, offset = SAVESTORE_HEADER;
+    FILE *f = 0;
+    int i, n = 0, ok = 1;
+
+    sprintf (name, "%s/pages.dat", savestore_dir);
+    sprintf (newname, "%s/pages.new", savestore_dir);
+    if (buf && offsets)
+	f = fopen (newname, "w+b");
+    if (!f) {
+	free (buf);
+	free (offsets);
+	return;
+    }
+    fseek (savestore_pack, 0, SEEK_SET);
+    ok &= fread (buf, 1, SAVESTORE_HEADER, savestore_pack) == SAVESTORE_HEADER;
+    ok &= fwrite (buf, 1, SAVESTORE_HEADER, f) == SAVESTORE_HEADER;
+    for (i = 0; ok && i < savestore_count; i++) {
+	struct savestore_page *p = &savestore_pages[i];
+	long rec = SAVESTORE_RECORD + p->clen;
+
+	if (!p->refs)
+	    continue;
+	ok &= fseek (savestore_pack, p->offset, SEEK_SET) == 0;
+	ok &= fread (buf, 1, rec, savestore_pack) == (size_t)rec;
+	ok &= fwrite (buf, 1, rec, f) == (size_t)rec;
+	offsets[i] = offset;
+	offset += rec;
+    }
+    free (buf);
+    ok = (fflush (f) == 0) && ok;
+#ifndef DREAMCAST
+    ok = (fsync (fileno (f)) == 0) && ok;
+#endif
+    if (!ok || rename (newname, name)) {
+	/* the old pack stays as it was */
+	fclose (f);
+	unlink (newname);
+	free (offsets);
+	__android_log_print (ANDROID_LOG_INFO, "UAE", "state store: compaction failed");
+	return;
+    }
+    for (i = 0; i < savestore_count; i++) {
+	if (!savestore_pages[i].refs)
+	    continue;
+	savestore_pages[n] = savestore_pages[i];
+	savestore_pages[n++].offset = offsets[i];
+    }
+    free (offsets);
+    fclose (savestore_pack);
+    savestore_pack = f;
+    savestore_count = n;
+    savestore_pack_size = offset;
+    savestore_dead = 0;
+    savestore_rehash (savestore_hash_size);
+    __android_log_print (ANDROID_LOG_INFO, "UAE", "state store: pack compacted from %ld to %ld KB",
+			 before >> 10, offset >> 10);
+}
+
+static void savestore_close (void)
+{
+    int i;
+
+    if (savestore_pack)
+	fclose (savestore_pack);
+    savestore_pack = 0;
+    for (i = 0; i < savestore_state_count; i++)
+	free (savestore_states[i]);
+    free (savestore_states);
+    savestore_states = 0;
+    savestore_state_count = 0;
+    free (savestore_pages);
+    free (savestore_hash);
+    savestore_pages = 0;
+    savestore_hash = 0;
+    savestore_count = savestore_size = savestore_hash_size = 0;
+    savestore_dead = savestore_logical = savestore_pack_size = 0;
+}
+
+static int savestore_add_state (const char *statefile)
+{
+    char **s = (char **)realloc (savestore_states, (savestore_state_count + 1) * sizeof (char *));
+
+    if (!s)
+	return 0;
+    savestore_states = s;
+    s[savestore_state_count] = strdup (statefile);
+    if (!s[savestore_state_count])
+	return 0;
+    savestore_state_count++;
+    return 1;
+}
+
+/* Counts the references of the listed states that still exist and
+   writes the list again without the others */
+static void savestore_count_refs (void)
+{
+    char name[280], line[300];
+    FILE *f;
+    int i;
+
+    sprintf (name, "%s/states.lst", savestore_dir);
+    f = fopen (name, "r");
+    if (f) {
+	while (fgets (line, sizeof (line), f)) {
+	    line[strcspn (line, "\r\n")] = 0;
+	    if (line[0] && savestore_walk (line, savestore_ref))
+		savestore_add_state (line);
+	}
+	fclose (f);
+    }
+    f = fopen (name, "w");
+    if (!f)
+	return;
+    for (i = 0; i < savestore_state_count; i++)
+	fprintf (f, "%s\n", savestore_states[i]);
+    fclose (f);
+}
+
+/* Opens the store in dir, an empty dir closes it.  State files written
+   without it are whole and read the same either way.  */
+void savestore_open (const char *dir)
+{
+    char name[280];
+    uae_u8 rec[SAVESTORE_RECORD], *src;
+    long size, offset = SAVESTORE_HEADER;
+
+    savestore_lock ();
+    savestore_close ();
+    if (!dir[0]) {
+	savestore_unlock ();
+	return;
+    }
+    strncpy (savestore_dir, dir, sizeof (savestore_dir) - 1);
+    mkdir (savestore_dir, 0777);
+    sprintf (name, "%s/pages.dat", savestore_dir);
+    savestore_pack = fopen (name, "r+b");
+    if (!savestore_pack)
+	savestore_pack = fopen (name, "w+b");
+    if (!savestore_pack) {
+	savestore_unlock ();
+	return;
+    }
+    fseek (savestore_pack, 0, SEEK_END);
+    size = ftell (savestore_pack);
+    fseek (savestore_pack, 0, SEEK_SET);
+    src = rec + 4;
+    if (size < SAVESTORE_HEADER || fread (rec, 1, SAVESTORE_HEADER, savestore_pack) != SAVESTORE_HEADER
+	|| memcmp (rec, "ASP ", 4) || restore_u32 () != SAVESTORE_VERSION) {
+	uae_u8 *dst = rec;
+
+	/* new, or from another version: start over */
+	fclose (savestore_pack);
+	savestore_pack = fopen (name, "w+b");
+	if (!savestore_pack) {
+	    savestore_unlock ();
+	    return;
+	}
+	memcpy (dst, "ASP ", 4);
+	dst += 4;
+	save_u32 (SAVESTORE_VERSION);
+	fwrite (rec, 1, SAVESTORE_HEADER, savestore_pack);
+	size = SAVESTORE_HEADER;
+    }
+    while (offset + SAVESTORE_RECORD <= size) {
+	uae_u32 len, clen;
+
+	fseek (savestore_pack, offset, SEEK_SET);
+	if (fread (rec, 1, SAVESTORE_RECORD, savestore_pack) != SAVESTORE_RECORD)
+	    break;
+	src = rec + SAVESTORE_KEY;
+	len = restore_u32 ();
+	clen = restore_u32 ();
+	if (len > SAVESTORE_PAGE || clen > compressBound (SAVESTORE_PAGE)
+	    || offset + SAVESTORE_RECORD + clen > size)
+	    break;
+	if (savestore_find (rec) >= 0)
+	    /* written twice, the first one is used */
+	    savestore_dead += SAVESTORE_RECORD + clen;
+	else if (savestore_add (rec, offset, len, clen) < 0)
+	    break;
+	offset += SAVESTORE_RECORD + clen;
+    }
+    if (offset < size) {
+	/* cut off while writing */
+	fflush (savestore_pack);
+	ftruncate (fileno (savestore_pack), offset);
+	__android_log_print (ANDROID_LOG_INFO, "UAE", "state store: dropped %ld bytes at the end of the pack", size - offset);
+    }
+    savestore_pack_size = offset;
+    savestore_count_refs ();
+    __android_log_print (ANDROID_LOG_INFO, "UAE", "state store: %d states, %d pages, pack %ld KB (%ld KB unused) for %ld KB of pages",
+			 savestore_state_count, savestore_count, savestore_pack_size >> 10, savestore_dead >> 10, savestore_logical >> 10);
+    if (savestore_dead > savestore_pack_size / 2)
+	savestore_compact ();
+    savestore_unlock ();
+}
+
+int savestore_enabled (void)
+{
+    return savestore_pack != 0;
+}
+
+/* Stores the pages of data that aren't there yet and takes a reference
+   on all of them.  Returns the chunk data that stands for it: the length,
+   the page size and the keys.  */
+uae_u8 *savestore_put (uae_u8 *data, long len, long *outlen)
+{
+    long pages = (len + SAVESTORE_PAGE - 1) / SAVESTORE_PAGE, i;
+    uae_u8 *list = (uae_u8 *)malloc (8 + pages * SAVESTORE_KEY), *dst = list;
+    uae_u8 *buf = (uae_u8 *)malloc (SAVESTORE_RECORD + compressBound (SAVESTORE_PAGE));
+
+    if (!list || !buf)
+	goto error;
+    save_u32 (len);
+    save_u32 (SAVESTORE_PAGE);
+    savestore_lock ();
+    for (i = 0; i < pages; i++) {
+	uae_u8 *p = data + i * SAVESTORE_PAGE, *key = dst;
+	long l = len - i * SAVESTORE_PAGE < SAVESTORE_PAGE ? len - i * SAVESTORE_PAGE : SAVESTORE_PAGE;
+
+	savestore_key (p, l, key);
+	dst += SAVESTORE_KEY;
+	if (savestore_find (key) < 0) {
+	    uLongf clen = compressBound (SAVESTORE_PAGE);
+
+	    /* only the new pages get compressed */
+	    if (!savestore_pack
+		|| compress2 (buf + SAVESTORE_RECORD, &clen, p, l, Z_BEST_COMPRESSION) != Z_OK
+		|| (long)clen >= l) {
+		memcpy (buf + SAVESTORE_RECORD, p, l);
+		clen = l;
+	    }
+	    memcpy (buf, key, SAVESTORE_KEY);
+	    savestore_record_len (buf + SAVESTORE_KEY, l, clen);
+	    if (!savestore_pack || fseek (savestore_pack, savestore_pack_size, SEEK_SET)
+		|| fwrite (buf, 1, SAVESTORE_RECORD + clen, savestore_pack) != SAVESTORE_RECORD + clen
+		|| savestore_add (key, savestore_pack_size, l, clen) < 0) {
+		/* give back what this one took */
+		while (i--)
+		    savestore_unref (list + 8 + i * SAVESTORE_KEY);
+		savestore_unlock ();
+		goto error;
+	    }
+	    savestore_pack_size += SAVESTORE_RECORD + clen;
+	    savestore_put_new++;
+	    savestore_put_bytes += SAVESTORE_RECORD + clen;
+	}
+	savestore_ref (key);
+	savestore_put_pages++;
+    }
+    savestore_unlock ();
+    free (buf);
+    *outlen = dst - list;
+    return list;
+
+    error:
+    free (list);
+    free (buf);
+    return 0;
+}
+
+/* Length of the data a savestore_put list stands for, -1 when the list
+   is broken or a page is missing */
+long savestore_length (uae_u8 *list, long len)
+{
+    uae_u8 *src = list;
+    long total, pages, i;
+
+    if (len < 8)
+	return -1;
+    total = restore_u32 ();
+    if (restore_u32 () != SAVESTORE_PAGE)
+	return -1;
+    pages = (total + SAVESTORE_PAGE - 1) / SAVESTORE_PAGE;
+    if (8 + pages * SAVESTORE_KEY > len)
+	return -1;
+    savestore_lock ();
+    for (i = 0; i < pages && savestore_find (src + i * SAVESTORE_KEY) >= 0; i++);
+    savestore_unlock ();
+    if (i < pages) {
+	__android_log_print (ANDROID_LOG_INFO, "UAE", "state store: page %ld of %ld missing", i, pages);
+	return -1;
+    }
+    return total;
+}
+
+/* Puts the pages of a savestore_put list back together in dst, as far as
+   size goes.  Every page is checked against the CRC in its key.  Without
+   dst they are only checked.  */
+int savestore_read (uae_u8 *list, long len, uae_u8 *dst, long size)
+{
+    long total = savestore_length (list, len), i;
+    uae_u8 *buf, *page;
+
+    if (total < 0)
+	return 0;
+    if (!dst)
+	size = total;
+    buf = (uae_u8 *)malloc (compressBound (SAVESTORE_PAGE) + SAVESTORE_PAGE);
+    if (!buf)
+	return 0;
+    page = buf + compressBound (SAVESTORE_PAGE);
+    savestore_lock ();
+    for (i = 0; i * SAVESTORE_PAGE < total && i * SAVESTORE_PAGE < size; i++) {
+	uae_u8 *src = list + 8 + i * SAVESTORE_KEY;
+	int n = savestore_find (src);
+	long l = total - i * SAVESTORE_PAGE < SAVESTORE_PAGE ? total - i * SAVESTORE_PAGE : SAVESTORE_PAGE;
+	/* straight into place unless only a part of it fits */
+	uae_u8 *out = !dst || size - i * SAVESTORE_PAGE < l ? page : dst + i * SAVESTORE_PAGE;
+	uLongf dlen = l;
+	struct savestore_page *p;
+
+	if (n < 0 || !savestore_pack)
+	    break;
+	p = &savestore_pages[n];
+	if (p->len != (uae_u32)l || fseek (savestore_pack, p->offset + SAVESTORE_RECORD, SEEK_SET)
+	    || fread (p->clen == p->len ? out : buf, 1, p->clen, savestore_pack) != p->clen)
+	    break;
+	if (p->clen != p->len && (uncompress (out, &dlen, buf, p->clen) != Z_OK || (long)dlen != l))
+	    break;
+	if (crc32 (0, out, l) != restore_u32 ())
+	    break;
+	if (out == page && dst)
+	    memcpy (dst + i * SAVESTORE_PAGE, page, size - i * SAVESTORE_PAGE);
+    }
+    savestore_unlock ();
+    free (buf);
+    if (i * SAVESTORE_PAGE < total && i * SAVESTORE_PAGE < size) {
+	__android_log_print (ANDROID_LOG_INFO, "UAE", "state store: page %ld unreadable", i);
+	return 0;
+    }
+    return 1;
+}
+
+uae_u8 *savestore_get (uae_u8 *list, long len, long *outlen)
+{
+    long total = savestore_length (list, len);
+    uae_u8 *out;
+
+    if (total < 0)
+	return 0;
+    out = (uae_u8 *)malloc (total > 0 ? total : 1);
+    if (!out || !savestore_read (list, len, out, total)) {
+	free (out);
+	return 0;
+    }
+    *outlen = total;
+    return out;
+}
+
+/* Has the pages on storage before a state file that uses them */
+int savestore_sync (void)
+{
+    int ok = 1;
+
+    savestore_lock ();
+    if (savestore_pack) {
+	ok = fflush (savestore_pack) == 0;
+#ifndef DREAMCAST
+	ok = (fsync (fileno (savestore_pack)) == 0) && ok;
+#endif
+    }
+    savestore_unlock ();
+    return ok;
+}
+
+/* The state file is about to be replaced or deleted */
+void savestore_release (const char *statefile)
+{
+    savestore_lock ();
+    if (savestore_pack)
+	savestore_walk (statefile, savestore_unref);
+    savestore_unlock ();
+}
+
+/* Takes back the references of a release when the file stays after all */
+void savestore_retain (const char *statefile)
+{
+    savestore_lock ();
+    if (savestore_pack)
+	savestore_walk (statefile, savestore_ref);
+    savestore_unlock ();
+}
+
+void savestore_register (const char *statefile)
+{
+    char name[280];
+    FILE *f;
+    int i;
+
+    savestore_lock ();
+    if (!savestore_pack) {
+	savestore_unlock ();
+	return;
+    }
+    for (i = 0; i < savestore_state_count; i++)
+	if (!strcmp (savestore_states[i], statefile))
+	    break;
+    if (i == savestore_state_count && savestore_add_state (statefile)) {
+	sprintf (name, "%s/states.lst", savestore_dir);
+	f = fopen (name, "a");
+	if (f) {
+	    fprintf (f, "%s\n", statefile);
+	    fclose (f);
+	}
+    }
+    savestore_unlock ();
+}
+
+/* Compacts the pack once half of it is dead.  Only when no state file
+   that is still on storage lists the dead pages: after the file that
+   replaced them has been renamed into place, never before.  */
+void savestore_collect (void)
+{
+    savestore_lock ();
+    if (savestore_pack && savestore_dead > savestore_pack_size / 2)
+	savestore_compact ();
+    savestore_unlock ();
+}
+
+/* Logs what the last save cost and saved */
+void savestore_report (const char *statefile, long us)
+{
+    savestore_lock ();
+    __android_log_print (ANDROID_LOG_INFO, "UAE", "%s saved in %ld us: %d pages, %d new, %ld KB written; pack %ld KB for %ld KB of pages",
+			 statefile, us, savestore_put_pages, savestore_put_new, savestore_put_bytes >> 10,
+			 savestore_pack_size >> 10, savestore_logical >> 10);
+    savestore_put_pages = savestore_put_new = 0;
+    savestore_put_bytes = 0;
+    savestore_unlock ();
+}
@@ -81,6 +81,10 @@ extern int soundVolume;
 
 #include "vkbd.h"
 
+#ifdef ANDROID
+extern "C" void SDL_ANDROID_InputFrame (void);
+#endif
+
 extern int drawfinished;
 
 int prefs_gfx_framerate, changed_gfx_framerate;
@@ -673,11 +677,17 @@ printf("%i\n",cuenta); fflush(stdout);
 		cuenta++;
 	}
 #else
+#ifdef ANDROID
+    /* input from the UI thread, see SDL_androidvideo.c */
+    SDL_ANDROID_InputFrame ();
+#endif
     /* Handle GUI events */
     gui_handle_events ();
 
     while (SDL_PollEvent(&rEvent))
     {
+	if (rEvent.type != SDL_QUIT)
+	    gui_note_input ();
 	switch (rEvent.type)
 	{
 	case SDL_QUIT:
@@ -1026,6 +1036,11 @@ printf("%i\n",cuenta); fflush(stdout);
 	case SDL_MOUSEMOTION:
 #ifdef DEBUG_EVENTS
 	    dbg("Event: mouse motion");
+#endif
+#ifdef ANDROID
+	    /* late latching takes the published position instead */
+	    if (joystick_latch_line >= 0)
+		break;
 #endif
 	    lastmx += rEvent.motion.xrel<<1;
 	    lastmy += rEvent.motion.yrel<<1;
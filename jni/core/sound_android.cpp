@@ -23,6 +23,9 @@
 #include "gensound.h"
 #include "sound.h"
 #include "custom.h"
+#include "gui.h"
+
+#include <SDL.h>
 
 
 extern unsigned long next_sample_evtime;
@@ -70,6 +73,31 @@ int tablas_ajuste[8][9]=
 
 int *tabla_ajuste=(int *)&tablas_ajuste[4];
 
+/* Frames emulated ahead (see runahead.cpp) render into a buffer of their
+   own that is never played, the real one is picked up where it was.  */
+static uae_u16 sndbuffer_ahead[SNDBUFFER_LEN+32] UAE4ALL_ALIGN;
+static uae_u16 *ahead_sndbufpt, *ahead_render_sndbuff;
+static int sound_ahead = 0;
+
+void sound_ahead_begin (void)
+{
+	if (sound_ahead)
+		return;
+	ahead_sndbufpt = sndbufpt;
+	ahead_render_sndbuff = render_sndbuff;
+	sndbufpt = render_sndbuff = sndbuffer_ahead;
+	sound_ahead = 1;
+}
+
+void sound_ahead_end (void)
+{
+	if (!sound_ahead)
+		return;
+	sndbufpt = ahead_sndbufpt;
+	render_sndbuff = ahead_render_sndbuff;
+	sound_ahead = 0;
+}
+
 #ifdef NO_SOUND
 
 
@@ -179,6 +207,12 @@ void finish_sound_buffer (void)
 	dbg("sound.c : finish_sound_buffer");
 #endif
 
+if (sound_ahead)
+{
+	sndbufpt = render_sndbuff;
+	return;
+}
+
 
 
 if (android_env && !sinit) {
@@ -196,7 +230,20 @@ if (android_env && !sinit) {
 	sinit = 1;
 }
 
-if (android_env)
+/* While fast forwarding, only hand over as many buffers as the AudioTrack
+   plays in real time and drop the rest, so that sendAudio never blocks. */
+static Uint32 ffwd_sent = 0;
+int send = 1;
+if (gui_ffwd)
+{
+	Uint32 now = SDL_GetTicks();
+	if (now - ffwd_sent < (SNDBUFFER_LEN/2) * 1000 / sound_rate)
+		send = 0;
+	else
+		ffwd_sent = now;
+}
+
+if (android_env && send)
 {
 
 	(android_env)->SetShortArrayRegion(audioarray, 0, SNDBUFFER_LEN/2, (jshort*) sndbuffer[(wrcnt&3)]);
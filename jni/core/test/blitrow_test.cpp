@@ -0,0 +1,181 @@
+ /*
+  * UAE - The Un*x Amiga Emulator
+  *
+  * Host test: the blitter row kernels against the blitfunc tables
+  *
+  * Every minterm, A and B shift, first and last word mask, direction and
+  * fill mode runs once through blitrow_dofast and once through the word
+  * path (blitter_dofast_words, which uses the blitfunc tables when there
+  * is no fill) on the same chip memory.  Chip memory and the blitter
+  * state left behind have to match, and the kernels have to take the
+  * minterms they claim.  From jni/core:
+  *
+  *   g++ -O2 -Iinclude -I. -Im68k/uae -I../sdl/include -I<jdk>/include \
+  *       -I<jdk>/include/linux -I<dir with android/log.h> -DANDROID \
+  *       -DOS_ANDROID -DUSE_SDL -DOS_WITHOUT_MEMORY_MANAGEMENT -w \
+  *       test/blitrow_test.cpp blitrow.cpp blitfunc.cpp blittable.cpp
+  */
+
+#include "../blitter.cpp"
+
+#include <stdarg.h>
+
+#define TEST_CHIP 0x10000
+
+uae_u8 *chipmemory;
+uae_u32 chipmem_mask = TEST_CHIP - 1;
+addrbank chipmem_bank;
+unsigned long int currcycle, nextevent;
+struct ev eventtab[ev_max];
+uae_u16 dmacon;
+struct uae_regstruct uae_regs;
+
+void INTREQ (uae_u16 v) { }
+void blitter_done_notify (void) { }
+void chipmem_wgen_range (uae_u32 lo, uae_u32 hi) { }
+
+uae_u32 REGPARAM2 chipmem_wget (uaecptr addr)
+{
+    addr &= chipmem_mask;
+    return (chipmemory[addr] << 8) | chipmemory[addr + 1];
+}
+
+void REGPARAM2 chipmem_wput (uaecptr addr, uae_u32 w)
+{
+    addr &= chipmem_mask;
+    chipmemory[addr] = w >> 8;
+    chipmemory[addr + 1] = w;
+}
+
+extern "C" int __android_log_print (int prio, const char *tag, const char *fmt, ...)
+{
+    return 0;
+}
+
+static uae_u8 before[TEST_CHIP], after[TEST_CHIP];
+static unsigned seed = 1;
+
+static unsigned rnd (void)
+{
+    seed = seed * 1103515245 + 12345;
+    return seed >> 16;
+}
+
+/* Sets up the registers the way a BLTSIZE write does and returns the
+   channel pointers blitter_dofast(_desc) would use */
+static void setup (int mt, int ashift, int bshift, uae_u16 fwm, uae_u16 lwm, int desc, int fill,
+		   int chans, int n, int v, uaecptr pt[4])
+{
+    static const uaecptr base[4] = { 0x1000, 0x3000, 0x5000, 0x8000 };
+    int k, span;
+
+    bltcon0 = (ashift << 12) | (chans << 8) | mt;
+    bltcon1 = (bshift << 12) | fill | (desc ? 2 : 0);
+    blt_info.hblitsize = n;
+    blt_info.vblitsize = v;
+    blt_info.bltafwm = fwm;
+    blt_info.bltalwm = lwm;
+    blt_info.bltamod = 2 * (rnd () % 4);
+    blt_info.bltbmod = 2 * (rnd () % 4);
+    blt_info.bltcmod = 2 * (rnd () % 4);
+    blt_info.bltdmod = 2 * (rnd () % 4);
+    blt_info.bltadat = rnd ();
+    blt_info.bltbdat = rnd ();
+    blt_info.bltbhold = rnd ();
+    blt_info.bltcdat = rnd ();
+    blt_info.bltddat = rnd ();
+    blit_init ();
+    for (k = 0; k < 4; k++) {
+	span = (2 * n + 6) * v;
+	pt[k] = (chans & (8 >> k)) ? (desc ? base[k] + span : base[k]) : 0;
+    }
+    /* also in place, D on top of A */
+    if ((chans & 0x9) == 0x9 && rnd () % 4 == 0)
+	pt[3] = pt[0];
+    blit_masktable[BLITTER_MAX_WORDS - 1] = fwm;
+    blit_masktable[BLITTER_MAX_WORDS - n] &= lwm;
+}
+
+static void reset_masks (int n)
+{
+    blit_masktable[BLITTER_MAX_WORDS - 1] = 0xFFFF;
+    blit_masktable[BLITTER_MAX_WORDS - n] = 0xFFFF;
+}
+
+int main (void)
+{
+    static const uae_u16 masks[][2] = { { 0xFFFF, 0xFFFF }, { 0x0FFF, 0xFFF0 }, { 0x8001, 0x7FFE }, { 0, 0xFFFF } };
+    static const int fills[] = { 0, 0x8, 0x8 | 0x4, 0x10, 0x10 | 0x4 };
+    static const int sizes[][2] = { { 1, 1 }, { 2, 3 }, { 3, 2 }, { 9, 3 }, { 31, 2 } };
+    int i, k, mt, shift, m, desc, f, s, chans;
+    long cases = 0, kernel = 0, failed = 0;
+
+    chipmemory = (uae_u8 *)malloc (TEST_CHIP);
+    for (i = 0; i < BLITTER_MAX_WORDS; i++)
+	blit_masktable[i] = 0xFFFF;
+    build_blitfilltable ();
+    blitrow_init ();
+
+    for (mt = 0; mt < 256; mt++)
+	for (shift = 0; shift < 16; shift++)
+	    for (m = 0; m < 4; m++)
+		for (desc = 0; desc < 2; desc++)
+		    for (f = 0; f < 5; f++)
+			for (s = 0; s < 5; s++)
+			    for (chans = 0; chans < 16; chans++) {
+				struct bltinfo info_in, info_row;
+				uaecptr pt[4];
+				int n = sizes[s][0], v = sizes[s][1], fc_in, fc_row, ok;
+				int claims = mt == 0x00 || mt == 0xF0 || mt == 0xCC || mt == 0xCA;
+
+				/* the other minterms only need a look at the refusal */
+				if (!claims && (shift || m || f || s || desc))
+				    continue;
+				/* otherwise it holds what the last blit left */
+				if (!(cases & 63))
+				    for (k = 0; k < TEST_CHIP; k++)
+					chipmemory[k] = rnd ();
+				setup (mt, shift, (shift * 7) & 15, masks[m][0], masks[m][1], desc, fills[f], chans, n, v, pt);
+				memcpy (before, chipmemory, TEST_CHIP);
+				info_in = blt_info;
+				fc_in = blitfc;
+				cases++;
+
+				ok = blitrow_dofast (pt[0], pt[1], pt[2], pt[3], &blt_info, bltcon0, bltcon1, desc, &blitfc);
+				if (!ok) {
+				    if (claims && pt[3] != pt[0]) {
+					printf ("refused mt=%02x con0=%04x con1=%04x %dx%d\n", mt, bltcon0, bltcon1, n, v);
+					failed++;
+				    }
+				    reset_masks (n);
+				    continue;
+				}
+				if (!claims) {
+				    printf ("took unsupported mt=%02x\n", mt);
+				    failed++;
+				}
+				kernel++;
+				memcpy (after, chipmemory, TEST_CHIP);
+				info_row = blt_info;
+				fc_row = blitfc;
+
+				memcpy (chipmemory, before, TEST_CHIP);
+				blt_info = info_in;
+				blitfc = fc_in;
+				if (desc)
+				    blitter_dofast_desc_words (pt[0], pt[1], pt[2], pt[3]);
+				else
+				    blitter_dofast_words (pt[0], pt[1], pt[2], pt[3]);
+				reset_masks (n);
+
+				if (memcmp (after, chipmemory, TEST_CHIP) || memcmp (&info_row, &blt_info, sizeof blt_info)
+				    || (fills[f] && fc_row != blitfc)) {
+				    if (failed++ < 20)
+					printf ("mismatch mt=%02x con0=%04x con1=%04x fwm=%04x lwm=%04x %dx%d%s\n",
+						mt, bltcon0, bltcon1, masks[m][0], masks[m][1], n, v,
+						memcmp (after, chipmemory, TEST_CHIP) ? " (memory)" : "");
+				}
+			    }
+    printf ("%ld blits, %ld through the row kernels, %ld failed\n", cases, kernel, failed);
+    return failed != 0;
+}
@@ -0,0 +1,169 @@
+ /*
+  * UAE - The Un*x Amiga Emulator
+  *
+  * Host test: the frame a game reacts in, for each joystick_latch_line
+  *
+  * The Android input glue is built in with its JNI entry points, and a
+  * fake frame loop stands in for custom.cpp: SDL_ANDROID_InputFrame and
+  * the vsync sample, then 312 lines with the late latch at
+  * joystick_latch_line and a game reading fire at READ_LINE.  Touches are
+  * made through nativeKey (a pad) and nativeKeyQueued (the on-screen
+  * joystick) at given lines, and the frames the game first sees the
+  * press and the release have to be the ones each mode promises.
+  * From jni/core:
+  *
+  *   gcc -O2 -I../sdl/include -I<jdk>/include -I<jdk>/include/linux \
+  *       -I<dir with android/log.h> -DANDROID \
+  *       -DSDL_JAVA_PACKAGE_PATH=org_ab_uae -DSDL_CURDIR_PATH='"."' -w \
+  *       test/joystick_latch_test.c -lpthread
+  */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdint.h>
+#include <unistd.h>
+
+/* the glue calls the game's main, which this test replaces */
+#define main uae_main
+#include "../../sdl/src/video/android/SDL_androidvideo.c"
+#undef main
+
+int uae_main (int argc, char **argv) { return 0; }
+void *SDL_malloc (size_t size) { return malloc (size); }
+void SDL_free (void *mem) { free (mem); }
+void *SDL_memset (void *dst, int c, size_t len) { return memset (dst, c, len); }
+void SDL_Error (SDL_errorcode code) { }
+int SDL_PrivateKeyboard (Uint8 state, SDL_keysym *keysym) { return 0; }
+int SDL_PrivateMouseButton (Uint8 state, Uint8 button, Sint16 x, Sint16 y) { return 0; }
+int SDL_PrivateMouseMotion (Uint8 buttonstate, int relative, Sint16 x, Sint16 y) { return 0; }
+int SDL_PrivateQuit (void) { return 0; }
+SDL_PixelFormat *SDL_ReallocFormat (SDL_Surface *surface, int bpp, Uint32 r, Uint32 g, Uint32 b, Uint32 a) { return 0; }
+void SDL_SetError (const char *fmt, ...) { }
+int SDL_TranslateUNICODE;
+void SDL_WaitThread (SDL_Thread *thread, int *status) { }
+int __android_log_print (int prio, const char *tag, const char *fmt, ...) { return 0; }
+
+#define LINES 312
+#define READ_LINE 150
+#define FRAMES 8
+#define FIRE 44
+/* the game's port 1, SDL joystick 0, joystick_nr 1 on the Java side */
+#define NR 0
+#define JAVA_NR 1
+
+struct touch {
+    int frame, line, queued, action;
+};
+
+struct scenario {
+    const char *name;
+    struct touch touch[2];
+    /* the frames the press and the release are first seen, per mode;
+       -2 where the mode does not promise anything */
+    int press[4], release[4];
+};
+
+static const int modes[4] = { -1, 0, 100, 200 };
+
+static const struct scenario scenarios[] = {
+    { "pad, press before the read", { { 1, 50, 0, 1 }, { 3, 10, 0, 0 } },
+      { 2, 1, 1, 2 }, { 4, 3, 3, 4 } },
+    { "pad, press between line 100 and the read", { { 1, 120, 0, 1 }, { 3, 120, 0, 0 } },
+      { 2, 1, 2, 2 }, { 4, 3, 4, 4 } },
+    /* at vsync a tap within a frame is gone before the SDL joystick is read */
+    { "pad, tap after the read", { { 1, 160, 0, 1 }, { 1, 165, 0, 0 } },
+      { -2, 2, 2, 2 }, { -2, 3, 3, 3 } },
+    /* held for key_hold_frames */
+    { "on-screen, tap", { { 1, 50, 1, 1 }, { 1, 50, 1, 0 } },
+      { 2, 2, 2, 2 }, { 4, 4, 4, 4 } },
+    { "on-screen, held", { { 1, 50, 1, 1 }, { 4, 50, 1, 0 } },
+      { 2, 2, 2, 2 }, { 5, 5, 5, 5 } },
+};
+#define SCENARIOS (sizeof (scenarios) / sizeof (scenarios[0]))
+
+/* The SDL joystick as getjoystate sees it: custom.cpp reads both
+   joysticks at vsync, and each read takes one event per joystick */
+static int sdl_button;
+
+static void sdl_update (void)
+{
+    int pop = pop_circular_queue_for_joystick1 ();
+
+    if (pop == FIRE)
+	sdl_button = 1;
+    else if (pop == -FIRE - 2)
+	sdl_button = 0;
+    pop_circular_queue_for_joystick2 ();
+}
+
+static int run (const struct scenario *s, int latch_line, int *press, int *release)
+{
+    unsigned dir;
+    int button = 0, frame, line, i, seen = 0;
+
+    *press = *release = -1;
+    /* drop the presses a run at vsync left behind */
+    SDL_ANDROID_JoystickLatch (NR, 1, &dir, &button);
+    SDL_ANDROID_JoystickLatch (NR, 1, &dir, &button);
+    for (frame = 0; frame < FRAMES; frame++) {
+	SDL_ANDROID_InputFrame ();
+	sdl_update ();
+	sdl_update ();
+	if (latch_line < 0)
+	    button = sdl_button;
+	else
+	    SDL_ANDROID_JoystickLatch (NR, 1, &dir, &button);
+	for (line = 0; line < LINES; line++) {
+	    for (i = 0; i < 2; i++) {
+		const struct touch *t = &s->touch[i];
+
+		if (t->frame != frame || t->line != line)
+		    continue;
+		if (t->queued)
+		    JAVA_EXPORT_NAME(MainSurfaceView_nativeKeyQueued) (0, 0, FIRE, t->action, 1, JAVA_NR);
+		else
+		    JAVA_EXPORT_NAME(MainSurfaceView_nativeKey) (0, 0, FIRE, t->action, 1, JAVA_NR);
+	    }
+	    if (latch_line > 0 && line == latch_line)
+		SDL_ANDROID_JoystickLatch (NR, 0, &dir, &button);
+	    if (line != READ_LINE)
+		continue;
+	    if (!latch_line)
+		SDL_ANDROID_JoystickLatch (NR, 0, &dir, &button);
+	    if (button && !seen && *press < 0)
+		*press = frame;
+	    if (!button && seen && *release < 0)
+		*release = frame;
+	    seen = button;
+	}
+    }
+    return seen;
+}
+
+int main (void)
+{
+    int failed = 0, cases = 0;
+    unsigned i, m;
+
+    for (i = 0; i < SCENARIOS; i++) {
+	const struct scenario *s = &scenarios[i];
+
+	for (m = 0; m < 4; m++) {
+	    int press, release, held;
+
+	    held = run (s, modes[m], &press, &release);
+	    if (s->press[m] == -2)
+		continue;
+	    cases++;
+	    if (held || press != s->press[m] || release != s->release[m]) {
+		printf ("%s, latch line %d: press seen in frame %d, release in %d%s, want %d and %d\n",
+			s->name, modes[m], press, release, held ? " (still held)" : "",
+			s->press[m], s->release[m]);
+		failed++;
+	    }
+	}
+    }
+    printf ("%d cases, %d failed\n", cases, failed);
+    return failed != 0;
+}
@@ -19,9 +19,26 @@
 
 #include <zlib.h>
 
+#ifndef DREAMCAST
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <sys/time.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <pthread.h>
+#define DISK_WRITER
+#endif
+
+#if defined(USE_ZFILE) && !defined(DREAMCAST)
+#define DISK_LOADER
+#include <dirent.h>
+#include <ctype.h>
+#endif
+
 #define MAX_COMP_SIZE (1024*128)
 
 extern int mainMenu_autosave;
+extern int mainMenu_diskCompression;
 
 #ifdef GP2X
 extern char launchDir[300];
@@ -140,6 +157,11 @@ static unsigned uae4all_rom_pos=0;
 
 static void *uae4all_disk_memory[4]={ NULL ,NULL ,NULL ,NULL };
 static void *uae4all_extra_buffer=NULL;
+/* The FILE pointers handed out only identify the slot, the image memory
+   behind a slot changes with every insert.  */
+static char uae4all_disk_handle[4];
+#define DISK_HANDLE(i) ((FILE *)&uae4all_disk_handle[i])
+static char uae4all_disk_name[4][256];
 static unsigned uae4all_disk_len[4]={ 0 ,0 ,0 ,0 };
 static unsigned uae4all_disk_pos[4]={ 0 ,0 ,0 ,0 };
 static unsigned char uae4all_disk_used[4]= { 0 ,0 ,0 ,0 };
@@ -147,27 +169,950 @@ static int uae4all_disk_writed[4]= { 0, 0, 0, 0 };
 static int uae4all_disk_writed_now[4]= { 0, 0, 0, 0 };
 static void *uae4all_disk_orig[4]={ NULL, NULL, NULL, NULL };
 static unsigned uae4all_disk_crc[4]={ 0, 0, 0, 0 };
+static int uae4all_disk_crc_valid[4]={ 0, 0, 0, 0 };
 static unsigned uae4all_disk_actual_crc[4]={ 0, 0, 0, 0};
 
-void zfile_exit (void)
+/* Slots written since the last flush, slots that differ from the original
+   image, and the checksum of the live image kept up to date on every write,
+   so a flush only looks at what the emulator touched.  */
+#define SAVEDISK_SLOTS (MAX_DISK_LEN/SAVEDISK_SLOT)
+static unsigned uae4all_disk_dirty[4][SAVEDISK_MAP_WORDS(SAVEDISK_SLOTS)];
+static unsigned uae4all_disk_changed[4][SAVEDISK_MAP_WORDS(SAVEDISK_SLOTS)];
+static unsigned uae4all_disk_live_crc[4]={ 0, 0, 0, 0};
+/* Set while someone waits for everything to be stored */
+static volatile int uae4all_disk_flush_now=0;
+
+/* Disk images are not copied into malloced buffers any more.  Each one
+   gets a MAX_DISK_LEN anonymous mapping, which costs nothing until it is
+   touched, with the image file mapped privately over its start.  Reading
+   just pulls pages through the page cache, and writes from the emulator
+   only copy the pages they hit and never reach the file.  */
+static void *disk_region_new(void)
 {
-	int i;
-	for(i=0;i<NUM_DRIVES;i++)
-		if (uae4all_disk_memory[i])
+#ifndef DREAMCAST
+	void *p=mmap(NULL,MAX_DISK_LEN,PROT_READ|PROT_WRITE,MAP_PRIVATE|MAP_ANONYMOUS,-1,0);
+	return (p==MAP_FAILED)?NULL:p;
+#else
+	return NULL;
+#endif
+}
+
+static void disk_region_free(void **p)
+{
+#ifndef DREAMCAST
+	if (*p)
+		munmap(*p,MAX_DISK_LEN);
+#endif
+	*p=NULL;
+}
+
+#ifndef DREAMCAST
+static unsigned disk_region_map(void *p, const char *name)
+{
+	struct stat st;
+	unsigned len;
+	void *m;
+	int fd=open(name,O_RDONLY);
+	if (fd<0)
+		return 0;
+	if ((fstat(fd,&st)<0)||(st.st_size<=0))
+	{
+		close(fd);
+		return 0;
+	}
+#ifdef USE_ZFILE
+	{
+		/* gzipped images still have to go through zlib */
+		unsigned char magic[2];
+		if ((pread(fd,magic,2,0)==2)&&(magic[0]==0x1f)&&(magic[1]==0x8b))
 		{
+			close(fd);
+			return 0;
+		}
+	}
+#endif
+	len=(st.st_size>MAX_DISK_LEN)?MAX_DISK_LEN:st.st_size;
+	m=mmap(p,len,PROT_READ|PROT_WRITE,MAP_PRIVATE|MAP_FIXED,fd,0);
+	close(fd);
+	return (m==MAP_FAILED)?0:len;
+}
+#endif
+
 #ifndef DREAMCAST
-			free(uae4all_disk_memory[i]);
+static unsigned disk_ms(void)
+{
+	struct timeval tv;
+	gettimeofday(&tv,NULL);
+	return tv.tv_sec*1000+tv.tv_usec/1000;
+}
+
+/* Insert to first track read, per slot */
+static unsigned uae4all_disk_insert_ms[4];
+static int uae4all_disk_first_read[4];
 #endif
-			uae4all_disk_used[i]=0;
-			uae4all_disk_memory[i]=NULL;
+
+#ifdef DISK_LOADER
+/*
+ * gzipped images are decoded on a loader thread, a cylinder at a time,
+ * so that inserting one doesn't stop the emulation.  The uncompressed size
+ * comes from the gzip trailer.  Reads and writes of the image only wait
+ * if they get ahead of the decoder.
+ *
+ * With autosave on, the saved patch has to be on a slot before the
+ * emulator reads it, and the patch is named after the checksum of the
+ * whole original image.  That checksum is kept with the size and time of
+ * the image in a .crc file, so on later inserts the patch is known right
+ * away: the loader puts it on each slot as it is decoded and adds up the
+ * checksum of the original as it goes.  Should that come out different,
+ * the patched slots get their original data back and the patch is looked
+ * up again once the image is complete.  Without a .crc file nothing is
+ * published until the whole image is there.
+ */
+#define DISK_LOADER_CHUNK (2*11*512)
+
+static struct disk_loader {
+	pthread_t thread;
+	gzFile f;
+	char name[256];
+	int active;		/* thread started and not joined yet */
+	int autosave;		/* the patch is settled by disk_loader_reap */
+	int hold;		/* publish only when done */
+	volatile int cancel;
+	unsigned ready;		/* bytes the emulator may look at */
+	unsigned pos;		/* bytes decoded */
+	int done;
+	unsigned start_ms, wait_ms;
+	/* checksum from the .crc file, and of the original decoded so far */
+	unsigned crc, sum;
+	/* the saved patch: slot numbers, their data and the data they replaced */
+	unsigned char *patch, *patch_orig, *patch_done;
+	unsigned patch_count, *patch_slot;
+	unsigned char **patch_data;
+} disk_loader[4];
+
+static pthread_mutex_t disk_loader_lock=PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t disk_loader_cond=PTHREAD_COND_INITIALIZER;
+
+static char *get_namefile_crc(char *buf, unsigned crc);
+
+/* Named like a patch, after a hash of the image's path */
+static char *disk_crcfile(char *buf, const char *image)
+{
+	unsigned h=2166136261U;
+	for(;*image;image++)
+		h=(h^(unsigned char)*image)*16777619U;
+	get_namefile_crc(buf,h);
+	strcpy(buf+strlen(buf)-4,".crc");
+	return buf;
+}
+
+/* The checksum of the original image, if it is known for this file */
+static int disk_crc_lookup(const char *image, unsigned *crc)
+{
+	struct stat st;
+	unsigned long size, mtime;
+	char buf[288];
+	int ok=0;
+	FILE *f;
+
+	if (stat(image,&st))
+		return 0;
+	f=fopen(disk_crcfile(buf,image),"r");
+	if (!f)
+		return 0;
+	if ((fscanf(f,"%lu %lu %x",&size,&mtime,crc)==3)
+		&&(size==(unsigned long)st.st_size)&&(mtime==(unsigned long)st.st_mtime))
+		ok=1;
+	fclose(f);
+	return ok;
+}
+
+static void disk_crc_store(const char *image, unsigned crc)
+{
+	struct stat st;
+	char buf[288];
+	FILE *f;
+
+	if (stat(image,&st))
+		return;
+	f=fopen(disk_crcfile(buf,image),"w");
+	if (!f)
+		return;
+	fprintf(f,"%lu %lu %08x\n",(unsigned long)st.st_size,(unsigned long)st.st_mtime,crc);
+	fclose(f);
+}
+
+static void disk_loader_free_patch(struct disk_loader *l)
+{
+	free(l->patch);
+	free(l->patch_orig);
+	free(l->patch_done);
+	free(l->patch_slot);
+	free(l->patch_data);
+	l->patch=l->patch_orig=l->patch_done=NULL;
+	l->patch_slot=NULL;
+	l->patch_data=NULL;
+	l->patch_count=0;
+}
+
+/* Reads and unpacks the patch saved for l->crc, in either layout
+   savedisk_apply_changes takes */
+static void disk_loader_load_patch(struct disk_loader *l)
+{
+	char buf[288];
+	FILE *f=fopen(get_namefile_crc(buf,l->crc),"rb");
+	unsigned long n=0, len=MAX_DISK_LEN;
+	unsigned char *bc;
+	unsigned *src, words, k;
+
+	if (!f)
+		return;
+	bc=(unsigned char *)malloc(MAX_COMP_SIZE);
+	l->patch=(unsigned char *)malloc(MAX_DISK_LEN);
+	if ((!bc)||(!l->patch)||(fread(&n,1,4,f)!=4)||(n>MAX_COMP_SIZE)||(fread(bc,1,n,f)<n)
+		||(uncompress((Bytef *)l->patch,&len,(const Bytef *)bc,n)!=Z_OK))
+		len=0;
+	free(bc);
+	fclose(f);
+	src=(unsigned *)l->patch;
+	words=len/sizeof(unsigned);
+	if ((words>=2)&&(src[0]==SAVEDISK_MAGIC))
+		l->patch_count=((src[1]>SAVEDISK_SLOTS)||(2+src[1]+src[1]*(SAVEDISK_SLOT/sizeof(unsigned))>words))?0:src[1];
+	else
+		l->patch_count=words/(1+SAVEDISK_SLOT/sizeof(unsigned));
+	if (!l->patch_count)
+	{
+		disk_loader_free_patch(l);
+		return;
+	}
+	l->patch_slot=(unsigned *)malloc(l->patch_count*sizeof(unsigned));
+	l->patch_data=(unsigned char **)malloc(l->patch_count*sizeof(unsigned char *));
+	l->patch_orig=(unsigned char *)malloc(l->patch_count*SAVEDISK_SLOT);
+	l->patch_done=(unsigned char *)calloc(l->patch_count,1);
+	if ((!l->patch_slot)||(!l->patch_data)||(!l->patch_orig)||(!l->patch_done))
+	{
+		disk_loader_free_patch(l);
+		return;
+	}
+	for(k=0;k<l->patch_count;k++)
+		if (src[0]==SAVEDISK_MAGIC)
+		{
+			l->patch_slot[k]=src[2+k];
+			l->patch_data[k]=(unsigned char *)&src[2+src[1]]+k*SAVEDISK_SLOT;
+		}
+		else
+		{
+			unsigned *e=src+k*(1+SAVEDISK_SLOT/sizeof(unsigned));
+			l->patch_slot[k]=e[0];
+			l->patch_data[k]=(unsigned char *)&e[1];
+		}
+	for(k=0;k<l->patch_count;k++)
+		if (l->patch_slot[k]>=SAVEDISK_SLOTS)
+			l->patch_done[k]=1;
+}
+
+/* [from,to) has just been decoded: it goes into the checksum of the
+   original, then the patched slots complete by now get their patch */
+static void disk_loader_advance(struct disk_loader *l, unsigned char *dst, unsigned from, unsigned to)
+{
+	unsigned k;
+
+	if (!l->autosave||l->hold)
+		return;
+	for(k=from;k<to;k++)
+		l->sum+=(k+1)*(((unsigned)dst[k])+1);
+	for(k=0;k<l->patch_count;k++)
+	{
+		unsigned at=l->patch_slot[k]*SAVEDISK_SLOT;
+		if ((l->patch_done[k])||(at+SAVEDISK_SLOT>to))
+			continue;
+		memcpy(l->patch_orig+k*SAVEDISK_SLOT,dst+at,SAVEDISK_SLOT);
+		memcpy(dst+at,l->patch_data[k],SAVEDISK_SLOT);
+		l->patch_done[k]=1;
+	}
+}
+
+static void *disk_loader_thread(void *arg)
+{
+	int i=(int)(long)arg;
+	struct disk_loader *l=&disk_loader[i];
+	unsigned char *dst=(unsigned char *)uae4all_disk_memory[i];
+	unsigned pos=l->pos;
+
+	if (l->autosave)
+	{
+		/* nothing is published yet, the first cylinder included */
+		l->hold=!disk_crc_lookup(l->name,&l->crc);
+		if (!l->hold)
+			disk_loader_load_patch(l);
+		disk_loader_advance(l,dst,0,pos);
+		pthread_mutex_lock(&disk_loader_lock);
+		if (!l->hold)
+			l->ready=pos&~(SAVEDISK_SLOT-1);
+		pthread_cond_broadcast(&disk_loader_cond);
+		pthread_mutex_unlock(&disk_loader_lock);
+	}
+	while ((!l->cancel)&&(pos<MAX_DISK_LEN))
+	{
+		unsigned n=MAX_DISK_LEN-pos;
+		int readed;
+		if (n>DISK_LOADER_CHUNK)
+			n=DISK_LOADER_CHUNK;
+		readed=gzread(l->f,dst+pos,n);
+		if (readed<=0)
+			break;
+		disk_loader_advance(l,dst,pos,pos+readed);
+		pos+=readed;
+		pthread_mutex_lock(&disk_loader_lock);
+		l->pos=pos;
+		/* a slot is only shown once its patch is on */
+		if (!l->hold)
+			l->ready=l->autosave?(pos&~(SAVEDISK_SLOT-1)):pos;
+		pthread_cond_broadcast(&disk_loader_cond);
+		pthread_mutex_unlock(&disk_loader_lock);
+	}
+	gzclose(l->f);
+	/* the checksum takes in the empty rest of the region as well */
+	if (!l->cancel)
+		disk_loader_advance(l,dst,pos,MAX_DISK_LEN);
+
+	pthread_mutex_lock(&disk_loader_lock);
+	l->done=1;
+	pthread_cond_broadcast(&disk_loader_cond);
+	pthread_mutex_unlock(&disk_loader_lock);
+	return NULL;
+}
+
+static void uae4all_initsave(unsigned num);
+static unsigned try_to_read_disk(void *dst,const char *name);
+
+/* The patch went on while decoding: takes it over as uae4all_initsave
+   would have, or undoes it if the image turned out to be another one */
+static void disk_loader_settle(int i)
+{
+	struct disk_loader *l=&disk_loader[i];
+	unsigned char *dst=(unsigned char *)uae4all_disk_memory[i];
+	unsigned k;
+
+	if (l->sum!=l->crc)
+	{
+		for(k=0;k<l->patch_count;k++)
+			if (l->patch_slot[k]<SAVEDISK_SLOTS)
+				memcpy(dst+l->patch_slot[k]*SAVEDISK_SLOT,l->patch_orig+k*SAVEDISK_SLOT,SAVEDISK_SLOT);
+		__android_log_print(ANDROID_LOG_WARN, "UAE", "disk slot %d: checksum %08x, not %08x as cached, patch looked up again",
+			i,l->sum,l->crc);
+		uae4all_initsave(i);
+		return;
+	}
+	uae4all_disk_crc[i]=l->crc;
+	uae4all_disk_crc_valid[i]=1;
+	for(k=0;k<l->patch_count;k++)
+		if (l->patch_slot[k]<SAVEDISK_SLOTS)
+			SAVEDISK_MAP_SET(uae4all_disk_changed[i],l->patch_slot[k]);
+	uae4all_disk_live_crc[i]=savedisk_get_checksum(dst,MAX_DISK_LEN);
+	uae4all_disk_actual_crc[i]=uae4all_disk_live_crc[i];
+}
+
+/* Emulation thread side of a finished loader */
+static void disk_loader_reap(int i)
+{
+	struct disk_loader *l=&disk_loader[i];
+
+	pthread_join(l->thread,NULL);
+	l->active=0;
+	if (l->cancel)
+	{
+		disk_loader_free_patch(l);
+		return;
+	}
+	uae4all_disk_len[i]=l->pos;
+	if (l->autosave)
+	{
+		if (l->hold)
+			uae4all_initsave(i);
+		else
+			disk_loader_settle(i);
+		if ((l->hold||(l->sum!=l->crc))&&(uae4all_disk_crc_valid[i]))
+			disk_crc_store(l->name,uae4all_disk_crc[i]);
+		disk_loader_free_patch(l);
+	}
+	l->ready=l->pos;
+	__android_log_print(ANDROID_LOG_INFO, "UAE", "disk slot %d: decoded %u bytes in %u ms, %u ms spent waiting",
+		i,l->pos,disk_ms()-l->start_ms,l->wait_ms);
+}
+
+/* Makes sure the first end bytes of the image are there.  With end 0 it
+   only notices a finished loader.  */
+static void disk_wait(int i, unsigned end)
+{
+	struct disk_loader *l=&disk_loader[i];
+	int done;
+
+	if (!l->active)
+		return;
+	pthread_mutex_lock(&disk_loader_lock);
+	if ((l->ready<end)&&(!l->done))
+	{
+		unsigned t=disk_ms();
+		while ((l->ready<end)&&(!l->done))
+			pthread_cond_wait(&disk_loader_cond,&disk_loader_lock);
+		l->wait_ms+=disk_ms()-t;
+	}
+	done=l->done;
+	pthread_mutex_unlock(&disk_loader_lock);
+	if (done)
+		disk_loader_reap(i);
+}
+
+static void disk_loader_stop(int i)
+{
+	struct disk_loader *l=&disk_loader[i];
+
+	if (!l->active)
+		return;
+	l->cancel=1;
+	pthread_join(l->thread,NULL);
+	l->active=0;
+	disk_loader_free_patch(l);
+}
+
+/* Starts decoding a gzipped image into slot i, returns its size or 0 if
+   it isn't one (or can't be done in the background).  The first cylinder
+   is decoded right away so that broken files still fail here.  */
+static unsigned disk_loader_start(int i, const char *name)
+{
+	struct disk_loader *l=&disk_loader[i];
+	unsigned char trailer[4];
+	unsigned size;
+	int readed;
+	FILE *raw=fopen(name,"rb");
+
+	if (!raw)
+		return 0;
+	if ((fread(trailer,1,2,raw)!=2)||(trailer[0]!=0x1f)||(trailer[1]!=0x8b)
+		||(fseek(raw,-4,SEEK_END)<0)||(fread(trailer,1,4,raw)!=4))
+	{
+		fclose(raw);
+		return 0;
+	}
+	fclose(raw);
+	size=trailer[0]|(trailer[1]<<8)|(trailer[2]<<16)|(trailer[3]<<24);
+	if (!size)
+		return 0;
+	if (size>MAX_DISK_LEN)
+		size=MAX_DISK_LEN;
+
+	l->f=gzopen(name,"rb");
+	if (!l->f)
+		return 0;
+	readed=gzread(l->f,uae4all_disk_memory[i],DISK_LOADER_CHUNK);
+	if (readed<=0)
+	{
+		gzclose(l->f);
+		return 0;
+	}
+	strncpy(l->name,name,sizeof(l->name)-1);
+	l->name[sizeof(l->name)-1]=0;
+	l->autosave=mainMenu_autosave&&maple_first_vmu();
+	l->hold=0;
+	l->sum=0;
+	l->cancel=0;
+	l->done=0;
+	l->pos=readed;
+	/* with autosave the thread publishes it, see disk_loader_thread */
+	l->ready=l->autosave?0:readed;
+	l->start_ms=disk_ms();
+	l->wait_ms=0;
+	if (pthread_create(&l->thread,NULL,disk_loader_thread,(void *)(long)i))
+	{
+		/* No thread, finish it here */
+		readed=gzread(l->f,((unsigned char *)uae4all_disk_memory[i])+readed,MAX_DISK_LEN-readed);
+		gzclose(l->f);
+		return l->pos+(readed>0?readed:0);
+	}
+	l->active=1;
+	return (size>(unsigned)l->pos)?size:l->pos;
+}
+
+/*
+ * The untouched image a flush compares against is made at the first
+ * write to a drive.  A plain image is only mapped again, but a gzipped one
+ * would have to be decoded in the middle of that write, so it is decoded
+ * on a thread of its own instead, with its checksum, and flushes wait
+ * until it is done.
+ */
+static struct disk_orig_loader {
+	pthread_t thread;
+	char name[256];
+	int active;		/* thread started and not joined yet */
+	volatile int cancel;
+	int done;
+	unsigned sum;		/* checksum of the original */
+} disk_orig_loader[4];
+
+static void *disk_orig_thread(void *arg)
+{
+	int i=(int)(long)arg;
+	struct disk_orig_loader *o=&disk_orig_loader[i];
+	unsigned char *dst=(unsigned char *)uae4all_disk_orig[i];
+	unsigned pos=0;
+	gzFile f=gzopen(o->name,"rb");
+
+	if (f)
+	{
+		while ((!o->cancel)&&(pos<MAX_DISK_LEN))
+		{
+			unsigned n=MAX_DISK_LEN-pos;
+			int readed;
+			if (n>DISK_LOADER_CHUNK)
+				n=DISK_LOADER_CHUNK;
+			readed=gzread(f,dst+pos,n);
+			if (readed<=0)
+				break;
+			pos+=readed;
+		}
+		gzclose(f);
+	}
+	if (!o->cancel)
+		o->sum=savedisk_get_checksum(dst,MAX_DISK_LEN);
+
+	pthread_mutex_lock(&disk_loader_lock);
+	o->done=1;
+	pthread_cond_broadcast(&disk_loader_cond);
+	pthread_mutex_unlock(&disk_loader_lock);
+	return NULL;
+}
+
+/* Gets the original of slot i going, in the background unless it can be
+   mapped.  uae4all_disk_orig is left NULL if there is no memory for it.  */
+static void disk_orig_start(int i)
+{
+	struct disk_orig_loader *o=&disk_orig_loader[i];
+
+	if ((uae4all_disk_orig[i])||(o->active))
+		return;
+	uae4all_disk_orig[i]=disk_region_new();
+	if ((!uae4all_disk_orig[i])||(disk_region_map(uae4all_disk_orig[i],uae4all_disk_name[i])))
+		return;
+	strcpy(o->name,uae4all_disk_name[i]);
+	o->cancel=0;
+	o->done=0;
+	if (pthread_create(&o->thread,NULL,disk_orig_thread,(void *)(long)i))
+	{
+		try_to_read_disk(uae4all_disk_orig[i],uae4all_disk_name[i]);
+		return;
+	}
+	o->active=1;
+}
+
+/* Returns 1 while the original of slot i is still being decoded, or with
+   wait set, waits for it */
+static int disk_orig_busy(int i, int wait)
+{
+	struct disk_orig_loader *o=&disk_orig_loader[i];
+	int done;
+
+	if (!o->active)
+		return 0;
+	pthread_mutex_lock(&disk_loader_lock);
+	while ((wait)&&(!o->done))
+		pthread_cond_wait(&disk_loader_cond,&disk_loader_lock);
+	done=o->done;
+	pthread_mutex_unlock(&disk_loader_lock);
+	if (!done)
+		return 1;
+	pthread_join(o->thread,NULL);
+	o->active=0;
+	if (!uae4all_disk_crc_valid[i])
+	{
+		uae4all_disk_crc[i]=o->sum;
+		uae4all_disk_crc_valid[i]=1;
+	}
+	return 0;
+}
+
+static void disk_orig_stop(int i)
+{
+	struct disk_orig_loader *o=&disk_orig_loader[i];
+
+	if (!o->active)
+		return;
+	o->cancel=1;
+	pthread_join(o->thread,NULL);
+	o->active=0;
+}
+
+/*
+ * Multi-disk sets.  When DF0 gets an image, the other disks of the same
+ * set in its directory are decoded ahead of time into a small LRU cache,
+ * so that swapping to them later doesn't have to wait for zlib.  Plain
+ * images don't need decoding, for them the file is only read through
+ * once to get it into the page cache.
+ *
+ * Disks belong to the same set if their names only differ in the number
+ * after "disk" ("Game (Disk 1 of 3).adf").  Failing that, names that only
+ * differ in their last number count if the volume names in the root
+ * blocks agree as well.  Looking for them means reading the directory and
+ * root blocks, so zfile_prefetch_set only hands the name to the prefetch
+ * thread and that does the search.
+ */
+#define ZFILE_CACHE_ENTRIES 3
+#define ZFILE_SET_MAX 8
+
+enum { CACHE_FREE, CACHE_QUEUED, CACHE_LOADING, CACHE_READY };
+
+static struct zfile_cache {
+	char name[256];
+	off_t size;
+	time_t mtime;
+	void *mem;		/* NULL for plain images */
+	unsigned len;
+	int state;
+	unsigned lastuse;
+} zfile_cache[ZFILE_CACHE_ENTRIES];
+
+static unsigned zfile_cache_clock;
+static char zfile_prefetch_name[256];	/* set to search for, if not empty */
+static int zfile_prefetch_running=0, zfile_prefetch_quit=0;
+static pthread_t zfile_prefetch_thread;
+static pthread_mutex_t zfile_cache_lock=PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t zfile_cache_cond=PTHREAD_COND_INITIALIZER;
+
+static int is_gzip(const char *name)
+{
+	unsigned char magic[2];
+	int ret=0;
+	FILE *f=fopen(name,"rb");
+	if (f)
+	{
+		ret=(fread(magic,1,2,f)==2)&&(magic[0]==0x1f)&&(magic[1]==0x8b);
+		fclose(f);
+	}
+	return ret;
+}
+
+static void zfile_prefetch_scan(const char *name);
+
+static void *zfile_prefetch_main(void *arg)
+{
+	pthread_mutex_lock(&zfile_cache_lock);
+	for(;;)
+	{
+		struct zfile_cache *e=NULL;
+		int i;
+		if (zfile_prefetch_quit)
+			break;
+		if (zfile_prefetch_name[0])
+		{
+			char name[sizeof(zfile_prefetch_name)];
+			strcpy(name,zfile_prefetch_name);
+			zfile_prefetch_name[0]=0;
+			pthread_mutex_unlock(&zfile_cache_lock);
+			zfile_prefetch_scan(name);
+			pthread_mutex_lock(&zfile_cache_lock);
+			continue;
+		}
+		for(i=0;i<ZFILE_CACHE_ENTRIES;i++)
+			if (zfile_cache[i].state==CACHE_QUEUED)
+				e=&zfile_cache[i];
+		if (!e)
+		{
+			pthread_cond_wait(&zfile_cache_cond,&zfile_cache_lock);
+			continue;
+		}
+		e->state=CACHE_LOADING;
+		pthread_mutex_unlock(&zfile_cache_lock);
+
+		if (is_gzip(e->name))
+		{
+			e->mem=disk_region_new();
+			e->len=e->mem?try_to_read_disk(e->mem,e->name):0;
+			if (!e->len)
+				disk_region_free(&e->mem);
+		}
+		else
+		{
+			/* Just pull it into the page cache */
+			char buf[4096];
+			FILE *f=fopen(e->name,"rb");
+			if (f)
+			{
+				while ((!zfile_prefetch_quit)&&(fread(buf,1,sizeof(buf),f)==sizeof(buf)));
+				fclose(f);
+			}
+		}
+
+		pthread_mutex_lock(&zfile_cache_lock);
+		e->state=CACHE_READY;
+		pthread_cond_broadcast(&zfile_cache_cond);
+	}
+	pthread_mutex_unlock(&zfile_cache_lock);
+	return NULL;
+}
+
+static void zfile_prefetch_stop(void)
+{
+	int i;
+
+	if (zfile_prefetch_running)
+	{
+		pthread_mutex_lock(&zfile_cache_lock);
+		zfile_prefetch_quit=1;
+		pthread_cond_broadcast(&zfile_cache_cond);
+		pthread_mutex_unlock(&zfile_cache_lock);
+		pthread_join(zfile_prefetch_thread,NULL);
+		zfile_prefetch_running=0;
+		zfile_prefetch_quit=0;
+	}
+	zfile_prefetch_name[0]=0;
+	for(i=0;i<ZFILE_CACHE_ENTRIES;i++)
+	{
+		disk_region_free(&zfile_cache[i].mem);
+		zfile_cache[i].state=CACHE_FREE;
+	}
+}
+
+/* Copies a prefetched image into dst, returns its length or 0 */
+static unsigned zfile_cache_get(void *dst, const char *name)
+{
+	struct stat st;
+	unsigned len=0;
+	int i;
+
+	if (stat(name,&st)<0)
+		return 0;
+	pthread_mutex_lock(&zfile_cache_lock);
+	for(i=0;i<ZFILE_CACHE_ENTRIES;i++)
+	{
+		struct zfile_cache *e=&zfile_cache[i];
+		if ((e->state==CACHE_READY)&&(e->mem)&&(!strcmp(e->name,name))
+			&&(e->size==st.st_size)&&(e->mtime==st.st_mtime))
+		{
+			memcpy(dst,e->mem,e->len);
+			len=e->len;
+			e->lastuse=++zfile_cache_clock;
+			break;
+		}
+	}
+	pthread_mutex_unlock(&zfile_cache_lock);
+	return len;
+}
+
+/* Queues name, st being what stat said about it, unless it is cached
+   already.  Called with the lock held. */
+static void zfile_cache_queue(const char *name, const struct stat *st, unsigned stamp)
+{
+	struct zfile_cache *e=NULL;
+	int i;
+
+	for(i=0;i<ZFILE_CACHE_ENTRIES;i++)
+		if ((zfile_cache[i].state!=CACHE_FREE)&&(!strcmp(zfile_cache[i].name,name))
+			&&(zfile_cache[i].size==st->st_size)&&(zfile_cache[i].mtime==st->st_mtime))
+		{
+			zfile_cache[i].lastuse=stamp;
+			return;
+		}
+	/* A free entry, or else the least recently used finished one that
+	   isn't part of this set */
+	for(i=0;i<ZFILE_CACHE_ENTRIES;i++)
+	{
+		struct zfile_cache *c=&zfile_cache[i];
+		if (c->state==CACHE_FREE)
+		{
+			e=c;
+			break;
+		}
+		if ((c->state==CACHE_READY)&&(c->lastuse!=stamp)&&((!e)||(c->lastuse<e->lastuse)))
+			e=c;
+	}
+	if (!e)
+		return;
+	disk_region_free(&e->mem);
+	strncpy(e->name,name,sizeof(e->name)-1);
+	e->name[sizeof(e->name)-1]=0;
+	e->size=st->st_size;
+	e->mtime=st->st_mtime;
+	e->len=0;
+	e->lastuse=stamp;
+	e->state=CACHE_QUEUED;
+}
+
+/* Finds the number that tells disks of a set apart: the one after "disk"
+   or "disc", else the last one.  Returns its position in name or -1, and
+   the length of the digits in *len.  */
+static int disk_set_number(const char *name, int *len, int *after_disk)
+{
+	int i, n=strlen(name), last=-1, lastlen=0;
+
+	for(i=0;i<n;i++)
+	{
+		if ((i+4<=n)&&((!strncasecmp(name+i,"disk",4))||(!strncasecmp(name+i,"disc",4))))
+		{
+			int j=i+4;
+			while ((j<n)&&((name[j]==' ')||(name[j]=='_')||(name[j]=='-')))
+				j++;
+			if ((j<n)&&(isdigit((unsigned char)name[j])))
+			{
+				*len=0;
+				while ((j+*len<n)&&(isdigit((unsigned char)name[j+*len])))
+					(*len)++;
+				*after_disk=1;
+				return j;
+			}
+		}
+		if (isdigit((unsigned char)name[i]))
+		{
+			last=i;
+			lastlen=0;
+			while ((i<n)&&(isdigit((unsigned char)name[i])))
+			{
+				i++;
+				lastlen++;
+			}
+			i--;
+		}
+	}
+	*len=lastlen;
+	*after_disk=0;
+	return last;
+}
+
+/* Volume name from the root block of a plain image, letters only */
+static int disk_volume_stem(const char *name, char *stem, int size)
+{
+	unsigned char blk[512];
+	int ok=0, n, i, j=0;
+	FILE *f=fopen(name,"rb");
+
+	if (!f)
+		return 0;
+	if ((!fseek(f,880*512,SEEK_SET))&&(fread(blk,1,512,f)==512)
+		&&(blk[3]==2)&&(blk[511]==1))
+	{
+		n=blk[432];
+		if (n>30)
+			n=30;
+		for(i=0;(i<n)&&(j<size-1);i++)
+			if (isalpha(blk[433+i]))
+				stem[j++]=tolower(blk[433+i]);
+		ok=(j>0);
+	}
+	stem[j]=0;
+	fclose(f);
+	return ok;
+}
+
+/* Prefetch thread: queues the other disks of name's set */
+static void zfile_prefetch_scan(const char *name)
+{
+	char dir[256], stem[32], otherstem[32];
+	const char *base=strrchr(name,'/');
+	int pos, len, after_disk, found=0, have_stem=-1;
+	unsigned stamp;
+	DIR *d;
+	struct dirent *de;
+
+	if (!base)
+		return;
+	base++;
+	pos=disk_set_number(base,&len,&after_disk);
+	if (pos<0)
+		return;
+	if (base-name>=(int)sizeof(dir))
+		return;
+	memcpy(dir,name,base-name);
+	dir[base-name]=0;
+	d=opendir(dir);
+	if (!d)
+		return;
+
+	pthread_mutex_lock(&zfile_cache_lock);
+	stamp=++zfile_cache_clock;
+	pthread_mutex_unlock(&zfile_cache_lock);
+	while (((de=readdir(d))!=NULL)&&(found<ZFILE_SET_MAX)&&(!zfile_prefetch_quit))
+	{
+		const char *other=de->d_name;
+		int opos, olen, oafter;
+		char full[512];
+		struct stat st;
+		if ((!strcmp(other,base))||(strlen(dir)+strlen(other)>=sizeof(full)))
+			continue;
+		opos=disk_set_number(other,&olen,&oafter);
+		/* Same name around a different number */
+		if ((opos!=pos)||(oafter!=after_disk)||(strcasecmp(other+opos+olen,base+pos+len))
+			||(strncasecmp(other,base,pos)))
+			continue;
+		sprintf(full,"%s%s",dir,other);
+		if (!after_disk)
+		{
+			if (have_stem<0)
+				have_stem=disk_volume_stem(name,stem,sizeof(stem));
+			if ((!have_stem)||(!disk_volume_stem(full,otherstem,sizeof(otherstem)))
+				||(strcmp(stem,otherstem)))
+				continue;
 		}
+		if (stat(full,&st)<0)
+			continue;
+		pthread_mutex_lock(&zfile_cache_lock);
+		zfile_cache_queue(full,&st,stamp);
+		pthread_mutex_unlock(&zfile_cache_lock);
+		found++;
+	}
+	closedir(d);
+	if (found)
+		__android_log_print(ANDROID_LOG_INFO, "UAE", "disk set: prefetching %d more disks of %s", found, base);
+}
+
+void zfile_prefetch_set(const char *name)
+{
+	if (strlen(name)>=sizeof(zfile_prefetch_name))
+		return;
+	pthread_mutex_lock(&zfile_cache_lock);
+	strcpy(zfile_prefetch_name,name);
+	if (!zfile_prefetch_running)
+		zfile_prefetch_running=!pthread_create(&zfile_prefetch_thread,NULL,zfile_prefetch_main,NULL);
+	pthread_cond_broadcast(&zfile_cache_cond);
+	pthread_mutex_unlock(&zfile_cache_lock);
+}
+#else
+#define disk_wait(i,end)
+#define disk_loader_stop(i)
+#define disk_orig_busy(i,wait) 0
+#define disk_orig_stop(i)
+
+void zfile_prefetch_set(const char *name)
+{
+}
+#endif
+
+#ifdef DISK_WRITER
+static void disk_writer_stop(void);
+#endif
+
+void zfile_exit (void)
+{
+	int i;
+#ifdef DISK_LOADER
+	zfile_prefetch_stop();
+#endif
+#ifdef DISK_WRITER
+	disk_writer_stop();
+#endif
+	for(i=0;i<NUM_DRIVES;i++)
+	{
+		disk_loader_stop(i);
+		disk_orig_stop(i);
+		disk_region_free(&uae4all_disk_memory[i]);
+		disk_region_free(&uae4all_disk_orig[i]);
+		uae4all_disk_used[i]=0;
+	}
 }
 
 int zfile_close (FILE *f)
 {
 	int i;
 	for(i=0;i<NUM_DRIVES;i++)
-		if (f==uae4all_disk_memory[i])
+		if (f==DISK_HANDLE(i))
 		{
 			uae4all_disk_used[i]=0;
 			break;
@@ -192,131 +1137,360 @@ int zfile_close (FILE *f)
 #define mi_z_close(F) fclose(F)
 #endif
 
-static int  try_to_read_disk(int i,const char *name)
+/* Fills the zeroed MAX_DISK_LEN buffer dst with the image, returns its
+   length or 0.  */
+static unsigned try_to_read_disk(void *dst,const char *name)
 {
+#ifndef DREAMCAST
+    unsigned len=disk_region_map(dst,name);
+    if (len)
+	    return len;
+#endif
     mi_z_type f=mi_z_open(name,"rb");
     if (f)
     {
-	    int readed=mi_z_read(f,uae4all_disk_memory[i],MAX_DISK_LEN);
+	    int readed=mi_z_read(f,dst,MAX_DISK_LEN);
 	    mi_z_close(f);
 	    if (readed>0)
- 	    {
-	    	uae4all_disk_len[i]=readed;
 	    	return readed;
-	    }
     }
 #ifdef USE_ZFILE
     FILE * f2=fopen(name,"rb");
     if (f2)
     {
+	    unsigned len2;
 	    fseek(f2,0,SEEK_END);
-	    uae4all_disk_len[i]=ftell(f2);
+	    len2=ftell(f2);
 	    fseek(f2,0,SEEK_SET);
-	    if (uae4all_disk_len[i]>MAX_DISK_LEN)
-		uae4all_disk_len[i]=MAX_DISK_LEN;
-	    uae4all_disk_len[i]=fread(uae4all_disk_memory[i],1,uae4all_disk_len[i],f2);
+	    if (len2>MAX_DISK_LEN)
+		len2=MAX_DISK_LEN;
+	    len2=fread(dst,1,len2,f2);
 	    fclose(f2);
-	    return (uae4all_disk_len[i]);
+	    return len2;
     }
 #endif
     return 0;
 }
 
+static void *get_extra_buffer(void)
+{
+	if (uae4all_extra_buffer==NULL)
+#ifndef DREAMCAST
+		uae4all_extra_buffer=malloc(MAX_DISK_LEN);
+#else
+		uae4all_extra_buffer=(void *)(DC_VRAM+(MAX_DISK_LEN*(NUM_DRIVES+1)));
+#endif
+	return uae4all_extra_buffer;
+}
+
+/* The untouched image, to find out what the emulator changed.  Only made
+   once a drive is written to, and read again from the image file since a
+   saved patch may already have been applied to the live copy.  */
+static void *get_disk_orig(unsigned num)
+{
+	disk_orig_busy(num,1);
+	if (!uae4all_disk_orig[num])
+	{
+#ifndef DREAMCAST
+		uae4all_disk_orig[num]=disk_region_new();
+		if (!uae4all_disk_orig[num])
+			return NULL;
+#else
+		uae4all_disk_orig[num]=(void *)(DC_VRAM+(MAX_DISK_LEN*(num+4)));
+		bzero(uae4all_disk_orig[num],MAX_DISK_LEN);
+#endif
+		try_to_read_disk(uae4all_disk_orig[num],uae4all_disk_name[num]);
+	}
+	if (!uae4all_disk_crc_valid[num])
+	{
+		uae4all_disk_crc[num]=savedisk_get_checksum(uae4all_disk_orig[num],MAX_DISK_LEN);
+		uae4all_disk_crc_valid[num]=1;
+	}
+	return uae4all_disk_orig[num];
+}
+
 static char __uae4all_write_namefile[32];
 
-static char *get_namefile(unsigned num)
+/* buf is passed in by the disk loader, which runs beside the emulation */
+static char *get_namefile_crc(char *buf, unsigned crc)
 {
-	unsigned crc=uae4all_disk_crc[num];
 #ifdef GP2X
 	if (!launchDir)
 	{
 		getcwd(launchDir, 250);
 	}
-	sprintf((char *)&__uae4all_write_namefile[0],"%s/saves/%.8X.ads",launchDir, crc);
+	sprintf(buf,"%s/saves/%.8X.ads",launchDir, crc);
 #else
-	sprintf((char *)&__uae4all_write_namefile[0],"/sdcard/.uae/%.8X.ads",crc);
+	sprintf(buf,"/sdcard/.uae/%.8X.ads",crc);
 #endif
-	return (char *)&__uae4all_write_namefile[0];
+	return buf;
 }
 
-static void uae4all_disk_real_write(int num)
+static char *get_namefile(unsigned num)
 {
-	unsigned new_crc=savedisk_get_checksum(uae4all_disk_memory[num],MAX_DISK_LEN);
-	if (new_crc!=uae4all_disk_actual_crc[num])
+	return get_namefile_crc(__uae4all_write_namefile,uae4all_disk_crc[num]);
+}
+
+/* Compresses a patch and stores it as namefile.  Off the Dreamcast it goes
+   to a temporary file first, renamed over the old patch once it is on disk,
+   so an interrupted write never leaves half a patch behind.  */
+static void disk_save_patch(char *namefile, char *title, void *patch, unsigned len, int level, void *bc)
+{
+	unsigned long sizecompressed=MAX_COMP_SIZE;
+	int retc=compress2((Bytef *)bc,&sizecompressed,(const Bytef *)patch,len,level);
+	if (retc>=0)
 	{
-		void *buff=uae4all_disk_memory[num];
-		void *buff_patch=uae4all_extra_buffer;
-		memset(buff_patch,0,MAX_DISK_LEN);
-		unsigned changed=savedisk_get_changes(buff,MAX_DISK_LEN,buff_patch,uae4all_disk_orig[num]);
-		if ((changed)&&(changed<MAX_DISK_LEN))
+		unsigned usado=0;
 		{
-			char *namefile=get_namefile(num);
-			void *bc=calloc(1,MAX_COMP_SIZE);
-			unsigned long sizecompressed=MAX_COMP_SIZE;
-			int retc=compress2((Bytef *)bc,&sizecompressed,(const Bytef *)uae4all_extra_buffer,changed,Z_BEST_COMPRESSION);
-			if (retc>=0)
+			FILE *f=fopen(namefile,"rb");
+			if (f)
 			{
-				unsigned usado=0;
-				{
-					FILE *f=fopen(namefile,"rb");
-					if (f)
-					{
-						fseek(f,0,SEEK_END);
-						usado=ftell(f);
-						fclose(f);
-						usado/=512;
-					}
-				}
-				if ( ((getFreeBlocks()+usado)*512) >=(sizecompressed+VMUFILE_PAD))
-				{
-					eliminate_file(namefile);
-					FILE *f=fopen(namefile,"wb");
-					if (f)
-					{
-						rebuild_paquete(prefs_df[num], sizecompressed, (unsigned char*) bc, f);
-						fwrite((void *)&sizecompressed,1,4,f);
-						fwrite(bc,1,sizecompressed,f);
-						fclose(f);
-					}
-				}
+				fseek(f,0,SEEK_END);
+				usado=ftell(f);
+				fclose(f);
+				usado/=512;
 			}
-			free(bc);
-			uae4all_disk_actual_crc[num]=new_crc;
+		}
+		if ( ((getFreeBlocks()+usado)*512) >=(sizecompressed+VMUFILE_PAD))
+		{
+#ifdef DISK_WRITER
+			char tmpname[336];
+			int ok;
+			sprintf(tmpname,"%s.tmp",namefile);
+			FILE *f=fopen(tmpname,"wb");
+			if (f)
+			{
+				ok=(fwrite((void *)&sizecompressed,1,4,f)==4);
+				ok=ok&&(fwrite(bc,1,sizecompressed,f)==sizecompressed);
+				ok=(fflush(f)==0)&&ok;
+				ok=(fsync(fileno(f))==0)&&ok;
+				fclose(f);
+				if (ok)
+					rename(tmpname,namefile);
+				else
+					unlink(tmpname);
+			}
+#else
+			eliminate_file(namefile);
+			FILE *f=fopen(namefile,"wb");
+			if (f)
+			{
+				rebuild_paquete(title, sizecompressed, (unsigned char*) bc, f);
+				fwrite((void *)&sizecompressed,1,4,f);
+				fwrite(bc,1,sizecompressed,f);
+				fclose(f);
+			}
+#endif
+		}
+	}
 #ifdef GP2X
-			sync();
+	sync();
 #endif
+}
+
+#ifdef DISK_WRITER
+/*
+ * Patches are compressed and written on a thread of their own, so a game
+ * saving to disk doesn't stall the emulation.  Each drive has a patch
+ * waiting to go and the writer has the one it is busy with; the two
+ * buffers swap when the writer picks a patch up.  A newer patch for a
+ * drive simply replaces one that hasn't been picked up yet.
+ */
+struct disk_write {
+	char name[320];
+	void *data;
+	unsigned len, size;
+	int level;
+	int remove;		/* drop the patch file instead */
+	int queued;
+};
+static struct disk_write disk_write_next[4], disk_write_busy;
+static int disk_writer_started=0, disk_writer_running=0, disk_writer_quit=0;
+static pthread_t disk_writer_thread;
+static pthread_mutex_t disk_writer_lock=PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t disk_writer_cond=PTHREAD_COND_INITIALIZER;
+
+static void *disk_writer_loop(void *arg)
+{
+	void *bc=malloc(MAX_COMP_SIZE);
+
+	pthread_mutex_lock(&disk_writer_lock);
+	for(;;)
+	{
+		struct disk_write t;
+		int i;
+		for(i=0;i<NUM_DRIVES;i++)
+			if (disk_write_next[i].queued)
+				break;
+		if (i>=NUM_DRIVES)
+		{
+			if (disk_writer_quit)
+				break;
+			pthread_cond_wait(&disk_writer_cond,&disk_writer_lock);
+			continue;
 		}
+		t=disk_write_busy;
+		disk_write_busy=disk_write_next[i];
+		disk_write_next[i]=t;
+		disk_write_next[i].queued=0;
+		disk_writer_running=1;
+		pthread_mutex_unlock(&disk_writer_lock);
+
+		if (disk_write_busy.remove)
+			eliminate_file(disk_write_busy.name);
+		else if (bc)
+			disk_save_patch(disk_write_busy.name,disk_write_busy.name,disk_write_busy.data,disk_write_busy.len,disk_write_busy.level,bc);
+
+		pthread_mutex_lock(&disk_writer_lock);
+		disk_writer_running=0;
+		pthread_cond_broadcast(&disk_writer_cond);
 	}
+	pthread_mutex_unlock(&disk_writer_lock);
+	free(bc);
+	return NULL;
 }
 
+/* Hands a patch, or its removal when patch is NULL, to the writer */
+static int disk_writer_queue(int num, char *namefile, void *patch, unsigned len)
+{
+	struct disk_write *j=&disk_write_next[num];
+	int ret=1;
 
+	pthread_mutex_lock(&disk_writer_lock);
+	if ((patch)&&(len>j->size))
+	{
+		void *p=realloc(j->data,len);
+		if (p)
+		{
+			j->data=p;
+			j->size=len;
+		}
+	}
+	if ((patch)&&(len>j->size))
+		ret=0;
+	else if ((!disk_writer_started)&&(pthread_create(&disk_writer_thread,NULL,disk_writer_loop,NULL)))
+		ret=0;
+	else
+	{
+		disk_writer_started=1;
+		strncpy(j->name,namefile,sizeof(j->name)-1);
+		j->name[sizeof(j->name)-1]=0;
+		if (patch)
+			memcpy(j->data,patch,len);
+		j->len=len;
+		j->level=mainMenu_diskCompression;
+		j->remove=(patch==NULL);
+		j->queued=1;
+		pthread_cond_broadcast(&disk_writer_cond);
+	}
+	pthread_mutex_unlock(&disk_writer_lock);
+	return ret;
+}
 
-static void uae4all_initsave(unsigned num)
+/* uae4all_disk_writed is read by zfile_writes_pending from other threads,
+   so it changes under the writer's lock */
+static void disk_set_writed(int num, int writed)
 {
-#ifndef DREAMCAST
-	if (!uae4all_disk_orig[num])
-		uae4all_disk_orig[num]=malloc(MAX_DISK_LEN);
+	pthread_mutex_lock(&disk_writer_lock);
+	uae4all_disk_writed[num]=writed;
+	pthread_mutex_unlock(&disk_writer_lock);
+}
 #else
-	uae4all_disk_orig[num]=(void *)(DC_VRAM+(MAX_DISK_LEN*(num+4)));
+#define disk_set_writed(num,writed) (uae4all_disk_writed[num]=(writed))
+#endif
+
+static void uae4all_disk_real_write(int num)
+{
+	if (uae4all_disk_live_crc[num]==uae4all_disk_actual_crc[num])
+	{
+		/* Rewritten with what was there already */
+		memset(uae4all_disk_dirty[num],0,sizeof(uae4all_disk_dirty[num]));
+		return;
+	}
+	{
+		void *buff=uae4all_disk_memory[num];
+		void *buff_patch=get_extra_buffer();
+		void *orig=get_disk_orig(num);
+		unsigned changed=savedisk_get_changes_map(buff,orig,uae4all_disk_dirty[num],uae4all_disk_changed[num],SAVEDISK_SLOTS,buff_patch,MAX_DISK_LEN);
+		int ok=0;
+		if (!changed)
+		{
+			/* Back to the original image, no patch needed */
+#ifdef DISK_WRITER
+			ok=disk_writer_queue(num,get_namefile(num),NULL,0);
+#else
+			eliminate_file(get_namefile(num));
+			ok=1;
+#endif
+		}
+		else if (changed<=MAX_DISK_LEN)
+		{
+#ifdef DISK_WRITER
+			ok=disk_writer_queue(num,get_namefile(num),buff_patch,changed);
+#else
+			void *bc=calloc(1,MAX_COMP_SIZE);
+			disk_save_patch(get_namefile(num),prefs_df[num],buff_patch,changed,mainMenu_diskCompression,bc);
+			free(bc);
+			ok=1;
+#endif
+		}
+		if (ok)
+			uae4all_disk_actual_crc[num]=uae4all_disk_live_crc[num];
+	}
+}
+
+#ifdef DISK_WRITER
+/* Writes out whatever is still dirty and waits for the writer to finish */
+static void disk_writer_stop(void)
+{
+	int i;
+	for(i=0;i<NUM_DRIVES;i++)
+		if ((uae4all_disk_used[i])&&(uae4all_disk_writed[i])&&(mainMenu_autosave))
+		{
+#ifdef DISK_LOADER
+			disk_wait(i,~0U);
+			disk_orig_busy(i,1);
+#endif
+			uae4all_disk_real_write(i);
+			disk_set_writed(i,0);
+		}
+	if (!disk_writer_started)
+		return;
+	pthread_mutex_lock(&disk_writer_lock);
+	disk_writer_quit=1;
+	pthread_cond_broadcast(&disk_writer_cond);
+	pthread_mutex_unlock(&disk_writer_lock);
+	pthread_join(disk_writer_thread,NULL);
+	disk_writer_started=0;
+	disk_writer_quit=0;
+}
 #endif
-	memcpy(uae4all_disk_orig[num],uae4all_disk_memory[num],MAX_DISK_LEN);
-	uae4all_disk_crc[num]=savedisk_get_checksum(uae4all_disk_orig[num],MAX_DISK_LEN);
+
+
+
+static void uae4all_initsave(unsigned num)
+{
+	uae4all_disk_crc_valid[num]=0;
 	if ((!mainMenu_autosave)||(!maple_first_vmu()))
 		return;
+	/* Still untouched, so this is the checksum of the original image */
+	uae4all_disk_crc[num]=savedisk_get_checksum(uae4all_disk_memory[num],MAX_DISK_LEN);
+	uae4all_disk_crc_valid[num]=1;
+	uae4all_disk_live_crc[num]=uae4all_disk_crc[num];
 	FILE *f=fopen(get_namefile(num),"rb");
 	if (f)
 	{
 		void *bc=calloc(1,MAX_COMP_SIZE);
-		unsigned long n;
+		unsigned long n=0;
 		set_vmu_pad(f);
 		fread((void *)&n,1,4,f);
 		if (fread(bc,1,n,f)>=n)
 		{
 			unsigned long sizeuncompressed=MAX_DISK_LEN;
-			int retc=uncompress((Bytef *)uae4all_extra_buffer,&sizeuncompressed,(const Bytef *)bc,n);
+			int retc=uncompress((Bytef *)get_extra_buffer(),&sizeuncompressed,(const Bytef *)bc,n);
 			if (retc>=0)
 			{
-				savedisk_apply_changes(uae4all_disk_memory[num],uae4all_extra_buffer,sizeuncompressed);
+				uae4all_disk_live_crc[num]=savedisk_apply_changes(uae4all_disk_memory[num],uae4all_extra_buffer,sizeuncompressed,uae4all_disk_changed[num],SAVEDISK_SLOTS,uae4all_disk_crc[num]);
 			}
 			else
 			{
@@ -329,7 +1503,7 @@ static void uae4all_initsave(unsigned num)
 		if (f)
 			fclose(f);
 	}
-	uae4all_disk_actual_crc[num]=savedisk_get_checksum(uae4all_disk_memory[num],MAX_DISK_LEN);
+	uae4all_disk_actual_crc[num]=uae4all_disk_live_crc[num];
 }
 
 
@@ -337,38 +1511,56 @@ static void uae4all_initsave(unsigned num)
 FILE *zfile_open (const char *name, const char *mode)
 {
     int i;
-    for(i=0;i<NUM_DRIVES;i++)
-    	if (uae4all_disk_memory[i]==NULL)
-    	{
-#ifndef DREAMCAST
-		uae4all_disk_memory[i]=malloc(MAX_DISK_LEN);
-#else
-		uae4all_disk_memory[i]=(void *)(DC_VRAM+(MAX_DISK_LEN*(i+1)));
-#endif
-		bzero(uae4all_disk_memory[i],MAX_DISK_LEN);
-		uae4all_disk_used[i]=0;
-        }
-    if (uae4all_extra_buffer==NULL)
-#ifndef DREAMCAST
-		uae4all_extra_buffer=malloc(MAX_DISK_LEN);
-#else
-		uae4all_extra_buffer=(void *)(DC_VRAM+(MAX_DISK_LEN*(NUM_DRIVES+1)));
-#endif
     for(i=0;i<NUM_DRIVES;i++)
 	if (!uae4all_disk_used[i])
 		break;
     if (i>=NUM_DRIVES)
 	return NULL;
 
-    if (try_to_read_disk(i,name))
-    {
+    /* Whatever the slot held before is gone now */
+    disk_loader_stop(i);
+    disk_orig_stop(i);
+    disk_region_free(&uae4all_disk_memory[i]);
+    disk_region_free(&uae4all_disk_orig[i]);
+#ifndef DREAMCAST
+    uae4all_disk_memory[i]=disk_region_new();
+    if (uae4all_disk_memory[i]==NULL)
+	return NULL;
+#else
+    uae4all_disk_memory[i]=(void *)(DC_VRAM+(MAX_DISK_LEN*(i+1)));
+    bzero(uae4all_disk_memory[i],MAX_DISK_LEN);
+#endif
 
+#ifndef DREAMCAST
+    uae4all_disk_insert_ms[i]=disk_ms();
+    uae4all_disk_first_read[i]=0;
+#endif
+#ifdef DISK_LOADER
+    uae4all_disk_len[i]=zfile_cache_get(uae4all_disk_memory[i],name);
+    if (!uae4all_disk_len[i])
+	    uae4all_disk_len[i]=disk_loader_start(i,name);
+    if (!uae4all_disk_len[i])
+#endif
+    uae4all_disk_len[i]=try_to_read_disk(uae4all_disk_memory[i],name);
+    if (uae4all_disk_len[i])
+    {
+	    strncpy(uae4all_disk_name[i],name,sizeof(uae4all_disk_name[i])-1);
+	    uae4all_disk_name[i][sizeof(uae4all_disk_name[i])-1]=0;
 	    uae4all_disk_pos[i]=0;
-	    uae4all_disk_writed[i]=0;
+	    disk_set_writed(i,0);
 	    uae4all_disk_used[i]=1;
+	    memset(uae4all_disk_dirty[i],0,sizeof(uae4all_disk_dirty[i]));
+	    memset(uae4all_disk_changed[i],0,sizeof(uae4all_disk_changed[i]));
+	    uae4all_disk_live_crc[i]=uae4all_disk_actual_crc[i]=0;
+#ifdef DISK_LOADER
+	    if (disk_loader[i].active&&disk_loader[i].autosave)
+		    uae4all_disk_crc_valid[i]=0;	/* done by disk_loader_reap */
+	    else
+#endif
 	    uae4all_initsave(i);
-	    return (FILE *)uae4all_disk_memory[i];
+	    return DISK_HANDLE(i);
     }
+    disk_region_free(&uae4all_disk_memory[i]);
     return NULL;
 }
 
@@ -377,12 +1569,21 @@ size_t uae4all_fread( void *ptr, size_t tam, size_t nmiemb, FILE *flujo)
 {
 	int i;
 	for(i=0;i<NUM_DRIVES;i++)
-		if (flujo==uae4all_disk_memory[i])
+		if (flujo==DISK_HANDLE(i))
 			break;
 	if (i>=NUM_DRIVES)
 		return 0;
+	disk_wait(i,uae4all_disk_pos[i]+tam*nmiemb);
 	if (uae4all_disk_pos[i]>=uae4all_disk_len[i])
 		return 0;
+#ifndef DREAMCAST
+	if ((!uae4all_disk_first_read[i])&&(tam*nmiemb>=512))
+	{
+		uae4all_disk_first_read[i]=1;
+		__android_log_print(ANDROID_LOG_INFO, "UAE", "disk slot %d: first track read %u ms after insert",
+			i,disk_ms()-uae4all_disk_insert_ms[i]);
+	}
+#endif
 	memcpy(ptr,(void *)(((unsigned)uae4all_disk_memory[i])+((unsigned)uae4all_disk_pos[i])),tam*nmiemb);
 	uae4all_disk_pos[i]+=tam*nmiemb;
 	return nmiemb;
@@ -392,15 +1593,37 @@ size_t uae4all_fwrite( void *ptr, size_t tam, size_t nmiemb, FILE *flujo)
 {
 	int i;
 	for(i=0;i<NUM_DRIVES;i++)
-		if (flujo==uae4all_disk_memory[i])
+		if (flujo==DISK_HANDLE(i))
 			break;
 	if (i>=NUM_DRIVES)
 		return 0;
+#ifdef DISK_LOADER
+	/* The saved patch is settled when loading ends, so it must not land
+	   on top of this write */
+	if (disk_loader[i].active&&disk_loader[i].autosave)
+		disk_wait(i,~0U);
+#endif
+	disk_wait(i,uae4all_disk_pos[i]+tam*nmiemb);
 	if (uae4all_disk_pos[i]>=uae4all_disk_len[i])
 		return 0;
+	if (!uae4all_disk_writed[i])
+#ifdef DISK_LOADER
+		disk_orig_start(i);
+#else
+		get_disk_orig(i);
+#endif
+	{
+		unsigned pos=uae4all_disk_pos[i], len=tam*nmiemb, s;
+		if (pos+len>MAX_DISK_LEN)
+			len=MAX_DISK_LEN-pos;
+		for(s=pos/SAVEDISK_SLOT;s<(pos+len+SAVEDISK_SLOT-1)/SAVEDISK_SLOT;s++)
+			SAVEDISK_MAP_SET(uae4all_disk_dirty[i],s);
+		uae4all_disk_live_crc[i]=savedisk_update_checksum(uae4all_disk_live_crc[i],uae4all_disk_memory[i],pos,ptr,len);
+	}
 	memcpy((void *)(((unsigned)uae4all_disk_memory[i])+((unsigned)uae4all_disk_pos[i])),ptr,tam*nmiemb);
 	uae4all_disk_pos[i]+=tam*nmiemb;
-	uae4all_disk_writed[i]=1;
+	if (!uae4all_disk_writed[i])
+		disk_set_writed(i,1);
 	return nmiemb;
 }
 
@@ -408,7 +1631,7 @@ int uae4all_fseek( FILE *flujo, long desplto, int origen)
 {
 	int i;
 	for(i=0;i<NUM_DRIVES;i++)
-		if (flujo==uae4all_disk_memory[i])
+		if (flujo==DISK_HANDLE(i))
 			break;
 	if (i>=NUM_DRIVES)
 		return -1;
@@ -433,7 +1656,7 @@ long uae4all_ftell( FILE *flujo)
 {
 	int i;
 	for(i=0;i<NUM_DRIVES;i++)
-		if (flujo==uae4all_disk_memory[i])
+		if (flujo==DISK_HANDLE(i))
 			break;
 	if (i>=NUM_DRIVES)
 		return 0;
@@ -519,14 +1742,19 @@ int uae4all_rom_fseek( FILE *flujo, long desplto, int origen)
 
 void uae4all_flush_disk(int n)
 {
+#ifdef DISK_LOADER
+	disk_wait(n,0);
+	if ((disk_loader[n].active)||(disk_orig_busy(n,0)))
+		return;
+#endif
 	if ((uae4all_disk_writed[n])&&(mainMenu_autosave))
 	{
 		if (maple_first_vmu())
 		{
-			if (uae4all_disk_writed_now[n]>6)
+			if ((uae4all_disk_writed_now[n]>6)||(uae4all_disk_flush_now))
 			{
 				uae4all_disk_real_write(n);
-				uae4all_disk_writed[n]=0;
+				disk_set_writed(n,0);
 				uae4all_disk_writed_now[n]=0;
 			}
 			else
@@ -535,3 +1763,40 @@ void uae4all_flush_disk(int n)
 	}
 }
 
+/* Disks with changes that are not safely stored yet, counting the ones
+   still waiting for uae4all_flush_disk.  */
+int zfile_writes_pending(void)
+{
+	int i,n=0;
+#ifdef DISK_WRITER
+	/* A disk is queued before its uae4all_disk_writed is cleared, so under
+	   the lock it is always seen at least once until it is stored */
+	pthread_mutex_lock(&disk_writer_lock);
+#endif
+	for(i=0;i<NUM_DRIVES;i++)
+		if ((uae4all_disk_used[i])&&(uae4all_disk_writed[i])&&(mainMenu_autosave))
+			n++;
+#ifdef DISK_WRITER
+	for(i=0;i<NUM_DRIVES;i++)
+		if (disk_write_next[i].queued)
+			n++;
+	n+=disk_writer_running;
+	pthread_mutex_unlock(&disk_writer_lock);
+#endif
+	return n;
+}
+
+/* Called from outside the emulation thread, which has to keep running to
+   do the flushing.  Returns what is still pending after timeout_ms.  */
+int zfile_sync_writes(int timeout_ms)
+{
+	int n;
+	uae4all_disk_flush_now=1;
+	while (((n=zfile_writes_pending())>0)&&(timeout_ms>0))
+	{
+		usleep(10000);
+		timeout_ms-=10;
+	}
+	uae4all_disk_flush_now=0;
+	return n;
+}
@@ -147,6 +147,91 @@ JAVA_EXPORT_NAME(DemoActivity_nativeQuit) ( JNIEnv*  env, jobject  thiz) {
 	exit(0);
 }
 
+/* No savestates in this core */
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setAutoSave) ( JNIEnv*  env, jobject  thiz, jstring filename, jint restore) {
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setBootCache) ( JNIEnv*  env, jobject  thiz, jstring dir) {
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setStateStore) ( JNIEnv*  env, jobject  thiz, jstring dir) {
+}
+
+/* Disk patches are written synchronously by this core */
+extern "C" jint
+JAVA_EXPORT_NAME(DemoActivity_nativeDiskWritesPending) ( JNIEnv*  env, jobject  thiz) {
+	return 0;
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setDiskCompression) ( JNIEnv*  env, jobject  thiz, jint level) {
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setFloppyTurbo) ( JNIEnv*  env, jobject  thiz, jint turbo) {
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setAutoWarp) ( JNIEnv*  env, jobject  thiz, jint warp) {
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setFastForward) ( JNIEnv*  env, jobject  thiz, jint on) {
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setFastForwardCap) ( JNIEnv*  env, jobject  thiz, jint cap) {
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setJoystickLatch) ( JNIEnv*  env, jobject  thiz, jint line) {
+}
+
+extern "C" jint
+JAVA_EXPORT_NAME(DemoActivity_nativeFastForwardSpeed) ( JNIEnv*  env, jobject  thiz) {
+	return 0;
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setRewind) ( JNIEnv*  env, jobject  thiz, jint on) {
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setRewindMemory) ( JNIEnv*  env, jobject  thiz, jint megabytes) {
+}
+
+extern "C" jint
+JAVA_EXPORT_NAME(DemoActivity_nativeRewindCost) ( JNIEnv*  env, jobject  thiz) {
+	return 0;
+}
+
+extern "C" void
+JAVA_EXPORT_NAME(DemoActivity_setRunAhead) ( JNIEnv*  env, jobject  thiz, jint frames) {
+}
+
+extern "C" jint
+JAVA_EXPORT_NAME(DemoActivity_nativeRunAheadCost) ( JNIEnv*  env, jobject  thiz) {
+	return 0;
+}
+
+extern "C" jint
+JAVA_EXPORT_NAME(DemoActivity_nativeRunAheadLoad) ( JNIEnv*  env, jobject  thiz) {
+	return 0;
+}
+
+extern "C" jint
+JAVA_EXPORT_NAME(DemoActivity_nativeSnapshot) ( JNIEnv*  env, jobject  thiz, jobject buffer) {
+	return 0;
+}
+
+extern "C" jboolean
+JAVA_EXPORT_NAME(DemoActivity_nativeRestoreSnapshot) ( JNIEnv*  env, jobject  thiz, jobject buffer, jint len) {
+	return JNI_FALSE;
+}
+
 int mainMenu_showStatus;
 int mainMenu_ntsc;
 int right_mouse;
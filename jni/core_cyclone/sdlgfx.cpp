@@ -81,6 +81,10 @@ extern int soundVolume;
 
 #include "vkbd.h"
 
+#ifdef ANDROID
+extern "C" void SDL_ANDROID_InputFrame (void);
+#endif
+
 extern int drawfinished;
 
 int prefs_gfx_framerate, changed_gfx_framerate;
@@ -673,6 +677,10 @@ printf("%i\n",cuenta); fflush(stdout);
 		cuenta++;
 	}
 #else
+#ifdef ANDROID
+    /* input from the UI thread, see SDL_androidvideo.c */
+    SDL_ANDROID_InputFrame ();
+#endif
     /* Handle GUI events */
     gui_handle_events ();
 
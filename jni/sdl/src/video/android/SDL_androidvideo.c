@@ -55,10 +55,13 @@
 #include <android/log.h>
 #include <stdint.h>
 #include <math.h>
+#include <pthread.h>
 
 
 #define ANDROIDVID_DRIVER_NAME "android"
 
+static void input_shown(void);
+
 /* Initialization/Query functions */
 static int ANDROID_VideoInit(_THIS, SDL_PixelFormat *vformat);
 static SDL_Rect **ANDROID_ListModes(_THIS, SDL_PixelFormat *format, Uint32 flags);
@@ -463,6 +466,7 @@ if (memX)
 
 	if (android_render)
 		(*android_env)->CallVoidMethod(android_env, android_callback, android_render);
+	input_shown();
 	
 	//processAndroidTrackballKeyDelays( -1, 0 );
 }
@@ -539,8 +543,7 @@ JAVA_EXPORT_NAME(DemoRenderer_nativeDone) ( JNIEnv*  env, jobject  thiz )
 
 enum MOUSE_ACTION { MOUSE_DOWN = 0, MOUSE_UP=1, MOUSE_MOVE=2 };
 
-extern void
-JAVA_EXPORT_NAME(MainSurfaceView_nativeMouse) ( JNIEnv*  env, jobject  thiz, jint x, jint y, jint action, jint relative )
+static void ANDROID_Mouse( int x, int y, int action, int relative )
 {
 	//__android_log_print(ANDROID_LOG_INFO, "libSDL", "mouse event %i at (%03i, %03i)", action, x, y);
 	if( action == MOUSE_DOWN || action == MOUSE_UP )
@@ -641,42 +644,48 @@ static int processAndroidTrackballKeyDelays( int key, int action )
 	#endif
 }
 */
+/* Joystick events for SDL_sysjoystick.  Filled from the input ring below
+ * and read by SDL_JoystickUpdate, both on the emulation thread.  */
 #define SIZE 500
-int queue_for_joystick1 [SIZE];
-int *write_index = queue_for_joystick1, *tos = queue_for_joystick1, *read_index = queue_for_joystick1;
+struct joystick_queue {
+	int event[SIZE];
+	int read, write;
+};
+static struct joystick_queue joystick_queue[2];
+static unsigned joystick_queue_dropped = 0;
+
+static void push_joystick_queue(struct joystick_queue *q, int a) {
+	int next = (q->write + 1) % SIZE;
+	if (next == q->read) {
+		joystick_queue_dropped++;
+		return;
+	}
+	q->event[q->write] = a;
+	q->write = next;
+}
+static int pop_joystick_queue(struct joystick_queue *q) {
+	int a;
+	if (q->read == q->write)
+		return -1;
+	a = q->event[q->read];
+	q->read = (q->read + 1) % SIZE;
+	return a;
+}
 void push_circular_queue_for_joystick1(int a) {
-	write_index++;
-	if(write_index == (tos+SIZE)) // circular
-		write_index = tos;
-	*write_index = a;
+	push_joystick_queue(&joystick_queue[0], a);
 }
 int pop_circular_queue_for_joystick1() {
-	if (read_index == write_index)
-		return -1; 	read_index++;
-	if(read_index == (tos+SIZE)) // circular
-		read_index = tos;
-	return *read_index;
-}
-int queue_for_joystick2 [SIZE];
-int *write_index2 = queue_for_joystick2, *tos2 = queue_for_joystick2, *read_index2 = queue_for_joystick2;
+	return pop_joystick_queue(&joystick_queue[0]);
+}
 void push_circular_queue_for_joystick2(int a) {
-	write_index2++;
-	if(write_index2 == (tos2+SIZE)) // circular
-		write_index2 = tos2;
-	*write_index2 = a;
+	push_joystick_queue(&joystick_queue[1], a);
 }
 int pop_circular_queue_for_joystick2() {
-	if (read_index2 == write_index2)
-		return -1; 	read_index2++;
-	if(read_index2 == (tos2+SIZE)) // circular
-		read_index2 = tos2;
-	return *read_index2;
+	return pop_joystick_queue(&joystick_queue[1]);
 }
 
-void
-JAVA_EXPORT_NAME(MainSurfaceView_nativeKey) ( JNIEnv*  env, jobject  thiz, jint key, jint action, jint joystick, jint joystick_nr )
+static void ANDROID_Key( int key, int action, int joystick, int joystick_nr )
 {
-	//__android_log_print(ANDROID_LOG_INFO, "libSDL", "key event %i %s", key, action ? "down" : "up");
 	SDL_keysym keysym;
 	if (joystick && ((key >=7 && key < 15) || key == 44 || key == 46 || key == 31 || key == 32 || key == 34 ||key == 33 || key == 48 || key == 52 ||key == 50)) {
 		// joystick
@@ -707,6 +716,327 @@ JAVA_EXPORT_NAME(MainSurfaceView_nativeKey) ( JNIEnv*  env, jobject  thiz, jint
 		SDL_PrivateKeyboard( action ? SDL_PRESSED : SDL_RELEASED, TranslateKey(key, &keysym) );
 }
 
+/* Input ring.  The JNI calls below are made by the UI thread only and
+ * the ring is drained by the emulation thread only, once per emulated
+ * frame in SDL_ANDROID_InputFrame, just before the emulation polls SDL.
+ * So input_write has one writer, input_read has another and a barrier
+ * orders each event against its index.  A full ring drops events and
+ * counts them in input_dropped.
+ *
+ * Every event carries the monotonic time it came in.  The frame emulated
+ * after the drain is the first one the Amiga sees it in; when that frame
+ * is shown (ANDROID_FlipHWSurface) the time from input to display is
+ * added up, and logged every INPUT_REPORT events.  */
+#define INPUT_RING_SIZE 512	/* power of two */
+#define INPUT_REPORT 500
+
+enum { INPUT_KEY, INPUT_KEY_HELD, INPUT_MOUSE };
+
+struct input_event {
+	int type, a, b, c, d;
+	int64_t time;	/* us */
+};
+static struct input_event input_ring[INPUT_RING_SIZE];
+static volatile unsigned input_read = 0, input_write = 0;
+static volatile unsigned input_dropped = 0;
+
+/* Events waiting to be on screen: drained for the frame being emulated,
+   and drained earlier but not shown yet */
+struct input_latency {
+	int events;
+	int64_t sum, first;
+};
+static struct input_latency input_current, input_waiting;
+/* drained: events taken from the ring, events: those of them shown since */
+static int input_report_drained = 0, input_report_events = 0;
+static int64_t input_report_queued = 0, input_report_shown = 0, input_report_max = 0;
+static unsigned input_report_dropped = 0;
+
+static int64_t input_now(void)
+{
+	struct timespec ts;
+
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (int64_t)ts.tv_sec * 1000000 + ts.tv_nsec / 1000;
+}
+
+static void input_push(int type, int a, int b, int c, int d)
+{
+	unsigned w = input_write;
+	struct input_event *e;
+
+	if (w - input_read >= INPUT_RING_SIZE) {
+		input_dropped++;
+		return;
+	}
+	e = &input_ring[w % INPUT_RING_SIZE];
+	e->type = type;
+	e->a = a;
+	e->b = b;
+	e->c = c;
+	e->d = d;
+	e->time = input_now();
+	__sync_synchronize();
+	input_write = w + 1;
+}
+
+/* Late latching.  Besides going through the ring, the direction and fire
+ * keys are folded into one state word per joystick, published at once for
+ * the emulation to read whenever the Amiga reads its joystick registers
+ * (SDL_ANDROID_JoystickLatch).  Presses also go into joystick_pressed,
+ * which the emulation takes at vsync and keeps for a frame, so a tap
+ * that is over before the Amiga looks still gets seen.
+ *
+ * Each joystick keeps a state word per source: the keys from nativeKey
+ * are published by the UI thread as they come, the on-screen joystick's
+ * from the key queue by the emulation thread when they are due, so that
+ * they are still held for key_hold_frames.  */
+enum { JOY_UP = 1, JOY_DOWN = 2, JOY_LEFT = 4, JOY_RIGHT = 8, JOY_FIRE = 16 };
+
+static const struct { int key, bits; } joystick_keys[] = {
+	{ 46, JOY_UP }, { 31, JOY_DOWN }, { 32, JOY_LEFT }, { 34, JOY_RIGHT },
+	{ 33, JOY_UP | JOY_LEFT }, { 48, JOY_UP | JOY_RIGHT },
+	{ 50, JOY_DOWN | JOY_LEFT }, { 52, JOY_DOWN | JOY_RIGHT },
+	{ 44, JOY_FIRE },
+};
+#define JOYSTICK_KEYS (sizeof(joystick_keys) / sizeof(joystick_keys[0]))
+
+enum { JOYSTICK_UI, JOYSTICK_QUEUE, JOYSTICK_SOURCES };
+
+/* per source, owned by its thread: which of joystick_keys are down */
+static unsigned joystick_down[JOYSTICK_SOURCES][2];
+static volatile unsigned joystick_published[JOYSTICK_SOURCES][2];
+static volatile unsigned joystick_pressed[2];
+/* low 32 bits of the time, so that one store publishes it */
+static volatile unsigned joystick_changed[2];
+/* emulation thread: the presses kept for this frame */
+static unsigned joystick_carry[2];
+
+static void joystick_publish(int key, int action, int nr, int from)
+{
+	unsigned *down = &joystick_down[from][nr];
+	unsigned i, bits = 0, old = joystick_published[from][nr];
+
+	for (i = 0; i < JOYSTICK_KEYS; i++)
+		if (joystick_keys[i].key == key)
+			break;
+	if (i == JOYSTICK_KEYS)
+		return;
+	if (action)
+		*down |= 1 << i;
+	else
+		*down &= ~(1 << i);
+	for (i = 0; i < JOYSTICK_KEYS; i++)
+		if (*down & (1 << i))
+			bits |= joystick_keys[i].bits;
+	if (bits == old)
+		return;
+	joystick_changed[nr] = (unsigned)input_now();
+	__sync_synchronize();
+	joystick_published[from][nr] = bits;
+	if (bits & ~old)
+		__sync_fetch_and_or(&joystick_pressed[nr], bits & ~old);
+}
+
+/* Called by the emulation: the joystick as last published from either
+   source, in the read_joystick format.  At vsync the presses since the last
+   vsync are taken for the next frame.  */
+void SDL_ANDROID_JoystickLatch(int nr, int vsync, unsigned int *dir, int *button)
+{
+	unsigned bits;
+
+	if (vsync)
+		joystick_carry[nr] = __sync_lock_test_and_set(&joystick_pressed[nr], 0);
+	bits = joystick_published[JOYSTICK_UI][nr] | joystick_published[JOYSTICK_QUEUE][nr] | joystick_carry[nr];
+	*dir = !!(bits & JOY_DOWN) | !!(bits & JOY_RIGHT) << 1 | !!(bits & JOY_UP) << 8 | !!(bits & JOY_LEFT) << 9;
+	*button = !!(bits & JOY_FIRE);
+}
+
+/* The mouse likewise: touch moves set the position, trackball moves add
+   to it, packed x | y << 16 into one word.  Motion events still go
+   through the ring, for SDL to track the cursor.  */
+static int mouse_x, mouse_y;
+static volatile unsigned mouse_published;
+
+static void mouse_publish(int x, int y, int action, int relative)
+{
+	if (action != MOUSE_MOVE)
+		return;
+	if (relative) {
+		mouse_x += x;
+		mouse_y += y;
+	} else {
+		mouse_x = x;
+		mouse_y = y;
+	}
+	mouse_published = (mouse_x & 0xffff) | mouse_y << 16;
+}
+
+/* The mouse position the UI thread published last, as two 16 bit
+   counters that wrap */
+void SDL_ANDROID_MouseLatch(int *x, int *y)
+{
+	unsigned m = mouse_published;
+
+	*x = m & 0xffff;
+	*y = m >> 16;
+}
+
+/* Microseconds since the last change of joystick nr was published */
+int SDL_ANDROID_JoystickAge(int nr)
+{
+	return (int)((unsigned)input_now() - joystick_changed[nr]);
+}
+
+void
+JAVA_EXPORT_NAME(MainSurfaceView_nativeMouse) ( JNIEnv*  env, jobject  thiz, jint x, jint y, jint action, jint relative )
+{
+	mouse_publish(x, y, action, relative);
+	input_push(INPUT_MOUSE, x, y, action, relative);
+}
+
+void
+JAVA_EXPORT_NAME(MainSurfaceView_nativeKey) ( JNIEnv*  env, jobject  thiz, jint key, jint action, jint joystick, jint joystick_nr )
+{
+	//__android_log_print(ANDROID_LOG_INFO, "libSDL", "key event %i %s", key, action ? "down" : "up");
+	if (joystick)
+		joystick_publish(key, action, joystick_nr == 1 ? 0 : 1, JOYSTICK_UI);
+	input_push(INPUT_KEY, key, action, joystick, joystick_nr);
+}
+
+void
+JAVA_EXPORT_NAME(MainSurfaceView_nativeKeyQueued) ( JNIEnv*  env, jobject  thiz, jint key, jint action, jint joystick, jint joystick_nr )
+{
+	input_push(INPUT_KEY_HELD, key, action, joystick, joystick_nr);
+}
+
+/* Timed key queue for the on-screen keyboards.  They press and release
+ * within a few milliseconds, so their keys are held back by frames
+ * instead: a press is due at once, a release no sooner than
+ * key_hold_frames after its press, and nothing ahead of an event queued
+ * before it.  Filled from the input ring, so it belongs to the emulation
+ * thread alone, and a pause holds the keys back with the emulation.  */
+#define KEY_QUEUE_SIZE 256
+#define KEY_QUEUE_KEYS 512
+
+struct key_event {
+	int key, action, joystick, joystick_nr;
+	unsigned due;
+};
+static struct key_event key_queue[KEY_QUEUE_SIZE];
+static int key_queue_read = 0, key_queue_write = 0;
+static unsigned key_queue_frame = 0, key_queue_last = 0;
+static unsigned key_press_due[KEY_QUEUE_KEYS];
+static int key_hold_frames = 2;
+
+static void key_queue_add(int key, int action, int joystick, int joystick_nr)
+{
+	struct key_event *e;
+	unsigned due = key_queue_frame;
+	int next = (key_queue_write + 1) % KEY_QUEUE_SIZE;
+
+	if (next == key_queue_read) {
+		__android_log_print(ANDROID_LOG_INFO, "libSDL", "key queue full, key %i dropped", key);
+		return;
+	}
+	if ((int)(key_queue_last - due) > 0)
+		due = key_queue_last;
+	if (key >= 0 && key < KEY_QUEUE_KEYS) {
+		if (action)
+			key_press_due[key] = due;
+		else if ((int)(key_press_due[key] + key_hold_frames - due) > 0)
+			due = key_press_due[key] + key_hold_frames;
+	}
+	key_queue_last = due;
+	e = &key_queue[key_queue_write];
+	e->key = key;
+	e->action = action;
+	e->joystick = joystick;
+	e->joystick_nr = joystick_nr;
+	e->due = due;
+	key_queue_write = next;
+}
+
+void
+JAVA_EXPORT_NAME(MainSurfaceView_nativeSetKeyHold) ( JNIEnv*  env, jobject  thiz, jint frames )
+{
+	key_hold_frames = frames > 0 ? frames : 1;
+}
+
+/* Called by the emulation once per frame, before it polls for events */
+void SDL_ANDROID_InputFrame(void)
+{
+	unsigned w = input_write;
+	int64_t now = input_now();
+
+	__sync_synchronize();
+	if (input_current.events) {
+		if (!input_waiting.events)
+			input_waiting.first = input_current.first;
+		input_waiting.events += input_current.events;
+		input_waiting.sum += input_current.sum;
+		input_current.events = 0;
+		input_current.sum = 0;
+	}
+	key_queue_frame++;
+	while (input_read != w) {
+		struct input_event *e = &input_ring[input_read % INPUT_RING_SIZE];
+
+		switch (e->type) {
+		case INPUT_KEY:
+			ANDROID_Key(e->a, e->b, e->c, e->d);
+			break;
+		case INPUT_KEY_HELD:
+			key_queue_add(e->a, e->b, e->c, e->d);
+			break;
+		case INPUT_MOUSE:
+			ANDROID_Mouse(e->a, e->b, e->c, e->d);
+			break;
+		}
+		if (!input_current.events++)
+			input_current.first = e->time;
+		input_current.sum += e->time;
+		input_report_queued += now - e->time;
+		input_report_drained++;
+		__sync_synchronize();
+		input_read++;
+	}
+	while (key_queue_read != key_queue_write && (int)(key_queue[key_queue_read].due - key_queue_frame) <= 0) {
+		struct key_event *e = &key_queue[key_queue_read];
+
+		if (e->joystick)
+			joystick_publish(e->key, e->action, e->joystick_nr == 1 ? 0 : 1, JOYSTICK_QUEUE);
+		ANDROID_Key(e->key, e->action, e->joystick, e->joystick_nr);
+		key_queue_read = (key_queue_read + 1) % KEY_QUEUE_SIZE;
+	}
+}
+
+/* A frame is on screen: it shows what was drained before it was emulated */
+static void input_shown(void)
+{
+	int64_t now;
+
+	if (!input_waiting.events)
+		return;
+	now = input_now();
+	input_report_shown += input_waiting.events * now - input_waiting.sum;
+	if (now - input_waiting.first > input_report_max)
+		input_report_max = now - input_waiting.first;
+	input_report_events += input_waiting.events;
+	input_waiting.events = 0;
+	input_waiting.sum = 0;
+	if (input_report_events < INPUT_REPORT)
+		return;
+	__android_log_print(ANDROID_LOG_INFO, "libSDL", "input: %d events, %d us to the emulation, %d us to the screen (max %d us), %u dropped, %u joystick events dropped",
+		input_report_events, input_report_drained ? (int)(input_report_queued / input_report_drained) : 0,
+		(int)(input_report_shown / input_report_events),
+		(int)input_report_max, input_dropped - input_report_dropped, joystick_queue_dropped);
+	input_report_dropped = input_dropped;
+	joystick_queue_dropped = 0;
+	input_report_drained = input_report_events = 0;
+	input_report_queued = input_report_shown = input_report_max = 0;
+}
+
 void ANDROID_InitOSKeymap(_THIS)
 {
   int i;
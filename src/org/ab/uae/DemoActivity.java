@@ -49,6 +49,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.util.Date;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -81,8 +83,11 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.Window;
 import android.view.WindowManager;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -121,6 +126,24 @@ class Globals {
 	public static String PREFKEY_FS = "frameskip";
 	public static String PREFKEY_SC = "system_clock";
 	public static String PREFKEY_ST = "sync_threshold";
+	public static String PREFKEY_DISK_COMPRESSION = "disk_compression";
+	public static String PREFKEY_FLOPPY_TURBO = "floppy_turbo";
+	public static String PREFKEY_AUTO_WARP = "auto_warp";
+	public static String PREFKEY_FFWD_CAP = "ffwd_cap";
+	public static String PREFKEY_KEY_HOLD = "key_hold";
+	public static String PREFKEY_JOYSTICK_LATCH = "joystick_latch";
+	public static String PREFKEY_REWIND_MEM = "rewind_mem";
+	public static String PREFKEY_RUNAHEAD = "runahead";
+	public static String PREFKEY_AUTOSAVE = "autosave";
+	public static String PREFKEY_AUTOSAVE_CONFIG = "autosave_config";
+	public static String PREFKEY_BOOTCACHE = "bootcache";
+	
+	// run-ahead is set per title, after the disk in DF0
+	public static String runAheadKey(String f1Path) {
+		if (f1Path == null)
+			return PREFKEY_RUNAHEAD;
+		return PREFKEY_RUNAHEAD + "." + new File(f1Path).getName();
+	}
 	
 	public static String PREFKEY_CYCLONE = "cyclone_core";
 	
@@ -391,6 +414,32 @@ protected VirtualKeypad vKeyPad = null;
 	        	setPrefs(romPath, f1P, f2P, f3P, f4P, autofs?100:fs, sc, st, changed_sound?1:0, sound, changed_disks?1:0, force_reset&&!first_start?1:0, drivestatus?1:0, ntsc?1:0);
 	        	//Toast.makeText(this, "Starting...", Toast.LENGTH_SHORT);
 	        	setRightMouse(mouse_button);
+	        	setDiskCompression(Integer.parseInt(sp.getString(Globals.PREFKEY_DISK_COMPRESSION, "9")));
+	        	setFloppyTurbo(sp.getBoolean(Globals.PREFKEY_FLOPPY_TURBO, false)?1:0);
+	        	setAutoWarp(sp.getBoolean(Globals.PREFKEY_AUTO_WARP, false)?1:0);
+	        	setFastForwardCap(Integer.parseInt(sp.getString(Globals.PREFKEY_FFWD_CAP, "4")));
+	        	MainSurfaceView.nativeSetKeyHold(Integer.parseInt(sp.getString(Globals.PREFKEY_KEY_HOLD, "2")));
+	        	setJoystickLatch(Integer.parseInt(sp.getString(Globals.PREFKEY_JOYSTICK_LATCH, "-1")));
+	        	setRewindMemory(Integer.parseInt(sp.getString(Globals.PREFKEY_REWIND_MEM, "0")));
+	        	setRunAhead(Integer.parseInt(sp.getString(Globals.runAheadKey(f1P), "0")));
+	        	if (!cyclone) {
+	        		// the pages state files have in common are stored once
+	        		if (first_start)
+	        			setStateStore(new File(saveDir, "store").getPath());
+	        		// resume the last session if it ran with the same ROM and disks
+	        		String config = romPath + "|" + f1P + "|" + f2P + "|" + f3P + "|" + f4P + "|" + ntsc;
+	        		File autosave = new File(saveDir, "autosave.asf");
+	        		boolean sameConfig = config.equals(sp.getString(Globals.PREFKEY_AUTOSAVE_CONFIG, null));
+	        		if (!sameConfig) {
+	        			autosave.delete();
+	        			sp.edit().putString(Globals.PREFKEY_AUTOSAVE_CONFIG, config).commit();
+	        		}
+	        		boolean resume = first_start && sameConfig && autosave.exists();
+	        		setAutoSave(sp.getBoolean(Globals.PREFKEY_AUTOSAVE, true)?autosave.getPath():"", resume?1:0);
+	        		// a cold start without a session to resume skips the Kickstart boot
+	        		boolean bootCache = first_start && !resume && sp.getBoolean(Globals.PREFKEY_BOOTCACHE, true);
+	        		setBootCache(bootCache?saveDir.getPath():"");
+	        	}
 	        	initSDL();
 	        	
 	        	/*if (f1Path != null && new File(f1Path + ".asf").exists())
@@ -408,15 +457,19 @@ protected VirtualKeypad vKeyPad = null;
     	KeyEvent.KEYCODE_0, KeyEvent.KEYCODE_1, KeyEvent.KEYCODE_2, KeyEvent.KEYCODE_3, KeyEvent.KEYCODE_4,
     	KeyEvent.KEYCODE_5, KeyEvent.KEYCODE_6, KeyEvent.KEYCODE_7, KeyEvent.KEYCODE_8,
     	KeyEvent.KEYCODE_A, KeyEvent.KEYCODE_B, KeyEvent.KEYCODE_G, KeyEvent.KEYCODE_H,
-    	KeyEvent.KEYCODE_I, KeyEvent.KEYCODE_J, KeyEvent.KEYCODE_K, KeyEvent.KEYCODE_M, KeyEvent.KEYCODE_N};
+    	KeyEvent.KEYCODE_I, KeyEvent.KEYCODE_J, KeyEvent.KEYCODE_K, KeyEvent.KEYCODE_M, KeyEvent.KEYCODE_N,
+    	KeyEvent.KEYCODE_SEARCH, KeyEvent.KEYCODE_CAMERA};
     public static String default_keycodes_string [] = { "Fire", "Alt.Fire" , "Left Mouse Click",
     	"Right Mouse Click", "Up", "Down", "Left",
     	"Right", "UpLeft", "UpRight", "DownLeft", "DownRight",
     	"Escape", "F1", "F2", "F3", "F4",
     	"F5", "F6", "F7", "F8", 
     	"Fire2", "Up2", "Down2", "Left2",
-    	"Right2", "UpLeft2", "UpRight2", "DownLeft2", "DownRight2"};
+    	"Right2", "UpLeft2", "UpRight2", "DownLeft2", "DownRight2",
+    	"Fast Forward", "Rewind"};
     public static int current_keycodes [];
+    public static final int FAST_FORWARD_KEY = 30;
+    public static final int REWIND_KEY = 31;
     
     public int [] getRealKeyCode(int keyCode) {
     	int h [] = new int [2];
@@ -489,6 +542,45 @@ protected VirtualKeypad vKeyPad = null;
         }
     }
     
+    // nativeQuit waits for the disk writes, so keep the UI thread free to say so
+    private void quit() {
+    	if (nativeDiskWritesPending() > 0)
+    		Toast.makeText(this, R.string.saving_disks, Toast.LENGTH_LONG).show();
+    	new Thread() {
+    		public void run() {
+    			nativeQuit();
+    		}
+    	}.start();
+    }
+    
+    // held down by the fast forward key, the speed reached is shown on release
+    private boolean fastForward;
+    public void fastForward(boolean on) {
+    	if (on == fastForward)
+    		return;
+    	fastForward = on;
+    	setFastForward(on?1:0);
+    	if (!on) {
+    		int speed = nativeFastForwardSpeed();
+    		if (speed > 0)
+    			Toast.makeText(this, getString(R.string.ffwd_speed, speed / 100, speed % 100 / 10), Toast.LENGTH_SHORT).show();
+    	}
+    }
+    
+    // steps back through the rewind history while held, shows the capture cost on release
+    private boolean rewind;
+    public void rewind(boolean on) {
+    	if (on == rewind)
+    		return;
+    	rewind = on;
+    	setRewind(on?1:0);
+    	if (!on) {
+    		int cost = nativeRewindCost();
+    		if (cost > 0)
+    			Toast.makeText(this, getString(R.string.rewind_cost, cost), Toast.LENGTH_SHORT).show();
+    	}
+    }
+    
     public void render() {
     	if (mGLView != null)
     		mGLView.requestRender();
@@ -615,6 +707,25 @@ protected VirtualKeypad vKeyPad = null;
     public native void loadState(String filename, int num);
     public native void nativeReset();
     public native void nativeQuit();
+    public native int nativeDiskWritesPending();
+    public native void setAutoSave(String filename, int restore);
+    public native void setBootCache(String dir);
+    public native void setStateStore(String dir);
+    public native void setDiskCompression(int level);
+    public native void setFloppyTurbo(int turbo);
+    public native void setAutoWarp(int warp);
+    public native void setFastForward(int on);
+    public native void setFastForwardCap(int cap);
+    public native void setJoystickLatch(int line);
+    public native int nativeFastForwardSpeed();
+    public native void setRewind(int on);
+    public native void setRewindMemory(int megabytes);
+    public native int nativeRewindCost();
+    public native void setRunAhead(int frames);
+    public native int nativeRunAheadCost();
+    public native int nativeRunAheadLoad();
+    public native int nativeSnapshot(ByteBuffer dst);
+    public native boolean nativeRestoreSnapshot(ByteBuffer src, int len);
     public native void setRightMouse(int right);
     //public native void nativeAudioInit(DemoActivity callback);
     
@@ -648,6 +759,8 @@ protected VirtualKeypad vKeyPad = null;
         	case CONFIGURE_ID:
         		Intent settingsIntent = new Intent();
            		settingsIntent.setClass(this, Settings.class);
+           		settingsIntent.putExtra("runahead_cost", nativeRunAheadCost());
+           		settingsIntent.putExtra("runahead_load", nativeRunAheadLoad());
            		startActivityForResult(settingsIntent, CONFIGURE_ID);
            		break;
         	case RESET_ID: 
@@ -688,15 +801,12 @@ protected VirtualKeypad vKeyPad = null;
         		setRightMouse(mouse_button);
         		break;
         	case LOAD_ID:
-        		if (f1Path != null)
-        			loadState(f1Path, 0);
-        		break;
         	case SAVE_ID:
         		if (f1Path != null)
-        			saveState(f1Path, 0);
+        			showStateSlots(item.getItemId() == SAVE_ID);
         		break;
         	case QUIT_ID:
-        		nativeQuit();
+        		quit();
         		break;
         }
     	}
@@ -711,9 +821,65 @@ protected VirtualKeypad vKeyPad = null;
 
 	@Override
 	public void onOptionsMenuClosed(Menu menu) {
-		onResume();
+		// the slot list resumes when it is closed
+		if (!stateSlotsShown)
+			onResume();
 		super.onOptionsMenuClosed(menu);
 	}
+	
+	private boolean stateSlotsShown;
+	
+	// Lists the slots of the disk in df0 from its index alone
+	private void showStateSlots(final boolean save) {
+		final StateIndex index = new StateIndex(f1Path);
+		final DateFormat df = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+		BaseAdapter slots = new BaseAdapter() {
+			public int getCount() {
+				return StateIndex.SLOTS;
+			}
+			public Object getItem(int position) {
+				return null;
+			}
+			public long getItemId(int position) {
+				return position;
+			}
+			public View getView(int position, View convertView, ViewGroup parent) {
+				View row = convertView;
+				if (row == null)
+					row = getLayoutInflater().inflate(R.layout.state_row, parent, false);
+				ImageView thumb = (ImageView) row.findViewById(R.id.state_thumb);
+				TextView text = (TextView) row.findViewById(R.id.state_text);
+				thumb.setImageBitmap(index.thumbs[position]);
+				if (index.used(position) && index.frames[position] < 0)
+					text.setText(getString(R.string.state_slot, position + 1) + "\n" + df.format(new Date(index.time[position])));
+				else if (index.used(position))
+					text.setText(getString(R.string.state_slot, position + 1) + "\n" + getString(R.string.state_info, df.format(new Date(index.time[position])), index.frames[position]));
+				else
+					text.setText(getString(R.string.state_slot, position + 1) + "\n" + getString(R.string.state_empty));
+				return row;
+			}
+		};
+		stateSlotsShown = true;
+		new AlertDialog.Builder(DemoActivity.this)
+		.setTitle(save?R.string.save_state:R.string.load_state)
+		.setAdapter(slots, new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int which) {
+				if (save)
+					saveState(f1Path, which);
+				else if (index.used(which))
+					loadState(f1Path, which);
+				stateSlotsShown = false;
+				onResume();
+			}
+		})
+		.setOnCancelListener(new DialogInterface.OnCancelListener() {
+			public void onCancel(DialogInterface dialog) {
+				stateSlotsShown = false;
+				onResume();
+			}
+		})
+		.show();
+	}
     
 class DataDownloader extends Thread
 {
@@ -1002,7 +1168,7 @@ protected Dialog onCreateDialog(int id) {
        .setMessage(R.string.quit_info)
        .setPositiveButton(R.string.quit, new DialogInterface.OnClickListener() {
            public void onClick(DialogInterface dialog, int whichButton) {
-        	   nativeQuit();
+        	   quit();
            }
        })
        .create();
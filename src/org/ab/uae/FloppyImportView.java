@@ -10,7 +10,7 @@ import android.app.Application;
 public class FloppyImportView extends ImportFileView {
 
 	public FloppyImportView() {
-		super(new String [] { "adf" } );
+		super(new String [] { "adf", "adz", ".gz" } );
 		virtualDir = false;
 	}
 
@@ -96,15 +96,24 @@ public class MainSurfaceView  extends SurfaceView implements SurfaceHolder.Callb
 		if (keyCode == KeyEvent.KEYCODE_BACK || keyCode == KeyEvent.KEYCODE_MENU)
 			return false;
 		
+		if (keyCode == DemoActivity.current_keycodes[DemoActivity.FAST_FORWARD_KEY]) {
+			mParent.fastForward(true);
+			return true;
+		}
+		
+		if (keyCode == DemoActivity.current_keycodes[DemoActivity.REWIND_KEY]) {
+			mParent.rewind(true);
+			return true;
+		}
+		
 		int joystick_nr = 1;
 		
+		// on-screen keys are held for some frames by the native queue
 		if (keyCode >= 2000) {
-			nativeKey( keyCode-2000, 1, 1, joystick_nr );
-			try { Thread.sleep(50); } catch (InterruptedException e) {}
+			nativeKeyQueued( keyCode-2000, 1, 1, joystick_nr );
 			return true;
 		} else if (keyCode >= 1000) {
-			nativeKey( keyCode-1000, 1, 0, joystick_nr );
-			try { Thread.sleep(50); } catch (InterruptedException e) {}
+			nativeKeyQueued( keyCode-1000, 1, 0, joystick_nr );
 			return true;
 		}
 		
@@ -138,15 +147,24 @@ public class MainSurfaceView  extends SurfaceView implements SurfaceHolder.Callb
 		if (keyCode == KeyEvent.KEYCODE_BACK || keyCode == KeyEvent.KEYCODE_MENU)
 			return false;
 		
+		if (keyCode == DemoActivity.current_keycodes[DemoActivity.FAST_FORWARD_KEY]) {
+			mParent.fastForward(false);
+			return true;
+		}
+		
+		if (keyCode == DemoActivity.current_keycodes[DemoActivity.REWIND_KEY]) {
+			mParent.rewind(false);
+			return true;
+		}
+		
 		int joystick_nr = 1;
 		
+		// on-screen keys are held for some frames by the native queue
 		if (keyCode >= 2000) {
-			nativeKey( keyCode-2000, 0, 1, joystick_nr );
-			try { Thread.sleep(50); } catch (InterruptedException e) {}
+			nativeKeyQueued( keyCode-2000, 0, 1, joystick_nr );
 			return true;
 		} else if (keyCode >= 1000) {
-			nativeKey( keyCode-1000, 0, 0, joystick_nr );
-			try { Thread.sleep(50); } catch (InterruptedException e) {}
+			nativeKeyQueued( keyCode-1000, 0, 0, joystick_nr );
 			return true;
 		}
 		
@@ -180,6 +198,8 @@ public class MainSurfaceView  extends SurfaceView implements SurfaceHolder.Callb
 
     public static native void nativeMouse( int x, int y, int action, int relative );
     public static native void nativeKey( int keyCode, int down, int joystick, int joystick_nr );
+    public static native void nativeKeyQueued( int keyCode, int down, int joystick, int joystick_nr );
+    public static native void nativeSetKeyHold( int frames );
   
 	public void shiftImage(int leftDPIs) {
 		if (leftDPIs > 0) {
@@ -222,6 +222,72 @@ public class Settings extends PreferenceActivity {
 	        fs1Pref.setTitle(R.string.frameskip_value);
 	        perfPrefCat.addPreference(fs1Pref);
 	        
+	        CheckBoxPreference toggleTurboPref = new CheckBoxPreference(this);
+	        toggleTurboPref.setKey(Globals.PREFKEY_FLOPPY_TURBO);
+	        toggleTurboPref.setTitle(R.string.floppy_turbo);
+	        toggleTurboPref.setSummary(R.string.floppy_turbo_summary);
+	        toggleTurboPref.setDefaultValue(false);
+	        perfPrefCat.addPreference(toggleTurboPref);
+	        
+	        CheckBoxPreference toggleWarpPref = new CheckBoxPreference(this);
+	        toggleWarpPref.setKey(Globals.PREFKEY_AUTO_WARP);
+	        toggleWarpPref.setTitle(R.string.auto_warp);
+	        toggleWarpPref.setSummary(R.string.auto_warp_summary);
+	        toggleWarpPref.setDefaultValue(false);
+	        perfPrefCat.addPreference(toggleWarpPref);
+	        
+	        ListPreference ffwdPref = new ListPreference(this);
+	        ffwdPref.setEntries(R.array.ffwd_entries_summary);
+	        ffwdPref.setEntryValues(R.array.ffwd_entries);
+	        ffwdPref.setDefaultValue("4");
+	        ffwdPref.setDialogTitle(R.string.ffwd_cap);
+	        ffwdPref.setKey(Globals.PREFKEY_FFWD_CAP);
+	        ffwdPref.setTitle(R.string.ffwd_cap);
+	        ffwdPref.setSummary(R.string.ffwd_cap_summary);
+	        perfPrefCat.addPreference(ffwdPref);
+	        
+	        ListPreference rewindPref = new ListPreference(this);
+	        rewindPref.setEntries(R.array.rewind_entries_summary);
+	        rewindPref.setEntryValues(R.array.rewind_entries);
+	        rewindPref.setDefaultValue("0");
+	        rewindPref.setDialogTitle(R.string.rewind_mem);
+	        rewindPref.setKey(Globals.PREFKEY_REWIND_MEM);
+	        rewindPref.setTitle(R.string.rewind_mem);
+	        rewindPref.setSummary(R.string.rewind_mem_summary);
+	        perfPrefCat.addPreference(rewindPref);
+	        
+	        String f1 = sp.getString(Globals.PREFKEY_F1, null);
+	        ListPreference runAheadPref = new ListPreference(this);
+	        runAheadPref.setEntries(R.array.runahead_entries_summary);
+	        runAheadPref.setEntryValues(R.array.runahead_entries);
+	        runAheadPref.setDefaultValue("0");
+	        runAheadPref.setDialogTitle(R.string.runahead);
+	        runAheadPref.setKey(Globals.runAheadKey(f1));
+	        runAheadPref.setTitle(R.string.runahead);
+	        // last measured cost, so it is only raised where there is headroom
+	        int load = getIntent().getIntExtra("runahead_load", 0);
+	        if (load > 0)
+	        	runAheadPref.setSummary(getString(R.string.runahead_cost, getIntent().getIntExtra("runahead_cost", 0), load));
+	        else
+	        	runAheadPref.setSummary(R.string.runahead_summary);
+	        perfPrefCat.addPreference(runAheadPref);
+	        
+	        if (!sp.getBoolean(Globals.PREFKEY_CYCLONE, false)) {
+		        CheckBoxPreference toggleAutoSavePref = new CheckBoxPreference(this);
+		        toggleAutoSavePref.setKey(Globals.PREFKEY_AUTOSAVE);
+		        toggleAutoSavePref.setTitle(R.string.autosave);
+		        toggleAutoSavePref.setSummary(R.string.autosave_summary);
+		        toggleAutoSavePref.setDefaultValue(true);
+		        perfPrefCat.addPreference(toggleAutoSavePref);
+		        
+		        CheckBoxPreference toggleBootCachePref = new CheckBoxPreference(this);
+		        toggleBootCachePref.setKey(Globals.PREFKEY_BOOTCACHE);
+		        toggleBootCachePref.setTitle(R.string.bootcache);
+		        toggleBootCachePref.setSummary(R.string.bootcache_summary);
+		        toggleBootCachePref.setDefaultValue(true);
+		        perfPrefCat.addPreference(toggleBootCachePref);
+	        }
+	        
 	        CheckBoxPreference toggleDSPref = new CheckBoxPreference(this);
 	        toggleDSPref.setKey(Globals.PREFKEY_DRIVESTATUS);
 	        toggleDSPref.setTitle(R.string.drivestatus);
@@ -254,6 +320,16 @@ public class Settings extends PreferenceActivity {
 	        st1Pref.setSummary(R.string.system_clock_summary);
 	        perfPrefCat.addPreference(st1Pref);
 	        
+	        ListPreference dc1Pref = new ListPreference(this);
+	        dc1Pref.setEntries(R.array.dc_entries_summary);
+	        dc1Pref.setEntryValues(R.array.dc_entries);
+	        dc1Pref.setDefaultValue("9");
+	        dc1Pref.setDialogTitle(R.string.disk_compression);
+	        dc1Pref.setKey(Globals.PREFKEY_DISK_COMPRESSION);
+	        dc1Pref.setTitle(R.string.disk_compression);
+	        dc1Pref.setSummary(R.string.disk_compression_summary);
+	        perfPrefCat.addPreference(dc1Pref);
+	        
 	        PreferenceCategory portPrefCat = new PreferenceCategory(this);
 	        portPrefCat.setTitle(R.string.mapping_settings);
 	        root.addPreference(portPrefCat);
@@ -285,6 +361,26 @@ public class Settings extends PreferenceActivity {
 	        screenSizePref.setTitle(R.string.screen_size_text);
 	        portPrefCat.addPreference(screenSizePref);
 	        
+	        ListPreference keyHoldPref = new ListPreference(this);
+	        keyHoldPref.setEntries(R.array.key_hold_entries_summary);
+	        keyHoldPref.setEntryValues(R.array.key_hold_entries);
+	        keyHoldPref.setDefaultValue("2");
+	        keyHoldPref.setDialogTitle(R.string.key_hold);
+	        keyHoldPref.setKey(Globals.PREFKEY_KEY_HOLD);
+	        keyHoldPref.setTitle(R.string.key_hold);
+	        keyHoldPref.setSummary(R.string.key_hold_summary);
+	        portPrefCat.addPreference(keyHoldPref);
+	        
+	        ListPreference joystickLatchPref = new ListPreference(this);
+	        joystickLatchPref.setEntries(R.array.joystick_latch_entries_summary);
+	        joystickLatchPref.setEntryValues(R.array.joystick_latch_entries);
+	        joystickLatchPref.setDefaultValue("-1");
+	        joystickLatchPref.setDialogTitle(R.string.joystick_latch);
+	        joystickLatchPref.setKey(Globals.PREFKEY_JOYSTICK_LATCH);
+	        joystickLatchPref.setTitle(R.string.joystick_latch);
+	        joystickLatchPref.setSummary(R.string.joystick_latch_summary);
+	        portPrefCat.addPreference(joystickLatchPref);
+	        
 	        PreferenceScreen screenPref = getPreferenceManager().createPreferenceScreen(this);
 	        screenPref.setKey("screen_preference");
 	        screenPref.setTitle(R.string.custom_mappings);
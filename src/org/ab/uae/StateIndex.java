@@ -0,0 +1,82 @@
+package org.ab.uae;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+
+/**
+ * The slot index kept next to a disk's state files (savestate_index_write
+ * in savestate.cpp), so listing the slots never opens a state file.
+ */
+public class StateIndex {
+	
+	// SAVESTATE_SLOTS in savestate.h
+	public static final int SLOTS = 8;
+	static final int VERSION = 1;
+	
+	public long time [] = new long [SLOTS];	// ms, 0 when empty
+	public long frames [] = new long [SLOTS];
+	public Bitmap thumbs [] = new Bitmap [SLOTS];
+	
+	public StateIndex(String disk) {
+		read(disk);
+		// saved before there was an index
+		for(int i=0;i<SLOTS;i++) {
+			File f = new File(fileName(disk, i));
+			if (!used(i) && f.exists()) {
+				time[i] = f.lastModified();
+				frames[i] = -1;
+			}
+		}
+	}
+	
+	// savestate_slot_filename in savestate.cpp
+	public static String fileName(String disk, int slot) {
+		return disk + (slot > 0?"-" + slot:"") + ".asf";
+	}
+	
+	private void read(String disk) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(disk + ".idx")));
+			byte magic [] = new byte [4];
+			in.readFully(magic);
+			if (!"ASI ".equals(new String(magic)) || in.readInt() != VERSION)
+				return;
+			int slots = in.readInt();
+			int w = in.readInt();
+			int h = in.readInt();
+			byte pixels [] = new byte [w*h*2];
+			for(int i=0;i<slots && i<SLOTS;i++) {
+				long t = in.readInt() & 0xffffffffL;
+				long f = in.readInt() & 0xffffffffL;
+				in.readFully(pixels);
+				if (t == 0)
+					continue;
+				time[i] = t * 1000;
+				frames[i] = f;
+				// RGB565 in the native byte order, as Bitmap wants it
+				thumbs[i] = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+				thumbs[i].copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+			}
+		} catch (IOException e) {
+			// no index yet, or cut short: the rest stays empty
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+	
+	public boolean used(int slot) {
+		return time[slot] != 0;
+	}
+}